@@ -12,19 +12,37 @@ trials = 1:10;
 figure; hold all;
 for mem_idx = 1:length(mems)
   mem = mems(mem_idx);
+  clear weights weights_dims weights_times;
   load(['/home/sss1/Desktop/SORN/resultsMemory' num2str(mem) '.mat'])
 
-  weights = reshape(weights, weights_dims);
-  
-  traces = zeros(duration, 1);
-  for t = 1:duration
-    w = squeeze(weights(t, :, :));
-    traces(t) = trace(w * w * w * w);
+  stats_file = ['/home/sss1/Desktop/SORN/resultsMemory' num2str(mem) '.stats'];
+  if exist(stats_file, 'file') % trace(w^4) was computed during the simulation
+    stats = csvread(stats_file, 1, 0); % columns: t, firing_rate, density, reciprocity, trace_W4
+    times = stats(:, 1);
+    traces = stats(:, 5);
+  else
+    if exist('weights', 'var')
+      weights = reshape(weights, weights_dims);
+      times = double(weights_times(:));
+    else % weights were streamed to a separate file
+      [weights, times] = readWeights(['/home/sss1/Desktop/SORN/resultsMemory' num2str(mem) '.weights']);
+    end
+
+    traces = zeros(size(weights, 1), 1);
+    for t = 1:size(weights, 1)
+      w = squeeze(weights(t, :, :));
+      traces(t) = trace(w * w * w * w);
+    end
   end
   % A = squeeze(weights(end, :, :) > 0);
   % for path_length_idx = 1:length(path_lengths)
   %   path_length = path_lengths(path_length_idx);
   %   traces(mem, path_length) = trace(A^path_length);
   % end
-  plot(smooth(traces, 20));
+  % Smooth over 20 time steps, whatever the sampling cadence, and plot against the time step
+  sample_spacing = 1;
+  if length(times) > 1
+    sample_spacing = times(2) - times(1);
+  end
+  plot(times, smooth(traces, max(1, round(20 / sample_spacing))));
 end
@@ -0,0 +1,24 @@
+function [weights, times] = readWeights(path)
+% Reads a weight history written by SORN.StreamingWeightRecorder.
+%
+% weights(f, i, j) is the weight from neuron j to neuron i in the f-th
+% recorded frame, and times(f) is the time step of that frame.
+
+fid = fopen(path, 'r', 'ieee-be');
+header = fread(fid, 5, 'int32');
+if header(1) ~= hex2dec('534F524E')
+  fclose(fid);
+  error('%s is not a SORN weights file.', path);
+end
+numNeurons = header(3);
+numFrames = header(5);
+
+weights = zeros(numFrames, numNeurons, numNeurons);
+times = zeros(numFrames, 1);
+for f = 1:numFrames
+  times(f) = fread(fid, 1, 'int32');
+  % frames are stored row-major, so transpose after MATLAB's column-major reshape
+  weights(f, :, :) = reshape(fread(fid, numNeurons * numNeurons, 'double'), numNeurons, numNeurons)';
+end
+fclose(fid);
+end
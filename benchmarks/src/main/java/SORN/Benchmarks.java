@@ -0,0 +1,158 @@
+package SORN;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the benchmarks with the GC profiler, and summarizes the results as scaling curves: for each
+ * benchmark and setting of the parameters other than numNeurons, the score (throughput, or, for
+ * single-shot benchmarks such as PlasticityBenchmark, time per operation) and allocation per
+ * operation at each numNeurons. The summary is also written to benchmarks.csv, which can be passed
+ * back in as a baseline, in which case each score is also reported relative to the baseline.
+ *
+ * Usage: Benchmarks [baseline.csv] [JMH options, e.g., -p numNeurons=200,1000 TrialBenchmark]
+ */
+public class Benchmarks {
+
+  static final long SEED = Parameters.SEED;
+
+  private static final String SUMMARY_FILE = "benchmarks.csv";
+  private static final String RESULTS_FILE = "jmh-result.json";
+
+  /**
+   * @param synapses "dense", "sparse", "offheap" or "offheap-float" (see WeightStorage.named())
+   * @return a new trial, configured as in Sim (with one thread stepping the neurons)
+   */
+  static Trial newTrial(Parameters params, String synapses, boolean useSpikeTraces, RandomStream random) {
+    return new Trial(params, random, WeightStorage.named(synapses), true, useSpikeTraces, true, 1);
+  }
+
+  /**
+   * @return fraction of the numNeurons * (numNeurons - 1) possible synapses of the network that exist
+   */
+  static double density(Network network) {
+    double numNeurons = network.getNumNeurons();
+    return network.getNumSynapses() / (numNeurons * (numNeurons - 1.0));
+  }
+
+  public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+    String baselinePath = null;
+    if (args.length > 0 && args[0].endsWith(".csv")) {
+      baselinePath = args[0];
+      String[] jmhArgs = new String[args.length - 1];
+      System.arraycopy(args, 1, jmhArgs, 0, jmhArgs.length);
+      args = jmhArgs;
+    }
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    OptionsBuilder optionsBuilder = new OptionsBuilder();
+    optionsBuilder.parent(commandLineOptions);
+    if (commandLineOptions.getIncludes().isEmpty()) {
+      optionsBuilder.include("SORN\\..*Benchmark");
+    }
+    Options options = optionsBuilder
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result(RESULTS_FILE)
+        .build();
+    Collection<RunResult> results = new Runner(options).run();
+
+    Map<String, Double> baseline = (baselinePath == null) ? new HashMap<String, Double>() : readSummary(baselinePath);
+    // Rows of the summary, grouped into scaling curves (sorted by key, then by numNeurons)
+    TreeMap<String, TreeMap<Integer, String>> curves = new TreeMap<>();
+    for (RunResult result : results) {
+      BenchmarkParams params = result.getParams();
+      String key = curveKey(params);
+      int numNeurons = params.getParam("numNeurons") == null ? 0 : Integer.parseInt(params.getParam("numNeurons"));
+      double score = result.getPrimaryResult().getScore();
+      double allocatedBytes = Double.NaN;
+      for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+        if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+          allocatedBytes = secondary.getValue().getScore();
+        }
+      }
+      Double baselineScore = baseline.get(key + "," + numNeurons);
+      String relative = (baselineScore == null) ? "" : String.format("%.3f", score / baselineScore);
+      String row = key + "," + numNeurons + "," + score + "," + result.getPrimaryResult().getScoreUnit() + ","
+          + allocatedBytes + "," + relative;
+      if (!curves.containsKey(key)) {
+        curves.put(key, new TreeMap<Integer, String>());
+      }
+      curves.get(key).put(numNeurons, row);
+    }
+
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(SUMMARY_FILE))) {
+      writer.write("benchmark,numNeurons,score,unit,bytesPerOp,relativeToBaseline");
+      writer.newLine();
+      for (TreeMap<Integer, String> curve : curves.values()) {
+        for (String row : curve.values()) {
+          writer.write(row);
+          writer.newLine();
+        }
+      }
+    }
+
+    System.out.println();
+    System.out.println("Scaling curves (score, bytes allocated per op, and score relative to the baseline):");
+    for (Map.Entry<String, TreeMap<Integer, String>> curve : curves.entrySet()) {
+      System.out.println(curve.getKey());
+      for (String row : curve.getValue().values()) {
+        String[] fields = row.split(",", -1); // As in the header of the summary
+        System.out.println(String.format("  numNeurons = %6s: %14.3f %-8s %14.1f B/op %s",
+            fields[1], Double.parseDouble(fields[2]), fields[3], Double.parseDouble(fields[4]), fields[5]));
+      }
+    }
+    System.out.println("Summary written to " + SUMMARY_FILE + " (full results in " + RESULTS_FILE + ")");
+  }
+
+  /**
+   * @return the benchmark's name, followed by its parameters other than numNeurons (which is the
+   *         x-axis of the scaling curve), separated by semicolons
+   */
+  private static String curveKey(BenchmarkParams params) {
+    String benchmark = params.getBenchmark();
+    StringBuilder key = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+    for (String paramKey : params.getParamsKeys()) {
+      if (!paramKey.equals("numNeurons")) {
+        key.append(';').append(paramKey).append('=').append(params.getParam(paramKey));
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the scores in a summary written by main(), keyed by benchmark (with parameters) and
+   *         numNeurons
+   */
+  private static Map<String, Double> readSummary(String filepath) throws IOException {
+    Map<String, Double> scores = new HashMap<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(filepath))) {
+      reader.readLine(); // Header
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(",", -1);
+        scores.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+      }
+    }
+    return scores;
+  }
+
+}
@@ -0,0 +1,136 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the firing kernels of the simulation, each applied (through Neuron) to every neuron of
+ * the network, so that one operation is one time step's worth of the kernel.
+ *
+ * Since the firing kernels do not change the network, the firing patterns they are applied to are
+ * generated ahead of each iteration: the trial is advanced by RING_SIZE (unmeasured) time steps,
+ * whose patterns and noise form a ring that the operations cycle through. The kernels that do
+ * change the network are benchmarked by PlasticityBenchmark.
+ *
+ * The connection density of the network is set (as in the simulation) by the probability of new
+ * connections, since synaptic normalization prunes all but the strongest synapses within a few time
+ * steps of any other density; the density it settles at is printed when the trial is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class KernelBenchmark {
+
+  static final int RING_SIZE = 64; // Number of firing patterns generated before each iteration
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"dense", "sparse"})
+  public String synapses;
+
+  @Param({"0.01", "0.1", "0.3"})
+  public double structuralConnectionProbability; // Sets the connection density (see above)
+
+  @Param({"100"})
+  public int warmupSteps; // Time steps simulated before measuring, so that the network has matured
+
+  private Trial trial;
+  private Neuron[] neurons;
+  private RandomStream random;
+  // The ring of firing patterns: fired[k][i] is true if and only if neuron i fired in the k^th,
+  // and active[k][0], ..., active[k][numActive[k] - 1] are the neurons that did
+  private boolean[][] fired;
+  private int[][] active;
+  private int[] numActive;
+  private double[][] noise;
+  private int next; // Position in the ring of the next operation's pattern
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    random = new RandomStream(Benchmarks.SEED, 0);
+    Parameters params = new Parameters().with("numNeurons", numNeurons)
+        .with("structuralConnectionProbability", structuralConnectionProbability);
+    trial = Benchmarks.newTrial(params, synapses, true, random);
+    for (int step = 0; step < warmupSteps; step++) {
+      trial.step();
+    }
+    neurons = new Neuron[numNeurons];
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      neurons[neuronIdx] = new Neuron(trial.getNetwork(), neuronIdx);
+    }
+    fired = new boolean[RING_SIZE][numNeurons];
+    active = new int[RING_SIZE][numNeurons];
+    numActive = new int[RING_SIZE];
+    noise = new double[RING_SIZE][numNeurons];
+    System.out.println("Connection density: " + Benchmarks.density(trial.getNetwork()));
+  }
+
+  @Setup(Level.Iteration)
+  public void generateRing() {
+    SpikeHistory history = trial.getHistory();
+    for (int k = 0; k < RING_SIZE; k++) {
+      trial.step();
+      int t = history.getLatestTime();
+      numActive[k] = history.spikingNeurons(t, active[k]);
+      for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+        fired[k][neuronIdx] = history.fired(t, neuronIdx);
+      }
+      random.fillGaussian(noise[k], 0, numNeurons, t + 1, RandomStream.FIRING_NOISE);
+    }
+    trial.getNetwork().prepareFire();
+    next = 0;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    trial.close();
+  }
+
+  /**
+   * @return position in the ring of the current operation's pattern
+   */
+  private int nextPattern() {
+    int k = next;
+    next = (k + 1 == RING_SIZE) ? 0 : k + 1;
+    return k;
+  }
+
+  @Benchmark
+  public void shouldFire(Blackhole blackhole) {
+    int k = nextPattern();
+    boolean[] pattern = fired[k];
+    double[] patternNoise = noise[k];
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      blackhole.consume(neurons[neuronIdx].shouldFire(pattern, patternNoise[neuronIdx]));
+    }
+  }
+
+  @Benchmark
+  public void shouldFireEventDriven(Blackhole blackhole) {
+    int k = nextPattern();
+    int[] pattern = active[k];
+    double[] patternNoise = noise[k];
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      blackhole.consume(neurons[neuronIdx].shouldFire(pattern, numActive[k], patternNoise[neuronIdx]));
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks MatPlotter.writeToMAT() on the spike raster of a whole trial (with independent
+ * spikes at the target firing rate), plus weightFrames recorded weight frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class OutputBenchmark {
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"1000"})
+  public int duration;
+
+  @Param({"0", "4"})
+  public int weightFrames;
+
+  private SpikeRaster raster;
+  private double[][] frames;
+  private int[] frameTimes;
+  private File file;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws IOException {
+    RandomStream random = new RandomStream(Benchmarks.SEED, 0);
+    raster = new SpikeRaster(numNeurons, duration);
+    long[] pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+    for (int t = 0; t < duration; t++) {
+      Arrays.fill(pattern, 0L);
+      for (int i = 0; i < numNeurons; i++) {
+        if (random.uniform(i, t, RandomStream.INITIAL_FIRING, 0) < Parameters.TARGET_FIRING_RATE) {
+          pattern[i >>> 6] |= 1L << i;
+        }
+      }
+      raster.record(pattern, 0);
+    }
+    frames = new double[weightFrames][numNeurons * numNeurons];
+    frameTimes = new int[weightFrames];
+    for (int f = 0; f < weightFrames; f++) {
+      random.fillUniform(frames[f], 0, numNeurons * numNeurons, f, 0, RandomStream.INITIAL_WEIGHTS);
+      frameTimes[f] = f * duration / Math.max(1, weightFrames);
+    }
+    file = File.createTempFile("SORNBenchmark", ".mat");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    file.delete();
+  }
+
+  @Benchmark
+  public void writeToMAT() throws IOException {
+    MatPlotter matPlotter = new MatPlotter();
+    if (weightFrames > 0) {
+      matPlotter.addWeights(frames, numNeurons, frameTimes);
+    }
+    matPlotter.writeToMAT(file.getPath(), raster, numNeurons, duration);
+  }
+
+}
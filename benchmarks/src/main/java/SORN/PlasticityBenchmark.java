@@ -0,0 +1,128 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-neuron update rules that change the network (STDP and structural plasticity),
+ * each applied (through Neuron) to every neuron of the network, so that one operation is one time
+ * step's worth of the rule.
+ *
+ * Each rule must be applied to a network maintained by the simulation's own update rules: applied
+ * repeatedly on its own, STDP would prune the weights, and structural plasticity would connect every
+ * pair of neurons, within a few dozen applications. So every operation is a single shot, before
+ * which (in the iteration's setup, rather than around every invocation of a throughput loop) the
+ * trial is advanced by one (unmeasured) time step.
+ *
+ * The cost of excitatorySTDPHistory() grows with the STDP memory (see Parameters.memory), which can
+ * be varied with, e.g., -p memory=0,4,10; excitatorySTDPTrace() does not depend on it. The connection
+ * density is set as in KernelBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200)
+@Measurement(iterations = 500)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PlasticityBenchmark {
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"dense", "sparse"})
+  public String synapses;
+
+  @Param({"0.01", "0.1", "0.3"})
+  public double structuralConnectionProbability; // Sets the connection density (see KernelBenchmark)
+
+  @Param({"10"})
+  public int memory;
+
+  @Param({"100"})
+  public int warmupSteps; // Time steps simulated before measuring, so that the network has matured
+
+  private Trial trial;
+  private Neuron[] neurons;
+  private int t; // The latest time step
+  private boolean[] fired; // Firing pattern of time t
+  private int[] active; // Neurons that fired at time t
+  private int numActive;
+  private double[] trace; // (Truncated) spike traces before time t
+  private int[] structuralScratch;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    Parameters params = new Parameters().with("numNeurons", numNeurons).with("memory", memory)
+        .with("structuralConnectionProbability", structuralConnectionProbability);
+    trial = Benchmarks.newTrial(params, synapses, true, new RandomStream(Benchmarks.SEED, 0));
+    for (int step = 0; step < warmupSteps; step++) {
+      trial.step();
+    }
+    neurons = new Neuron[numNeurons];
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      neurons[neuronIdx] = new Neuron(trial.getNetwork(), neuronIdx);
+    }
+    fired = new boolean[numNeurons];
+    active = new int[numNeurons];
+    trace = new double[numNeurons];
+    structuralScratch = new int[numNeurons];
+    System.out.println("Connection density: " + Benchmarks.density(trial.getNetwork()));
+  }
+
+  @Setup(Level.Iteration)
+  public void step() {
+    trial.step();
+    SpikeHistory history = trial.getHistory();
+    t = history.getLatestTime();
+    numActive = history.spikingNeurons(t, active);
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      fired[neuronIdx] = history.fired(t, neuronIdx);
+      double neuronTrace = 0.0;
+      for (int delay = Math.min(memory, t); delay >= 1; delay--) {
+        neuronTrace = trial.getNetwork().decayRate * neuronTrace + (history.fired(t - delay, neuronIdx) ? 1.0 : 0.0);
+      }
+      trace[neuronIdx] = neuronTrace;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    trial.close();
+  }
+
+  @Benchmark
+  public void excitatorySTDPHistory() {
+    SpikeHistory history = trial.getHistory();
+    for (Neuron neuron : neurons) {
+      neuron.excitatorySTDP(history, t);
+    }
+  }
+
+  @Benchmark
+  public void excitatorySTDPTrace() {
+    for (Neuron neuron : neurons) {
+      neuron.excitatorySTDP(trace, fired, active, numActive);
+    }
+  }
+
+  @Benchmark
+  public void structuralPlasticity() {
+    for (Neuron neuron : neurons) {
+      neuron.structuralPlasticity(t, structuralScratch);
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Util.projectWeightsInL1() on the rows of a matured network's weights, scaled so that
+ * every row lies outside the L1 ball (as after STDP potentiates a neuron's inputs). One operation
+ * projects every row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProjectionBenchmark {
+
+  private static final double POTENTIATION = 1.5; // Factor by which the rows exceed the L1 ball
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"dense", "sparse"})
+  public String synapses;
+
+  @Param({"100"})
+  public int warmupSteps; // Time steps simulated before copying the weights
+
+  private double[] matureWeights; // Row-major, already scaled by POTENTIATION
+  private double[] weights; // Copy of matureWeights that is projected in place
+  private double[] scratch;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    Trial trial = Benchmarks.newTrial(new Parameters().with("numNeurons", numNeurons), synapses, true, new RandomStream(Benchmarks.SEED, 0));
+    try {
+      for (int step = 0; step < warmupSteps; step++) {
+        trial.step();
+      }
+      matureWeights = new double[numNeurons * numNeurons];
+      trial.getNetwork().copyWeights(matureWeights);
+    } finally {
+      trial.close();
+    }
+    for (int k = 0; k < matureWeights.length; k++) {
+      matureWeights[k] *= POTENTIATION;
+    }
+    weights = new double[matureWeights.length];
+    scratch = new double[numNeurons];
+  }
+
+  @Setup(Level.Invocation)
+  public void restoreWeights() {
+    System.arraycopy(matureWeights, 0, weights, 0, weights.length);
+  }
+
+  @Benchmark
+  public double projectWeightsInL1() {
+    double totalL1Norm = 0.0;
+    for (int i = 0; i < numNeurons; i++) {
+      totalL1Norm += Util.projectWeightsInL1(weights, i * numNeurons, numNeurons, Parameters.TARGET_L1_NORM, scratch);
+    }
+    return totalL1Norm;
+  }
+
+}
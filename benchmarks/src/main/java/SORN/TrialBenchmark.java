@@ -0,0 +1,64 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks whole time steps of a trial (firing, followed by every update rule), as run by
+ * Sim.runTrial(), without recording any output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TrialBenchmark {
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"dense", "sparse", "offheap", "offheap-float"})
+  public String synapses;
+
+  @Param({"trace", "history"})
+  public String stdp; // Whether STDP is computed from spike traces or from the firing history
+
+  @Param({"100"})
+  public int warmupSteps; // Time steps simulated before measuring, so that the network has matured
+
+  private Trial trial;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    trial = Benchmarks.newTrial(new Parameters().with("numNeurons", numNeurons), synapses, stdp.equals("trace"), new RandomStream(Benchmarks.SEED, 0));
+    for (int step = 0; step < warmupSteps; step++) {
+      trial.step();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() {
+    trial.close();
+  }
+
+  @Benchmark
+  public int step() {
+    trial.step();
+    return trial.getNumActive();
+  }
+
+}
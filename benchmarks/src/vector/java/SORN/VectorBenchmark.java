@@ -0,0 +1,79 @@
+package SORN;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the scalar and vector kernels (see Kernels and VectorKernels) on one row of weights,
+ * with a firing pattern in which each neuron fired with probability TARGET_FIRING_RATE. This is only
+ * built on Java 16 or later (see the "vector" profile in pom.xml).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "--add-modules=jdk.incubator.vector" })
+public class VectorBenchmark {
+
+  @Param({"200", "1000", "5000"})
+  public int numNeurons;
+
+  @Param({"scalar", "vector"})
+  public String kernels;
+
+  private Kernels selected;
+  private double[] weights;
+  private double[] trace;
+  private boolean[] fired;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() {
+    selected = Kernels.named(kernels);
+    if (!selected.getName().equals(kernels)) {
+      throw new IllegalStateException("Kernels " + kernels + " are unavailable");
+    }
+    RandomStream random = new RandomStream(Benchmarks.SEED, 0);
+    weights = new double[numNeurons];
+    trace = new double[numNeurons];
+    fired = new boolean[numNeurons];
+    for (int j = 0; j < numNeurons; j++) {
+      weights[j] = random.uniform(j, 0, RandomStream.INITIAL_WEIGHTS, 0);
+      trace[j] = random.uniform(j, 0, RandomStream.INITIAL_WEIGHTS, 1);
+      fired[j] = random.uniform(j, 0, RandomStream.INITIAL_FIRING, 0) < Parameters.TARGET_FIRING_RATE;
+    }
+  }
+
+  @Benchmark
+  public double maskedSum() {
+    return selected.maskedSum(weights, 0, fired, numNeurons);
+  }
+
+  @Benchmark
+  public double addScaled() {
+    return selected.addScaled(weights, 0, trace, 1e-12, numNeurons, 0); // Negligibly changes the weights
+  }
+
+  @Benchmark
+  public double softThreshold() {
+    return selected.softThreshold(weights, 0, numNeurons, 0.0); // Leaves the (non-negative) weights unchanged
+  }
+
+  @Benchmark
+  public double sum() {
+    return selected.sum(weights, 0, numNeurons);
+  }
+
+}
@@ -0,0 +1,106 @@
+package SORN;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels (see Kernels) written with the Java Vector API, in the widest vectors of doubles that the
+ * CPU supports (e.g., 4 with AVX2, 8 with AVX-512). Each loop handles whole vectors, and then the
+ * remaining elements one at a time. Sums are accumulated lane by lane and then reduced, so they
+ * differ from the scalar kernels' by round-off.
+ *
+ * This needs Java 16 or later, and is compiled and run with --add-modules jdk.incubator.vector; it
+ * is loaded by Kernels.named("vector") (e.g., with -DSORN.kernels=vector).
+ */
+class VectorKernels extends Kernels {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  @Override
+  String getName() { return "vector"; }
+
+  @Override
+  double sum(double[] values, int offset, int length) {
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int j = 0;
+    for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+      sums = sums.add(DoubleVector.fromArray(SPECIES, values, offset + j));
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; j < length; j++) {
+      sum += values[offset + j];
+    }
+    return sum;
+  }
+
+  /**
+   * Loads only the values whose mask is true (as a lane mask), rather than branching on each.
+   */
+  @Override
+  double maskedSum(double[] values, int offset, boolean[] mask, int length) {
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int j = 0;
+    for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+      VectorMask<Double> lanes = VectorMask.fromArray(SPECIES, mask, j);
+      sums = sums.add(DoubleVector.fromArray(SPECIES, values, offset + j, lanes));
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; j < length; j++) {
+      if (mask[j]) {
+        sum += values[offset + j];
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  double addScaled(double[] values, int offset, double[] x, double scale, int length, int skipped) {
+    if (skipped < 0 || skipped >= length) {
+      return addScaledRange(values, offset, x, scale, 0, length);
+    }
+    double sum = addScaledRange(values, offset, x, scale, 0, skipped);
+    return sum + addScaledRange(values, offset, x, scale, skipped + 1, length);
+  }
+
+  @Override
+  double softThreshold(double[] values, int offset, int length, double theta) {
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int j = 0;
+    for (int bound = SPECIES.loopBound(length); j < bound; j += SPECIES.length()) {
+      DoubleVector thresholded = DoubleVector.fromArray(SPECIES, values, offset + j).sub(theta).max(0.0);
+      thresholded.intoArray(values, offset + j);
+      sums = sums.add(thresholded);
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; j < length; j++) {
+      values[offset + j] = Math.max(0.0, values[offset + j] - theta);
+      sum += values[offset + j];
+    }
+    return sum;
+  }
+
+  /**
+   * Adds scale * x[j] to values[offset + j], for from <= j < to (multiplying and then adding, as the
+   * scalar kernel does, rather than fusing the two).
+   *
+   * @return sum of x[from], ..., x[to - 1]
+   */
+  private static double addScaledRange(double[] values, int offset, double[] x, double scale, int from, int to) {
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int j = from;
+    for (int bound = from + SPECIES.loopBound(to - from); j < bound; j += SPECIES.length()) {
+      DoubleVector xs = DoubleVector.fromArray(SPECIES, x, j);
+      DoubleVector.fromArray(SPECIES, values, offset + j).add(xs.mul(scale)).intoArray(values, offset + j);
+      sums = sums.add(xs);
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; j < to; j++) {
+      values[offset + j] += scale * x[j];
+      sum += x[j];
+    }
+    return sum;
+  }
+
+}
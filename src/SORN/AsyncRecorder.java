@@ -0,0 +1,269 @@
+package SORN;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands snapshots of the weights and firing patterns off to an output thread, which passes them on
+ * to the recorders that encode and write them, so that the simulation does not wait for the disk.
+ *
+ * Snapshots wait for the output thread in a bounded queue, and weight snapshots are copied into a
+ * bounded pool of frames; if the output thread falls behind, recording blocks until there is room
+ * again, which bounds the memory used by the queue. flush() waits until everything recorded so far
+ * has been written and the recorders have been flushed, and close() until everything has been
+ * written and the recorders have been closed (on the output thread). If a recorder fails, the
+ * failure is rethrown (wrapped in an IOException) by the next call to record(), recordSpikes(),
+ * flush() or close(); the output thread then discards any remaining snapshots, so that recording never
+ * blocks forever.
+ */
+class AsyncRecorder implements WeightRecorder, SpikeRecorder {
+
+  /**
+   * A snapshot waiting for the output thread.
+   */
+  private static class Snapshot {
+    final int t;
+    final WeightFrame weights; // null for firing patterns
+    final long[] pattern; // null for weight snapshots
+
+    Snapshot(int t, WeightFrame weights, long[] pattern) {
+      this.t = t;
+      this.weights = weights;
+      this.pattern = pattern;
+    }
+  }
+
+  /**
+   * A copy of the weight matrix of a network, row by row (so that its size is not limited by that
+   * of an array).
+   */
+  private static class WeightFrame implements WeightMatrix {
+    private final int numNeurons;
+    private final double[][] rows;
+
+    WeightFrame(int numNeurons) {
+      this.numNeurons = numNeurons;
+      rows = new double[numNeurons][numNeurons];
+    }
+
+    @Override
+    public int getNumNeurons() { return numNeurons; }
+
+    @Override
+    public void copyRow(int i, double[] destination, int offset) {
+      System.arraycopy(rows[i], 0, destination, offset, numNeurons);
+    }
+
+    @Override
+    public int copyInputs(int i, int[] indices, double[] weights, int offset) {
+      double[] row = rows[i];
+      int numInputs = 0;
+      for (int j = 0; j < numNeurons; j++) {
+        if (row[j] >= Double.MIN_VALUE) {
+          indices[offset + numInputs] = j;
+          weights[offset + numInputs] = row[j];
+          numInputs++;
+        }
+      }
+      return numInputs;
+    }
+  }
+
+  private static final Snapshot END = new Snapshot(-1, null, null); // Sent by close()
+  private static final Snapshot FLUSH = new Snapshot(-1, null, null); // Sent by flush()
+
+  private final WeightRecorder weightRecorder;
+  private final SpikeRecorder spikeRecorder; // May be null
+  private final int numNeurons;
+  private final BlockingQueue<Snapshot> queue; // Snapshots waiting for the output thread
+  private final BlockingQueue<WeightFrame> freeFrames; // Frames not in the queue
+  private final int maxFrames;
+  private int numFrames; // Number of frames allocated so far
+  private final Thread outputThread;
+  private final Semaphore flushed; // Released by the output thread once it has flushed the recorders
+  private volatile Throwable failure; // First exception thrown by a recorder
+  private boolean closed;
+
+  /**
+   * @param weightRecorder recorder to which weight snapshots are passed
+   * @param spikeRecorder recorder to which firing patterns are passed, or null; it may be the same
+   *                      object as weightRecorder
+   * @param numNeurons number of neurons in the network
+   * @param queueCapacity number of snapshots that may wait for the output thread
+   * @param maxFrames number of weight snapshots that may wait for (or be written by) the output
+   *                  thread
+   */
+  AsyncRecorder(WeightRecorder weightRecorder, SpikeRecorder spikeRecorder, int numNeurons, int queueCapacity, int maxFrames) {
+    if (queueCapacity < 1 || maxFrames < 1) {
+      throw new IllegalArgumentException("Output queue must hold at least one snapshot and frame: " + queueCapacity + ", " + maxFrames);
+    }
+    this.weightRecorder = weightRecorder;
+    this.spikeRecorder = spikeRecorder;
+    this.numNeurons = numNeurons;
+    this.maxFrames = maxFrames;
+    queue = new ArrayBlockingQueue<>(queueCapacity);
+    freeFrames = new ArrayBlockingQueue<>(maxFrames);
+    flushed = new Semaphore(0);
+    outputThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeSnapshots();
+      }
+    }, "SORN-output");
+    outputThread.setDaemon(true);
+    outputThread.start();
+  }
+
+  @Override
+  public boolean shouldRecord(int t) {
+    return weightRecorder.shouldRecord(t);
+  }
+
+  @Override
+  public void record(int t, WeightMatrix weights) throws IOException {
+    checkFailure();
+    try {
+      WeightFrame frame = freeFrames.poll();
+      if (frame == null) {
+        if (numFrames < maxFrames) {
+          frame = new WeightFrame(numNeurons);
+          numFrames++;
+        } else {
+          frame = freeFrames.take(); // Waits for the output thread to finish with a frame
+        }
+      }
+      for (int i = 0; i < numNeurons; i++) {
+        weights.copyRow(i, frame.rows[i], 0);
+      }
+      queue.put(new Snapshot(t, frame, null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the output thread");
+    }
+  }
+
+  @Override
+  public void recordSpikes(int t, long[] pattern) throws IOException {
+    if (spikeRecorder == null) { return; }
+    checkFailure();
+    try {
+      queue.put(new Snapshot(t, null, pattern.clone()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the output thread");
+    }
+  }
+
+  /**
+   * Waits until every snapshot recorded so far has been written and the recorders have been flushed.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkFailure();
+    try {
+      queue.put(FLUSH);
+      flushed.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the output thread");
+    }
+    checkFailure();
+  }
+
+  /**
+   * Waits until every snapshot has been written and the recorders have been closed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) { return; }
+    closed = true;
+    try {
+      queue.put(END);
+      outputThread.join();
+    } catch (InterruptedException e) {
+      outputThread.interrupt();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the output thread");
+    }
+    checkFailure();
+  }
+
+  /**
+   * Body of the output thread.
+   */
+  private void writeSnapshots() {
+    try {
+      while (true) {
+        Snapshot snapshot = queue.take();
+        if (snapshot == END) { break; }
+        if (snapshot == FLUSH) {
+          flushRecorders();
+          flushed.release();
+          continue;
+        }
+        if (failure == null) {
+          try {
+            if (snapshot.weights != null) {
+              weightRecorder.record(snapshot.t, snapshot.weights);
+            } else {
+              spikeRecorder.recordSpikes(snapshot.t, snapshot.pattern);
+            }
+          } catch (Throwable e) {
+            failure = e;
+          }
+        }
+        if (snapshot.weights != null) {
+          freeFrames.add(snapshot.weights);
+        }
+      }
+      closeRecorders();
+    } catch (InterruptedException e) {
+      if (failure == null) { failure = e; }
+    }
+  }
+
+  /**
+   * Flushes both recorders (once each, even if they are the same object), unless one of them has
+   * already failed.
+   */
+  private void flushRecorders() {
+    if (failure != null) { return; }
+    try {
+      weightRecorder.flush();
+      if (spikeRecorder != null && spikeRecorder != weightRecorder) {
+        spikeRecorder.flush();
+      }
+    } catch (Throwable e) {
+      failure = e;
+    }
+  }
+
+  /**
+   * Closes both recorders (once each, even if they are the same object), even if one of them fails.
+   */
+  private void closeRecorders() {
+    try {
+      weightRecorder.close();
+    } catch (Throwable e) {
+      if (failure == null) { failure = e; }
+    }
+    if (spikeRecorder != null && spikeRecorder != weightRecorder) {
+      try {
+        spikeRecorder.close();
+      } catch (Throwable e) {
+        if (failure == null) { failure = e; }
+      }
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable cause = failure;
+    if (cause != null) {
+      throw new IOException("Writing output failed", cause);
+    }
+  }
+
+}
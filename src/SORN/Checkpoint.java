@@ -0,0 +1,541 @@
+package SORN;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A snapshot of the full state of a trial (see Trial.saveState()), and optionally of its
+ * NetworkStatistics, of the output it has collected for its .mat file (see MATFileRecorder) and of
+ * its ConvergenceDetector, from which the trial can be resumed, or from which any number of trials can
+ * be forked (e.g., several perturbations of one shared burn-in). Since RandomStream is counter-based,
+ * its state is just its key: a trial restored with its own RandomStream continues exactly (bit for
+ * bit) as the original would have, whereas one restored with another RandomStream (e.g., that of
+ * another trial index) diverges from it through its own noise.
+ *
+ * Checkpoints are written through a buffer to the file's channel, and read from memory-mapped
+ * windows of the file, with bulk copies of whole arrays, so that even large networks are
+ * checkpointed at about the speed of the disk. Each is first written under a temporary name, forced
+ * to disk, and then renamed, so that a crash while checkpointing leaves the previous checkpoint
+ * intact. Since nothing of the file being written is mapped, the rename is not held up by mappings
+ * that have yet to be garbage collected (which, e.g., on Windows, would make it fail).
+ *
+ * Layout (little-endian; version 2):
+ *   magic (long), version (int),
+ *   number of neurons (int), time step (int), RandomStream key (long), flags (int; see below),
+ *   parameters (int length, followed by that many bytes of UTF-8 "name=value" lines),
+ *   the trial's state (see Trial.saveState()),
+ *   if FLAG_RECORDED_OUTPUT is set, the length (long) of the recorded output's state, followed by
+ *   that state (see MATFileRecorder.saveState()),
+ *   if FLAG_CONVERGENCE is set, the length (long) of the convergence detector's state, followed by
+ *   that state (see ConvergenceDetector.saveState()), and,
+ *   if FLAG_STATISTICS is set, the statistics' state (see NetworkStatistics.saveState())
+ * A forked trial skips the recorded output and the convergence detector, since it starts its own.
+ *
+ * FLAG_STOPPED marks the checkpoint of a trial that was stopped before its duration (e.g., once it
+ * converged), which is therefore finished, and must not be resumed.
+ */
+final class Checkpoint {
+
+  private static final long MAGIC = 0x54504B434E524F53L; // "SORNCKPT", when read as little-endian bytes
+  private static final int VERSION = 2;
+
+  // Flags of the trial's configuration, which a restored trial keeps
+  private static final int FLAG_SPARSE_SYNAPSES = 1;
+  private static final int FLAG_SPIKE_TRACES = 2;
+  private static final int FLAG_TRUNCATED_SPIKE_TRACES = 4;
+  private static final int FLAG_STATISTICS = 8;
+  private static final int FLAG_OFF_HEAP_SYNAPSES = 16;
+  private static final int FLAG_FLOAT_WEIGHTS = 32; // Of off-heap synapses
+  private static final int FLAG_RECORDED_OUTPUT = 64;
+  private static final int FLAG_CONVERGENCE = 128;
+  private static final int FLAG_STOPPED = 256;
+
+  private final String filepath;
+  private final Parameters params;
+  private final int time;
+  private final long randomKey;
+  private final int flags;
+
+  private Checkpoint(String filepath, Parameters params, int time, long randomKey, int flags) {
+    this.filepath = filepath;
+    this.params = params;
+    this.time = time;
+    this.randomKey = randomKey;
+    this.flags = flags;
+  }
+
+  /**
+   * Writes a checkpoint of trial (and statistics, output and convergence, if they are not null) to
+   * filepath, replacing any previous checkpoint there.
+   *
+   * @param params parameters with which trial was created
+   * @param output recorder of the trial's .mat file, which must have collected the trial's output
+   *               up to its current time step, or null
+   * @param stopped whether trial was stopped at its current time step, before its duration
+   */
+  static void write(String filepath, Parameters params, Trial trial, NetworkStatistics statistics,
+                    MATFileRecorder output, ConvergenceDetector convergence, boolean stopped) throws IOException {
+    Network network = trial.getNetwork();
+    int flags = (network instanceof SparseNetwork ? FLAG_SPARSE_SYNAPSES : 0)
+        | (network instanceof OffHeapNetwork ? FLAG_OFF_HEAP_SYNAPSES : 0)
+        | (network instanceof OffHeapNetwork && ((OffHeapNetwork) network).isFloatPrecision() ? FLAG_FLOAT_WEIGHTS : 0)
+        | (trial.usesSpikeTraces() ? FLAG_SPIKE_TRACES : 0)
+        | (trial.truncatesSpikeTraces() ? FLAG_TRUNCATED_SPIKE_TRACES : 0)
+        | (statistics != null ? FLAG_STATISTICS : 0)
+        | (output != null ? FLAG_RECORDED_OUTPUT : 0)
+        | (convergence != null ? FLAG_CONVERGENCE : 0)
+        | (stopped ? FLAG_STOPPED : 0);
+    File file = new File(filepath);
+    File temporaryFile = new File(filepath + ".tmp");
+    try (Writer out = new Writer(temporaryFile)) {
+      out.putLong(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(params.numNeurons);
+      out.putInt(trial.getTime());
+      out.putLong(network.random.getKey());
+      out.putInt(flags);
+      byte[] paramBytes = params.toBytes();
+      out.putInt(paramBytes.length);
+      out.putBytes(paramBytes);
+      trial.saveState(out);
+      if (output != null) {
+        long outputBytes = output.stateBytes();
+        out.putLong(outputBytes);
+        long outputStart = out.getPosition();
+        output.saveState(out);
+        checkSectionBytes("Recorded output", outputBytes, out.getPosition() - outputStart);
+      }
+      if (convergence != null) {
+        long convergenceBytes = convergence.stateBytes();
+        out.putLong(convergenceBytes);
+        long convergenceStart = out.getPosition();
+        convergence.saveState(out);
+        checkSectionBytes("Convergence detector", convergenceBytes, out.getPosition() - convergenceStart);
+      }
+      if (statistics != null) {
+        statistics.saveState(out);
+      }
+    }
+    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void checkSectionBytes(String section, long expectedBytes, long numBytes) {
+    if (numBytes != expectedBytes) {
+      throw new IllegalStateException(section + " took " + numBytes + " bytes, not " + expectedBytes);
+    }
+  }
+
+  /**
+   * Reads the header of the checkpoint at filepath; its state is only read by restore().
+   *
+   * @throws IOException if the file is not a checkpoint of a supported version
+   */
+  static Checkpoint read(String filepath) throws IOException {
+    try (Reader in = new Reader(new File(filepath))) {
+      if (in.getLong() != MAGIC) {
+        throw new IOException(filepath + " is not a checkpoint");
+      }
+      int version = in.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version of checkpoint " + filepath + ": " + version);
+      }
+      int numNeurons = in.getInt();
+      int time = in.getInt();
+      long randomKey = in.getLong();
+      int flags = in.getInt();
+      Parameters params = Parameters.fromBytes(in.getBytes(in.getInt()));
+      if (params.numNeurons != numNeurons) {
+        throw new IOException("Checkpoint " + filepath + " is corrupt: " + numNeurons + " != " + params.numNeurons + " neurons");
+      }
+      return new Checkpoint(filepath, params, time, randomKey, flags);
+    }
+  }
+
+  /**
+   * @return the parameters with which the checkpointed trial was created
+   */
+  Parameters getParameters() { return params; }
+
+  /**
+   * @return the time step at which the checkpoint was taken
+   */
+  int getTime() { return time; }
+
+  /**
+   * @return the checkpointed trial's source of randomness
+   */
+  RandomStream getRandom() { return RandomStream.withKey(randomKey); }
+
+  boolean hasStatistics() { return (flags & FLAG_STATISTICS) != 0; }
+
+  boolean hasRecordedOutput() { return (flags & FLAG_RECORDED_OUTPUT) != 0; }
+
+  boolean hasConvergence() { return (flags & FLAG_CONVERGENCE) != 0; }
+
+  /**
+   * @return whether the trial was stopped at the checkpoint's time step, before its duration (and
+   *         must therefore not be resumed)
+   */
+  boolean isStopped() { return (flags & FLAG_STOPPED) != 0; }
+
+  /**
+   * Restores the checkpointed trial (and, if statistics, output and convergence are not null, its
+   * statistics, recorded output and convergence detector). The restored
+   * trial keeps the checkpointed trial's STDP rule, but takes its learning rates and other constants
+   * from params, which may therefore differ from getParameters(), except in the parameters that
+   * shape the trial's state (numNeurons, memory and decayRate).
+   *
+   * @param random the restored trial's source of randomness (getRandom(), to resume the trial)
+   * @param storage storage of the restored trial's weights, which must be of the same kind (dense,
+   *                sparse or off-heap, and of the same precision) as the checkpointed trial's
+   * @param statistics statistics to restore (created with the same numNeurons), or null
+   * @param output recorder into which to restore the recorded output (created with the checkpoint's
+   *               time step as its first step, to resume the trial), or null
+   * @param convergence detector to restore (created with the same number of sampled rows, to resume
+   *                    the trial), or null
+   * @throws IllegalArgumentException if params or storage are incompatible with the checkpoint, or
+   *                                  statistics, output or convergence are requested but were not
+   *                                  checkpointed
+   */
+  Trial restore(Parameters params, RandomStream random, WeightStorage storage, boolean eventDrivenPropagation,
+                int stepThreads, NetworkStatistics statistics, MATFileRecorder output,
+                ConvergenceDetector convergence) throws IOException {
+    if (params.numNeurons != this.params.numNeurons || params.memory != this.params.memory
+        || params.decayRate != this.params.decayRate) {
+      throw new IllegalArgumentException("Checkpoint " + filepath + " has " + this.params.numNeurons + " neurons, memory "
+          + this.params.memory + " and decay rate " + this.params.decayRate + ", not " + params.numNeurons + ", "
+          + params.memory + " and " + params.decayRate);
+    }
+    if (storage.isSparse() != ((flags & FLAG_SPARSE_SYNAPSES) != 0) || storage.isOffHeap() != ((flags & FLAG_OFF_HEAP_SYNAPSES) != 0)
+        || storage.isFloatPrecision() != ((flags & FLAG_FLOAT_WEIGHTS) != 0)) {
+      throw new IllegalArgumentException("Checkpoint " + filepath + " cannot be restored into " + storage + " weights");
+    }
+    if (statistics != null && !hasStatistics()) {
+      throw new IllegalArgumentException("Checkpoint " + filepath + " has no statistics");
+    }
+    if (output != null && !hasRecordedOutput()) {
+      throw new IllegalArgumentException("Checkpoint " + filepath + " has no recorded output");
+    }
+    if (convergence != null && !hasConvergence()) {
+      throw new IllegalArgumentException("Checkpoint " + filepath + " has no convergence detector");
+    }
+    Trial trial = new Trial(params, random, storage, eventDrivenPropagation,
+        (flags & FLAG_SPIKE_TRACES) != 0, (flags & FLAG_TRUNCATED_SPIKE_TRACES) != 0, stepThreads);
+    try (Reader in = new Reader(new File(filepath))) {
+      in.getLong(); // Skips the header, which read() has checked
+      in.getInt();
+      in.getInt();
+      in.getInt();
+      in.getLong();
+      in.getInt();
+      in.getBytes(in.getInt());
+      trial.restoreState(in);
+      if (hasRecordedOutput()) {
+        long outputBytes = in.getLong();
+        if (output != null) {
+          output.restoreState(in);
+        } else {
+          in.skip(outputBytes);
+        }
+      }
+      if (hasConvergence()) {
+        long convergenceBytes = in.getLong();
+        if (convergence != null) {
+          convergence.restoreState(in);
+        } else {
+          in.skip(convergenceBytes);
+        }
+      }
+      if (statistics != null) {
+        statistics.restoreState(in);
+      }
+    } catch (IOException | RuntimeException e) {
+      trial.close();
+      throw e;
+    }
+    return trial;
+  }
+
+  /**
+   * Writes a checkpoint through a buffer, which is written to the file's channel whenever it fills
+   * up, and when the Writer is closed (after which the file is forced to disk).
+   */
+  static final class Writer implements Closeable {
+
+    private static final int WINDOW_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer window; // Bytes not yet written to channel
+    private long windowStart; // Position of window in the file
+
+    private Writer(File file) throws IOException {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      window = ByteBuffer.allocate(WINDOW_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    long getPosition() {
+      return windowStart + window.position();
+    }
+
+    void putInt(int value) throws IOException {
+      reserve(4);
+      window.putInt(value);
+    }
+
+    void putLong(long value) throws IOException {
+      reserve(8);
+      window.putLong(value);
+    }
+
+    void putDouble(double value) throws IOException {
+      reserve(8);
+      window.putDouble(value);
+    }
+
+    void putBytes(byte[] values) throws IOException {
+      int offset = 0;
+      while (offset < values.length) {
+        reserve(1);
+        int length = Math.min(values.length - offset, window.remaining());
+        window.put(values, offset, length);
+        offset += length;
+      }
+    }
+
+    /**
+     * Writes the bytes of values from its position to its limit (without moving its position).
+     */
+    void putBuffer(ByteBuffer values) throws IOException {
+      ByteBuffer remaining = values.duplicate();
+      while (remaining.hasRemaining()) {
+        reserve(1);
+        ByteBuffer part = remaining.duplicate();
+        part.limit(part.position() + Math.min(remaining.remaining(), window.remaining()));
+        window.put(part);
+        remaining.position(part.position());
+      }
+    }
+
+    void putInts(int[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(4);
+        int numPut = Math.min(length, window.remaining() / 4);
+        window.asIntBuffer().put(values, offset, numPut);
+        window.position(window.position() + 4 * numPut);
+        offset += numPut;
+        length -= numPut;
+      }
+    }
+
+    void putLongs(long[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(8);
+        int numPut = Math.min(length, window.remaining() / 8);
+        window.asLongBuffer().put(values, offset, numPut);
+        window.position(window.position() + 8 * numPut);
+        offset += numPut;
+        length -= numPut;
+      }
+    }
+
+    void putDoubles(double[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(8);
+        int numPut = Math.min(length, window.remaining() / 8);
+        window.asDoubleBuffer().put(values, offset, numPut);
+        window.position(window.position() + 8 * numPut);
+        offset += numPut;
+        length -= numPut;
+      }
+    }
+
+    /**
+     * Writes the window to the file, unless it has at least numBytes left.
+     */
+    private void reserve(int numBytes) throws IOException {
+      if (window.remaining() >= numBytes) { return; }
+      writeWindow();
+    }
+
+    private void writeWindow() throws IOException {
+      window.flip();
+      while (window.hasRemaining()) {
+        channel.write(window);
+      }
+      windowStart += window.limit();
+      window.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        writeWindow();
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    }
+
+  }
+
+  /**
+   * Reads a checkpoint through successive read-only memory-mapped windows of a file, each of which
+   * is unmapped as soon as the next is mapped.
+   */
+  static final class Reader implements Closeable {
+
+    private static final int WINDOW_BYTES = 64 << 20;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart; // Position of window in the file
+
+    private Reader(File file) throws IOException {
+      this.file = file;
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      size = channel.size();
+    }
+
+    int getInt() throws IOException {
+      reserve(4);
+      return window.getInt();
+    }
+
+    long getLong() throws IOException {
+      reserve(8);
+      return window.getLong();
+    }
+
+    double getDouble() throws IOException {
+      reserve(8);
+      return window.getDouble();
+    }
+
+    byte[] getBytes(int length) throws IOException {
+      if (length < 0) {
+        throw new IOException("Checkpoint " + file + " is corrupt: negative length " + length);
+      }
+      byte[] values = new byte[length];
+      int offset = 0;
+      while (offset < length) {
+        reserve(1);
+        int numGot = Math.min(length - offset, window.remaining());
+        window.get(values, offset, numGot);
+        offset += numGot;
+      }
+      return values;
+    }
+
+    /**
+     * Fills destination from its position to its limit.
+     */
+    void getBuffer(ByteBuffer destination) throws IOException {
+      while (destination.hasRemaining()) {
+        reserve(1);
+        ByteBuffer part = window.duplicate();
+        part.limit(part.position() + Math.min(destination.remaining(), window.remaining()));
+        destination.put(part);
+        window.position(part.position());
+      }
+    }
+
+    void getInts(int[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(4);
+        int numGot = Math.min(length, window.remaining() / 4);
+        window.asIntBuffer().get(values, offset, numGot);
+        window.position(window.position() + 4 * numGot);
+        offset += numGot;
+        length -= numGot;
+      }
+    }
+
+    void getLongs(long[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(8);
+        int numGot = Math.min(length, window.remaining() / 8);
+        window.asLongBuffer().get(values, offset, numGot);
+        window.position(window.position() + 8 * numGot);
+        offset += numGot;
+        length -= numGot;
+      }
+    }
+
+    void getDoubles(double[] values, int offset, int length) throws IOException {
+      while (length > 0) {
+        reserve(8);
+        int numGot = Math.min(length, window.remaining() / 8);
+        window.asDoubleBuffer().get(values, offset, numGot);
+        window.position(window.position() + 8 * numGot);
+        offset += numGot;
+        length -= numGot;
+      }
+    }
+
+    /**
+     * Skips the next numBytes bytes.
+     */
+    void skip(long numBytes) throws IOException {
+      long position = ((window == null) ? 0L : windowStart + window.position()) + numBytes;
+      if (numBytes < 0 || position > size) {
+        throw new IOException("Checkpoint " + file + " is truncated");
+      }
+      map(position);
+    }
+
+    /**
+     * Maps the next window, unless the current one has at least numBytes left.
+     *
+     * @throws IOException if fewer than numBytes are left in the file
+     */
+    private void reserve(int numBytes) throws IOException {
+      if (window != null && window.remaining() >= numBytes) { return; }
+      long position = (window == null) ? 0L : windowStart + window.position();
+      if (size - position < numBytes) {
+        throw new IOException("Checkpoint " + file + " is truncated");
+      }
+      map(position);
+    }
+
+    /**
+     * Unmaps the current window (if any), and maps the one that starts at position.
+     */
+    private void map(long position) throws IOException {
+      if (window != null) {
+        WeightStore.free(window);
+        window = null;
+      }
+      window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+      window.order(ByteOrder.LITTLE_ENDIAN);
+      windowStart = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (window != null) {
+          WeightStore.free(window); // So that the checkpoint can be replaced right away
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+  }
+
+}
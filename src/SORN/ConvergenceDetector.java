@@ -0,0 +1,234 @@
+package SORN;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Watches a trial for a steady state while it runs, so that it can be stopped early, or recorded
+ * at a sparser cadence, once the rest of it would add little information. Every windowSteps time
+ * steps, check() measures the window since the previous check:
+ *   1) the firing rate (the fraction of neurons firing, averaged over the window), which must be
+ *      within firingRateTolerance of Parameters.targetFiringRate (which intrinsic plasticity
+ *      drives it towards),
+ *   2) the weight change (the L1 norm of the change in the weights over the window, relative to the
+ *      L1 norm of the weights at its start),
+ *   3) the density (the fraction of the numNeurons * (numNeurons - 1) possible synapses that exist),
+ *      and
+ *   4) the mean L1 norm of the rows of weights (which synaptic normalization keeps near
+ *      Parameters.targetL1Norm),
+ * of which the last three must each have changed by at most their tolerance (relative to their
+ * value in the previous window). Even in the steady state, STDP and structural plasticity keep
+ * turning the weights over (with the default parameters, a window of 100 time steps changes them
+ * by more than their L1 norm), so the weight change settles at a constant rate, rather than at
+ * zero. The trial has converged once all
+ * four hold in stableWindows consecutive windows; it then stays converged.
+ *
+ * So that checks cost O(numNeurons) memory and time per sampled row, rather than a copy of the
+ * whole weight matrix, the weight change and L1 norms are measured on (at most) numSampledRows
+ * rows, spread evenly over the network.
+ *
+ * The detector's state is saved with the trial's checkpoints (see saveState()), so that a resumed
+ * trial converges (or has converged) at the same time step as if it had never been interrupted.
+ */
+final class ConvergenceDetector {
+
+  private final int numNeurons;
+  private final int windowSteps; // Check every windowSteps-th time step
+  private final int stableWindows; // Consecutive steady windows needed to converge
+  private final double targetFiringRate;
+  private final double firingRateTolerance;
+  private final double weightChangeTolerance;
+  private final double densityTolerance;
+  private final double l1NormTolerance;
+
+  // Copies of the sampled rows of weights at the previous check
+  private final int[] sampledRows;
+  private final double[] snapshot;
+  private final double[] row;
+
+  private long numSpikes; // Spikes since the previous check
+  private int numSpikeSteps; // Time steps since the previous check
+  private int numChecks; // The first check only takes the state from which the first window is measured
+  private double previousWeightChange;
+  private double previousDensity;
+  private double previousL1Norm;
+  private int numStableWindows; // Consecutive steady windows so far
+
+  private int convergenceTime = -1; // Time step at which the trial converged, or -1
+  private String reason;
+
+  /**
+   * @param params parameters of the simulation, including the number of neurons and the target
+   *               firing rate
+   * @param windowSteps check every windowSteps time steps
+   * @param stableWindows number of consecutive steady windows after which the trial has converged
+   * @param numSampledRows (maximum) number of rows of weights on which to measure the weight change
+   *                       and L1 norms
+   */
+  ConvergenceDetector(Parameters params, int windowSteps, int stableWindows, int numSampledRows,
+                      double firingRateTolerance, double weightChangeTolerance, double densityTolerance,
+                      double l1NormTolerance) {
+    if (windowSteps < 1) {
+      throw new IllegalArgumentException("Convergence windows must contain at least one time step: " + windowSteps);
+    }
+    if (stableWindows < 1 || numSampledRows < 1) {
+      throw new IllegalArgumentException("Convergence needs at least one window and one row: " + stableWindows
+          + ", " + numSampledRows);
+    }
+    numNeurons = params.numNeurons;
+    this.windowSteps = windowSteps;
+    this.stableWindows = stableWindows;
+    targetFiringRate = params.targetFiringRate;
+    this.firingRateTolerance = firingRateTolerance;
+    this.weightChangeTolerance = weightChangeTolerance;
+    this.densityTolerance = densityTolerance;
+    this.l1NormTolerance = l1NormTolerance;
+
+    sampledRows = new int[Math.min(numSampledRows, numNeurons)];
+    for (int k = 0; k < sampledRows.length; k++) {
+      sampledRows[k] = (int) ((long) k * numNeurons / sampledRows.length);
+    }
+    snapshot = new double[sampledRows.length * numNeurons];
+    row = new double[numNeurons];
+  }
+
+  /**
+   * Must be called once for every time step after the first check(), with the number of neurons
+   * that fired in it.
+   */
+  void countSpikes(int numFired) {
+    numSpikes += numFired;
+    numSpikeSteps++;
+  }
+
+  /**
+   * @return true if and only if the state at time t should be passed to check()
+   */
+  boolean shouldCheck(int t) {
+    return convergenceTime < 0 && t % windowSteps == 0;
+  }
+
+  /**
+   * Measures the window since the previous check, or, at the first check, only takes the state from
+   * which the first window is measured.
+   *
+   * @param numSynapses number of synapses of the network (see Network.getNumSynapses())
+   * @return true if and only if the trial has just converged (see getReason())
+   */
+  boolean check(int t, WeightMatrix weights, long numSynapses) {
+    double density = (numNeurons < 2) ? 0.0 : ((double) numSynapses) / ((double) numNeurons * (numNeurons - 1));
+    double absoluteChange = 0.0;
+    double previousSum = 0.0;
+    double sum = 0.0;
+    for (int k = 0; k < sampledRows.length; k++) {
+      weights.copyRow(sampledRows[k], row, 0);
+      int offset = k * numNeurons;
+      for (int j = 0; j < numNeurons; j++) {
+        absoluteChange += Math.abs(row[j] - snapshot[offset + j]);
+        previousSum += snapshot[offset + j];
+        sum += row[j];
+        snapshot[offset + j] = row[j];
+      }
+    }
+    double l1Norm = sum / sampledRows.length;
+    double firingRate = (numSpikeSteps == 0) ? 0.0 : ((double) numSpikes) / ((double) numNeurons * numSpikeSteps);
+    double weightChange = (previousSum > 0.0) ? absoluteChange / previousSum : 0.0;
+
+    // The first window has no previous window to compare with
+    boolean steady = numChecks > 1
+        && Math.abs(firingRate - targetFiringRate) <= firingRateTolerance
+        && Math.abs(weightChange - previousWeightChange) <= weightChangeTolerance * previousWeightChange
+        && Math.abs(density - previousDensity) <= densityTolerance * previousDensity
+        && Math.abs(l1Norm - previousL1Norm) <= l1NormTolerance * previousL1Norm;
+    numStableWindows = steady ? numStableWindows + 1 : 0;
+    if (numStableWindows >= stableWindows) {
+      convergenceTime = t;
+      reason = String.format(Locale.ROOT, "steady for %d windows of %d steps: firing rate %.4f (target %.4f), "
+              + "weight change %.4f (previously %.4f), density %.4f (previously %.4f), "
+              + "mean L1 norm %.5f (previously %.5f)",
+          numStableWindows, windowSteps, firingRate, targetFiringRate, weightChange, previousWeightChange,
+          density, previousDensity, l1Norm, previousL1Norm);
+    }
+
+    numChecks++;
+    previousWeightChange = weightChange;
+    previousDensity = density;
+    previousL1Norm = l1Norm;
+    numSpikes = 0;
+    numSpikeSteps = 0;
+    return convergenceTime == t;
+  }
+
+  /**
+   * @return number of bytes written by saveState()
+   */
+  long stateBytes() {
+    return 4 + 8L * snapshot.length + 8 + 4 + 4 + 3 * 8 + 4 + 4 + 4 + ((reason == null) ? 0 : reasonBytes().length);
+  }
+
+  /**
+   * Writes the state of the current window (and whether, when and why the trial converged) to a
+   * checkpoint (see Checkpoint).
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putInt(sampledRows.length);
+    out.putDoubles(snapshot, 0, snapshot.length);
+    out.putLong(numSpikes);
+    out.putInt(numSpikeSteps);
+    out.putInt(numChecks);
+    out.putDouble(previousWeightChange);
+    out.putDouble(previousDensity);
+    out.putDouble(previousL1Norm);
+    out.putInt(numStableWindows);
+    out.putInt(convergenceTime);
+    if (reason == null) {
+      out.putInt(-1);
+    } else {
+      byte[] reasonBytes = reasonBytes();
+      out.putInt(reasonBytes.length);
+      out.putBytes(reasonBytes);
+    }
+  }
+
+  /**
+   * Replaces the detector's state with that written by saveState().
+   *
+   * @throws IOException if the checkpointed detector sampled a different number of rows
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    int numSampledRows = in.getInt();
+    if (numSampledRows != sampledRows.length) {
+      throw new IOException("Checkpointed convergence detector samples " + numSampledRows + " rows, not "
+          + sampledRows.length);
+    }
+    in.getDoubles(snapshot, 0, snapshot.length);
+    numSpikes = in.getLong();
+    numSpikeSteps = in.getInt();
+    numChecks = in.getInt();
+    previousWeightChange = in.getDouble();
+    previousDensity = in.getDouble();
+    previousL1Norm = in.getDouble();
+    numStableWindows = in.getInt();
+    convergenceTime = in.getInt();
+    int reasonLength = in.getInt();
+    reason = (reasonLength < 0) ? null : new String(in.getBytes(reasonLength), StandardCharsets.UTF_8);
+  }
+
+  private byte[] reasonBytes() {
+    return reason.getBytes(StandardCharsets.UTF_8);
+  }
+
+  boolean isConverged() { return convergenceTime >= 0; }
+
+  /**
+   * @return time step at which the trial converged, or -1 if it has not
+   */
+  int getConvergenceTime() { return convergenceTime; }
+
+  /**
+   * @return the measurements of the last window before the trial converged, or null if it has not
+   */
+  String getReason() { return reason; }
+
+}
@@ -0,0 +1,333 @@
+package SORN;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Network whose weights are stored as a single contiguous, row-major weight matrix, plus a bit set
+ * of each neuron's zero inputs (for structural plasticity). Memory use grows with numNeurons^2, so
+ * SparseNetwork is preferable for large networks.
+ *
+ * A DenseNetwork may store only a range of rows (i.e., the inputs of a range of neurons), as one
+ * shard of a network that is split across processes (see ShardWorker); only the neurons in that
+ * range may then be passed to the methods that access weights, or to the update rules.
+ */
+class DenseNetwork extends Network {
+
+  private final int firstRow; // Neurons firstRow, ..., endRow - 1 are stored
+  private final int endRow;
+  private final double[] weights; // weights[(i - firstRow) * numNeurons + j] is the weight of the input from j to i
+
+  // Bit (j % 64) of zeroInputs[(i - firstRow) * numWords + j / 64] is set if and only if j != i
+  // and the weight of the input from j to i is zero (packed as in SpikeHistory), and numZeroInputs[i]
+  // is the number of set bits of row i
+  private final int numWords;
+  private final long[] zeroInputs;
+  private final int[] numZeroInputs;
+
+  /**
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   */
+  DenseNetwork(Parameters params, RandomStream random) {
+    this(params, random, 0, params.numNeurons);
+  }
+
+  /**
+   * Stores only the rows of neurons firstRow, ..., endRow - 1, whose initial weights are those of
+   * the whole network's.
+   *
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   */
+  DenseNetwork(Parameters params, RandomStream random, int firstRow, int endRow) {
+    super(params, random);
+    if (firstRow < 0 || endRow > numNeurons || firstRow > endRow) {
+      throw new IllegalArgumentException("Invalid rows " + firstRow + "-" + endRow + " of " + numNeurons + " neurons");
+    }
+    if ((long) (endRow - firstRow) * numNeurons > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many neurons for a dense weight matrix: " + numNeurons);
+    }
+    this.firstRow = firstRow;
+    this.endRow = endRow;
+    weights = new double[(endRow - firstRow) * numNeurons];
+    numWords = SpikeHistory.numWordsFor(numNeurons);
+    zeroInputs = new long[(endRow - firstRow) * numWords];
+    numZeroInputs = new int[numNeurons];
+
+    for (int i = firstRow; i < endRow; i++) {
+      l1Norms[i] = initialWeightsIn(i, weights, (i - firstRow) * numNeurons);
+      rebuildZeroInputs(i);
+    }
+  }
+
+  @Override
+  double getWeight(int i, int j) {
+    return weights[(i - firstRow) * numNeurons + j];
+  }
+
+  /**
+   * @return the (live) row-major weight matrix, in which entry i * numNeurons + j is the weight of
+   *         the input from neuron j to neuron i (if all rows are stored); this must not be modified
+   */
+  double[] getWeights() { return weights; }
+
+  @Override
+  public void copyRow(int i, double[] destination, int offset) {
+    System.arraycopy(weights, (i - firstRow) * numNeurons, destination, offset, numNeurons);
+  }
+
+  @Override
+  void copyWeights(double[] destination) {
+    System.arraycopy(weights, 0, destination, 0, weights.length);
+  }
+
+  @Override
+  long getNumSynapses() {
+    long numSynapses = 0;
+    for (int i = firstRow; i < endRow; i++) {
+      numSynapses += numNeurons - 1 - numZeroInputs[i];
+    }
+    return numSynapses;
+  }
+
+  @Override
+  public int copyInputs(int i, int[] indices, double[] weights, int offset) {
+    int rowStart = (i - firstRow) * numNeurons;
+    int numInputs = 0;
+    for (int j = 0; j < numNeurons; j++) {
+      if (this.weights[rowStart + j] >= Double.MIN_VALUE) {
+        indices[offset + numInputs] = j;
+        weights[offset + numInputs] = this.weights[rowStart + j];
+        numInputs++;
+      }
+    }
+    return numInputs;
+  }
+
+  @Override
+  boolean shouldFire(int i, boolean[] fired, double noise) {
+    double weightedSum = Kernels.SELECTED.maskedSum(weights, (i - firstRow) * numNeurons, fired, numNeurons);
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  /**
+   * Since the spiking neurons are visited in increasing order, the weighted sum is identical to
+   * that of shouldFire(int, boolean[], double).
+   */
+  @Override
+  boolean shouldFire(int i, int[] active, int numActive, double noise) {
+    int rowStart = (i - firstRow) * numNeurons;
+    double weightedSum = 0.0;
+    for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+      weightedSum += weights[rowStart + active[activeIdx]];
+    }
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  @Override
+  void excitatorySTDP(int i, SpikeHistory history, int t) {
+    int rowStart = (i - firstRow) * numNeurons;
+    int zeroStart = (i - firstRow) * numWords;
+    long[] words = history.getWords();
+    int nowOffset = history.getOffset(t);
+    boolean firedNow = history.fired(t, i);
+    for (int delay = 1; delay <= Math.min(memory, t); delay++) {
+      double additiveDelta = etaSTDP * Math.pow(decayRate, delay - 1);
+      int thenOffset = history.getOffset(t - delay);
+      boolean firedThen = history.fired(t - delay, i);
+      for (int wordIdx = 0; wordIdx < history.getNumWords(); wordIdx++) {
+        // Inputs that fired then (if i fired now) are potentiated, and inputs that fire now (if i
+        // fired then) are depressed; only the set bits of these masks are visited. Depressing a
+        // zero weight leaves it zero, so the pattern of now is ANDed with the row's synapses (which
+        // include the inputs potentiated just before)
+        long potentiated = firedNow ? words[thenOffset + wordIdx] : 0L;
+        long depressed = firedThen ? words[nowOffset + wordIdx] & (potentiated | ~zeroInputs[zeroStart + wordIdx]) : 0L;
+        long visited = potentiated | depressed;
+        while (visited != 0L) {
+          int bit = Long.numberOfTrailingZeros(visited);
+          visited &= visited - 1L;
+          int j = (wordIdx << 6) + bit;
+          if (j == i) { continue; } // No self-loops
+          if ((potentiated & (1L << bit)) != 0L) {
+            weights[rowStart + j] += additiveDelta; // Additive increase
+            l1Norms[i] += additiveDelta;
+            removeZeroInput(i, j);
+          }
+          if ((depressed & (1L << bit)) != 0L) {
+            // Additive decrease, with minimum value 0.0
+            double decreasedWeight = Math.max(weights[rowStart + j] - additiveDelta, 0.0);
+            l1Norms[i] += decreasedWeight - weights[rowStart + j];
+            weights[rowStart + j] = decreasedWeight;
+            if (decreasedWeight < Double.MIN_VALUE) { addZeroInput(i, j); }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Each call costs O(numNeurons) if neuron i fired and O(numActive) otherwise.
+   */
+  @Override
+  void excitatorySTDP(int i, double[] trace, boolean[] firedNow, int[] active, int numActive) {
+    int rowStart = (i - firstRow) * numNeurons;
+    if (firedNow[i]) {
+      // Additive increase (with no self-loop), and then removal of the inputs that it made non-zero
+      double traceSum = Kernels.SELECTED.addScaled(weights, rowStart, trace, etaSTDP, numNeurons, i);
+      l1Norms[i] += etaSTDP * traceSum;
+      int zeroStart = (i - firstRow) * numWords;
+      for (int wordIdx = 0; wordIdx < numWords; wordIdx++) {
+        long zeros = zeroInputs[zeroStart + wordIdx];
+        while (zeros != 0L) {
+          int j = (wordIdx << 6) + Long.numberOfTrailingZeros(zeros);
+          zeros &= zeros - 1L;
+          if (weights[rowStart + j] >= Double.MIN_VALUE) {
+            removeZeroInput(i, j); // (j != i, since i is never a zero input)
+          }
+        }
+      }
+    }
+    double subtractiveDelta = etaSTDP * trace[i];
+    if (subtractiveDelta > 0.0) {
+      for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+        int j = active[activeIdx];
+        if (j == i) { continue; } // No self-loops
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = Math.max(weights[rowStart + j] - subtractiveDelta, 0.0);
+        l1Norms[i] += decreasedWeight - weights[rowStart + j];
+        weights[rowStart + j] = decreasedWeight;
+        if (decreasedWeight < Double.MIN_VALUE) { addZeroInput(i, j); }
+      }
+    }
+  }
+
+  @Override
+  void excitatorySTDP(int i, boolean[] firedPreviously, boolean[] firedNow) {
+    int rowStart = (i - firstRow) * numNeurons;
+    for (int j = 0; j < numNeurons; j++) {
+
+      if (weights[rowStart + j] < Double.MIN_VALUE) continue; // STDP only occurs between connected neurons
+
+      if (firedPreviously[j] && firedNow[i]) {
+        weights[rowStart + j] += etaSTDP; // Additive increase
+        l1Norms[i] += etaSTDP;
+      }
+      if (firedPreviously[i] && firedNow[j]) {
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = Math.max(weights[rowStart + j] - etaSTDP, 0.0);
+        l1Norms[i] += decreasedWeight - weights[rowStart + j];
+        weights[rowStart + j] = decreasedWeight;
+        if (decreasedWeight < Double.MIN_VALUE) { addZeroInput(i, j); }
+      }
+    }
+  }
+
+  @Override
+  boolean synapticNormalization(int i, double[] scratch) {
+    if (l1Norms[i] <= targetL1Norm * (1.0 - L1_NORM_SLACK)) { return false; } // L1 constraint already satisfied
+    // The projection recomputes the L1 norm exactly, which also discards accumulated round-off
+    l1Norms[i] = Util.projectWeightsInL1(weights, (i - firstRow) * numNeurons, numNeurons, targetL1Norm, scratch);
+    rebuildZeroInputs(i); // Soft-thresholding may have zeroed many weights
+    return true;
+  }
+
+  /**
+   * Walks down the zero inputs, in decreasing order, jumping directly from one new connection to the
+   * next (see sampleStructuralSkip()); the new connections are the same as those of SparseNetwork
+   * and OffHeapNetwork, which walk down the missing inputs in the same order. The walk skips whole
+   * words of the bit set by their popcounts, so it needs no scratch space, and costs O(numNeurons /
+   * 64) plus O(1) per new connection.
+   */
+  @Override
+  void structuralPlasticity(int i, int t, int[] scratch) {
+    int rowStart = (i - firstRow) * numNeurons;
+    int zeroStart = (i - firstRow) * numWords;
+    int numZeros = numZeroInputs[i];
+    int position = numZeros;
+    int wordIdx = numWords; // Word of the bit set that the walk has reached
+    long word = 0L; // Bits of that word below the walk
+    int numAbove = 0; // Zero inputs (as of the start of the walk) above the bits in word
+    int drawIdx = 0;
+    while (true) {
+      double skipped = sampleStructuralSkip(i, t, drawIdx); // Zero inputs skipped before the next new connection
+      drawIdx++;
+      if (!(skipped < position)) { break; } // Also stops if logNoNewConnection == 0.0
+      position -= (int) skipped + 1;
+      // The new connection is the position^th zero input (in increasing order), above which there
+      // are numZeros - 1 - position others
+      int numSkippedAbove = numZeros - 1 - position;
+      while (numAbove + Long.bitCount(word) <= numSkippedAbove) {
+        numAbove += Long.bitCount(word);
+        wordIdx--;
+        word = zeroInputs[zeroStart + wordIdx];
+      }
+      for (; numAbove < numSkippedAbove; numAbove++) {
+        word ^= Long.highestOneBit(word);
+      }
+      long bit = Long.highestOneBit(word);
+      word ^= bit;
+      numAbove++;
+      int j = (wordIdx << 6) + Long.numberOfTrailingZeros(bit);
+      weights[rowStart + j] = newStructuralConnectionWeight;
+      l1Norms[i] += newStructuralConnectionWeight;
+      removeZeroInput(i, j);
+    }
+  }
+
+  /**
+   * The bit sets of zero inputs are not written, since they are determined by the weights.
+   */
+  @Override
+  void saveState(Checkpoint.Writer out) throws IOException {
+    super.saveState(out);
+    out.putDoubles(weights, 0, weights.length);
+  }
+
+  @Override
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    super.restoreState(in);
+    in.getDoubles(weights, 0, weights.length);
+    for (int i = firstRow; i < endRow; i++) {
+      rebuildZeroInputs(i);
+    }
+  }
+
+  /**
+   * Recomputes the bit set of neuron i's zero input weights by scanning its row of weights.
+   */
+  private void rebuildZeroInputs(int i) {
+    int rowStart = (i - firstRow) * numNeurons;
+    int zeroStart = (i - firstRow) * numWords;
+    Arrays.fill(zeroInputs, zeroStart, zeroStart + numWords, 0L);
+    int numZeros = 0;
+    for (int j = 0; j < numNeurons; j++) {
+      if (j != i && weights[rowStart + j] < Double.MIN_VALUE) {
+        zeroInputs[zeroStart + (j >>> 6)] |= 1L << j;
+        numZeros++;
+      }
+    }
+    numZeroInputs[i] = numZeros;
+  }
+
+  /**
+   * Adds j to the bit set of neuron i's zero input weights, if it is not already there.
+   */
+  private void addZeroInput(int i, int j) {
+    int wordIdx = (i - firstRow) * numWords + (j >>> 6);
+    if ((zeroInputs[wordIdx] & (1L << j)) != 0L) { return; }
+    zeroInputs[wordIdx] |= 1L << j;
+    numZeroInputs[i]++;
+  }
+
+  /**
+   * Removes j from the bit set of neuron i's zero input weights, if it is there.
+   */
+  private void removeZeroInput(int i, int j) {
+    int wordIdx = (i - firstRow) * numWords + (j >>> 6);
+    if ((zeroInputs[wordIdx] & (1L << j)) == 0L) { return; }
+    zeroInputs[wordIdx] &= ~(1L << j);
+    numZeroInputs[i]--;
+  }
+
+}
@@ -0,0 +1,112 @@
+package SORN;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Keeps (copies of) recorded weight snapshots in memory, e.g., for writing into a .mat file at the
+ * end of a trial. Memory use grows with (duration / recordEvery) * numNeurons^2, so this should
+ * only be used for small networks, short trials, or sparse recording cadences.
+ */
+class InMemoryWeightRecorder implements WeightRecorder {
+
+  private final int numNeurons;
+  private final int frameSize; // numNeurons^2 weights per frame
+  private final int recordEvery; // Record every recordEvery-th time step
+  private final ArrayList<double[]> frames; // Row-major copies of the weight matrix
+  private final ArrayList<Integer> times;
+
+  InMemoryWeightRecorder(int numNeurons, int recordEvery) {
+    if (recordEvery < 1) {
+      throw new IllegalArgumentException("Recording cadence must be positive: " + recordEvery);
+    }
+    if ((long) numNeurons * numNeurons > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many neurons to keep weight frames in memory: " + numNeurons
+          + " (a frame has " + (long) numNeurons * numNeurons + " weights, more than fit in an array)");
+    }
+    this.numNeurons = numNeurons;
+    frameSize = numNeurons * numNeurons;
+    this.recordEvery = recordEvery;
+    frames = new ArrayList<>();
+    times = new ArrayList<>();
+  }
+
+  @Override
+  public boolean shouldRecord(int t) {
+    return t % recordEvery == 0;
+  }
+
+  @Override
+  public void record(int t, WeightMatrix weights) {
+    double[] frame = new double[frameSize];
+    for (int i = 0; i < numNeurons; i++) {
+      weights.copyRow(i, frame, i * numNeurons);
+    }
+    frames.add(frame);
+    times.add(t);
+  }
+
+  @Override
+  public void flush() { } // The frames are saved with the trial's checkpoints instead (see saveState())
+
+  @Override
+  public void close() { }
+
+  /**
+   * @return number of bytes written by saveState()
+   */
+  long stateBytes() {
+    return 4 + frames.size() * (4 + 8L * frameSize);
+  }
+
+  /**
+   * Writes the snapshots recorded so far to a checkpoint (see Checkpoint).
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putInt(frames.size());
+    for (int f = 0; f < frames.size(); f++) {
+      out.putInt(times.get(f));
+      out.putDoubles(frames.get(f), 0, frameSize);
+    }
+  }
+
+  /**
+   * Replaces the recorded snapshots with those written by saveState().
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    int numFrames = in.getInt();
+    if (numFrames < 0) {
+      throw new IOException("Checkpointed weights have " + numFrames + " frames");
+    }
+    frames.clear();
+    times.clear();
+    for (int f = 0; f < numFrames; f++) {
+      times.add(in.getInt());
+      double[] frame = new double[frameSize];
+      in.getDoubles(frame, 0, frame.length);
+      frames.add(frame);
+    }
+  }
+
+  /**
+   * @return recorded snapshots, with getFrames()[f][i * numNeurons + j] the weight from neuron j to
+   *         neuron i in the f^th recorded frame
+   */
+  double[][] getFrames() {
+    return frames.toArray(new double[frames.size()][]);
+  }
+
+  int getNumNeurons() { return numNeurons; }
+
+  /**
+   * @return time steps at which the frames returned by getFrames() were recorded
+   */
+  int[] getTimes() {
+    int[] timesAsArray = new int[times.size()];
+    for (int i = 0; i < timesAsArray.length; i++) {
+      timesAsArray[i] = times.get(i);
+    }
+    return timesAsArray;
+  }
+
+}
@@ -0,0 +1,93 @@
+package SORN;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A custom Java Flight Recorder event type, whose fields are all doubles, defined at runtime
+ * through jdk.jfr.EventFactory. JFR is only part of the Java API from Java 11 on (and of some
+ * Java 8 updates), so it is found reflectively: where it is missing, isAvailable() is false and
+ * commit() does nothing, so the simulation still runs on older JVMs. Events are only recorded while
+ * a recording is running (e.g., with -XX:StartFlightRecording), and are then cheap to commit.
+ * Defining the type is not (EventFactory.create() generates and registers a new event class), so
+ * each type should be created once and shared (see MetricsWriter).
+ */
+class JFREventType {
+
+  private final Object factory; // jdk.jfr.EventFactory, or null if JFR is unavailable
+  private final Method newEvent;
+  private final Method set;
+  private final Method commit;
+  private final int numFields;
+
+  /**
+   * @param name name of the event type (e.g., "SORN.StepMetrics")
+   * @param label human-readable name of the event type
+   * @param fieldNames names of the event's (double) fields, which must be Java identifiers
+   */
+  JFREventType(String name, String label, String[] fieldNames) {
+    numFields = fieldNames.length;
+    Object factory = null;
+    Method newEvent = null;
+    Method set = null;
+    Method commit = null;
+    try {
+      Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+      Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+      Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+
+      List<Object> annotations = Arrays.asList(
+          annotationElement.newInstance(annotationClass("jdk.jfr.Name"), name),
+          annotationElement.newInstance(annotationClass("jdk.jfr.Label"), label),
+          annotationElement.newInstance(annotationClass("jdk.jfr.Category"), new String[] { "SORN" }),
+          annotationElement.newInstance(annotationClass("jdk.jfr.StackTrace"), false));
+      List<Object> fields = new ArrayList<>();
+      for (String fieldName : fieldNames) {
+        fields.add(valueDescriptor.newInstance(double.class, fieldName));
+      }
+      factory = eventFactoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+      newEvent = eventFactoryClass.getMethod("newEvent");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      commit = eventClass.getMethod("commit");
+    } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+      factory = null; // JFR is unavailable
+    }
+    this.factory = factory;
+    this.newEvent = newEvent;
+    this.set = set;
+    this.commit = commit;
+  }
+
+  boolean isAvailable() { return factory != null; }
+
+  /**
+   * Commits an event with the given field values (in the order of the field names).
+   */
+  void commit(double[] values) {
+    if (factory == null) { return; }
+    if (values.length != numFields) {
+      throw new IllegalArgumentException("Expected " + numFields + " values, not " + values.length);
+    }
+    try {
+      Object event = newEvent.invoke(factory);
+      for (int fieldIdx = 0; fieldIdx < numFields; fieldIdx++) {
+        set.invoke(event, fieldIdx, values[fieldIdx]);
+      }
+      commit.invoke(event);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not commit JFR event", e);
+    }
+  }
+
+  private static Class<? extends Annotation> annotationClass(String className) throws ClassNotFoundException {
+    return Class.forName(className).asSubclass(Annotation.class);
+  }
+
+}
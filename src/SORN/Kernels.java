@@ -0,0 +1,104 @@
+package SORN;
+
+/**
+ * The simulation's innermost numeric loops over rows of weights, with plain scalar implementations.
+ * These are the same loops (in the same order of summation) as the network's update rules used
+ * before, so that the scalar kernels reproduce earlier results exactly.
+ *
+ * VectorKernels (in src-vector, which needs Java 16 or later, with --add-modules
+ * jdk.incubator.vector) overrides them with explicit SIMD code, using the Java Vector API. Since
+ * the Vector API is not part of Java 8, VectorKernels is found reflectively: selecting it (see
+ * PROPERTY) where it is not on the class path, or its module is not loaded, falls back to the
+ * scalar kernels. The vector kernels update each weight exactly as the scalar kernels do, but sum
+ * in a different order, so their sums (and hence the trials) differ by round-off.
+ */
+class Kernels {
+
+  static final String PROPERTY = "SORN.kernels"; // System property that selects the kernels ("scalar" or "vector")
+
+  /**
+   * The kernels selected by PROPERTY (by default, the scalar kernels).
+   */
+  static final Kernels SELECTED = named(System.getProperty(PROPERTY, "scalar"));
+
+  /**
+   * @param name "scalar" or "vector"
+   * @return the kernels of the given name, or the scalar kernels if the vector kernels are unavailable
+   */
+  static Kernels named(String name) {
+    if (name.equals("scalar")) {
+      return new Kernels();
+    }
+    if (!name.equals("vector")) {
+      throw new IllegalArgumentException("Unknown kernels (expected scalar or vector): " + name);
+    }
+    try {
+      return Class.forName("SORN.VectorKernels").asSubclass(Kernels.class).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+      System.err.println("Vector kernels are unavailable (" + e + "); using scalar kernels.");
+      return new Kernels();
+    }
+  }
+
+  /**
+   * @return "scalar" or "vector"
+   */
+  String getName() { return "scalar"; }
+
+  /**
+   * @return values[offset] + ... + values[offset + length - 1]
+   */
+  double sum(double[] values, int offset, int length) {
+    double sum = 0.0;
+    for (int j = offset; j < offset + length; j++) {
+      sum += values[j];
+    }
+    return sum;
+  }
+
+  /**
+   * @param mask mask[j] is true if and only if values[offset + j] is summed
+   * @return sum of values[offset + j] over j < length with mask[j] true
+   */
+  double maskedSum(double[] values, int offset, boolean[] mask, int length) {
+    double sum = 0.0;
+    for (int j = 0; j < length; j++) {
+      if (mask[j]) {
+        sum += values[offset + j];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Adds scale * x[j] to values[offset + j], for every j < length other than skipped.
+   *
+   * @param skipped index that is left out (e.g., a self-loop), or -1
+   * @return sum of x[j] over j < length other than skipped
+   */
+  double addScaled(double[] values, int offset, double[] x, double scale, int length, int skipped) {
+    double sum = 0.0;
+    for (int j = 0; j < length; j++) {
+      if (j == skipped) { continue; }
+      values[offset + j] += scale * x[j];
+      sum += x[j];
+    }
+    return sum;
+  }
+
+  /**
+   * Soft-thresholds values[offset], ..., values[offset + length - 1], replacing each value v with
+   * max(0.0, v - theta).
+   *
+   * @return sum of the thresholded values
+   */
+  double softThreshold(double[] values, int offset, int length, double theta) {
+    double sum = 0.0;
+    for (int j = offset; j < offset + length; j++) {
+      values[j] = Math.max(0.0, values[j] - theta);
+      sum += values[j];
+    }
+    return sum;
+  }
+
+}
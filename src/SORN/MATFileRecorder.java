@@ -0,0 +1,146 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Collects the firing patterns of a trial (and, optionally, the weight snapshots of an
+ * InMemoryWeightRecorder) and writes them to a .mat file (see MatPlotter) when closed with the
+ * trial's Status. Since nothing is written before then, what has been collected is saved with the
+ * trial's checkpoints instead (see saveState()), from which a resumed trial carries on collecting.
+ */
+class MATFileRecorder implements SpikeRecorder {
+
+  /**
+   * How a trial ended, which decides what close(Status) writes.
+   */
+  enum Status {
+    FINISHED, // Ran for its whole duration
+    STOPPED, // Stopped before its duration (e.g., once it converged; see ConvergenceDetector)
+    FAILED // Ended by an exception, so that what was collected is incomplete
+  }
+
+  private final String filepath;
+  private final int numNeurons;
+  private int firstStep; // Time step of the first recorded pattern
+  private final int duration;
+  private SpikeRaster raster;
+  private final InMemoryWeightRecorder weights; // Weight snapshots to include, or null
+
+  /**
+   * @param filepath .mat file to (over)write when closed
+   * @param numNeurons number of neurons in the network
+   * @param firstStep time step of the first recorded pattern (e.g., of a trial forked from a
+   *                  checkpoint); if positive, it is written to the .mat file as firstStep
+   * @param duration number of time steps in the trial
+   * @param weights recorder whose snapshots to include in the .mat file, or null; it must be closed
+   *                before this recorder
+   */
+  MATFileRecorder(String filepath, int numNeurons, int firstStep, int duration, InMemoryWeightRecorder weights) {
+    this.filepath = filepath;
+    this.numNeurons = numNeurons;
+    this.firstStep = firstStep;
+    this.duration = duration;
+    this.weights = weights;
+    raster = new SpikeRaster(numNeurons, duration - firstStep);
+  }
+
+  @Override
+  public void recordSpikes(int t, long[] pattern) {
+    if (t != firstStep + raster.getNumSteps()) {
+      throw new IllegalStateException("Expected time step " + (firstStep + raster.getNumSteps()) + ", not " + t);
+    }
+    raster.record(pattern, 0);
+  }
+
+  @Override
+  public void flush() { } // The patterns are saved with the trial's checkpoints instead (see saveState())
+
+  /**
+   * @return number of bytes written by saveState()
+   */
+  long stateBytes() {
+    return 4 + raster.stateBytes() + 4 + ((weights == null) ? 0L : weights.stateBytes());
+  }
+
+  /**
+   * Writes the patterns (and weight snapshots) collected so far to a checkpoint (see Checkpoint).
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putInt(firstStep);
+    raster.saveState(out);
+    out.putInt((weights == null) ? 0 : 1);
+    if (weights != null) {
+      weights.saveState(out);
+    }
+  }
+
+  /**
+   * Replaces the collected patterns (and weight snapshots) with those written by saveState(), e.g.,
+   * to resume the trial from the checkpoint, in which case the recorder must have been created with
+   * the checkpoint's time step as firstStep.
+   *
+   * @throws IOException if the checkpoint does not include weight snapshots if and only if this
+   *                     recorder does
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    int firstStep = in.getInt();
+    if (firstStep < 0 || firstStep > this.firstStep) {
+      throw new IOException("Checkpointed spike raster starts at time step " + firstStep + ", not at most "
+          + this.firstStep);
+    }
+    SpikeRaster raster = new SpikeRaster(numNeurons, duration - firstStep);
+    raster.restoreState(in);
+    if (firstStep + raster.getNumSteps() != this.firstStep + 1) {
+      throw new IOException("Checkpointed spike raster ends at time step " + (firstStep + raster.getNumSteps() - 1)
+          + ", not " + this.firstStep);
+    }
+    boolean hasWeights = in.getInt() != 0;
+    if (hasWeights != (weights != null)) {
+      throw new IOException("Checkpointed .mat output " + (hasWeights ? "includes" : "does not include")
+          + " weight snapshots");
+    }
+    if (weights != null) {
+      weights.restoreState(in);
+    }
+    this.firstStep = firstStep;
+    this.raster = raster;
+  }
+
+  /**
+   * Stops recording; the .mat file is only written by close(Status), which the owner of the
+   * recorder calls once it knows how the trial ended.
+   */
+  @Override
+  public void close() { }
+
+  /**
+   * Writes the collected patterns (and weight snapshots) to the .mat file, unless the trial failed,
+   * in which case nothing is written, and this is logged. The output of a stopped trial ends at its
+   * last recorded time step, rather than at the duration given to the constructor.
+   *
+   * @throws IllegalStateException if status is FINISHED, but the patterns of the whole duration
+   *                               have not been recorded
+   */
+  void close(Status status) throws IOException {
+    int endStep = firstStep + raster.getNumSteps();
+    if (status == Status.FAILED) {
+      System.out.println("Not writing MATLAB output to " + filepath + ", since the trial failed after time step "
+          + (endStep - 1));
+      return;
+    }
+    if (status == Status.FINISHED && endStep != duration) {
+      throw new IllegalStateException("Finished trial was recorded up to time step " + (endStep - 1) + ", not "
+          + (duration - 1));
+    }
+    System.out.println("Writing MATLAB output to " + filepath);
+    MatPlotter matPlotter = new MatPlotter();
+    if (weights != null) {
+      matPlotter.addWeights(weights.getFrames(), weights.getNumNeurons(), weights.getTimes());
+    }
+    if (firstStep > 0) {
+      matPlotter.addFirstStep(firstStep);
+    }
+    matPlotter.writeToMAT(filepath, raster, numNeurons, endStep);
+  }
+
+}
@@ -22,17 +22,20 @@ class MatPlotter {
     variableList = new ArrayList<>();
   }
 
-  private void add3DDoubleArray(String name, double[][][] array) {
-    int[] dims = new int[3];
-    dims[0] = array.length;
-    dims[1] = (dims[0] == 0) ? 0 : array[0].length; // array[0].length only defined if dim1 > 0
-    dims[2] = (dims[1] == 0) ? 0 : array[0][0].length; // array[0][0].length only defined if dim2 > 0
+  /**
+   * Adds a 3D array, given as a list of row-major 2D frames, in the format expected by analysis.m
+   * (i.e., flattened in column-major order, along with its dimensions).
+   *
+   * @param frames frames[k][j * width + i] is element (k, j, i) of the 3D array
+   */
+  private void add3DDoubleArray(String name, double[][] frames, int height, int width) {
+    int[] dims = new int[] { frames.length, height, width };
     double[] flattened = new double[dims[0] * dims[1] * dims[2]];
     int flattenedIdx = 0;
     for (int i = 0; i < dims[2]; i++) {
       for (int j = 0; j < dims[1]; j++) {
         for (int k = 0; k < dims[0]; k++) {
-          flattened[flattenedIdx] = array[k][j][i];
+          flattened[flattenedIdx] = frames[k][j * width + i];
           flattenedIdx++;
         }
       }
@@ -41,35 +44,52 @@ class MatPlotter {
     variableList.add(new MLInt32(name + "_dims", new int[][]{ dims }));
   }
 
-  private static double[][] booleanMatrixToDoubleMatrix(boolean[][] matrix) {
-    int height = matrix.length;
-    int width = (height == 0) ? 0 : matrix[0].length;
+  private static double[][] rasterToDoubleMatrix(SpikeRaster raster) {
+    int height = raster.getNumSteps();
+    int width = raster.getNumNeurons();
     double[][] matrixAsDouble = new double[height][width];
     for (int i = 0; i < height; i++) {
       for (int j = 0; j < width; j++) {
-        matrixAsDouble[i][j] = matrix[i][j] ? 1.0 : 0.0;
+        matrixAsDouble[i][j] = raster.fired(i, j) ? 1.0 : 0.0;
       }
     }
     return matrixAsDouble;
   }
 
-  void writeToMAT(String filepath, boolean[][] fired, double[][][] weights, int numNeurons, int duration) {
+  /**
+   * Adds recorded weight snapshots (see InMemoryWeightRecorder) to the output.
+   *
+   * @param weights weights[f][i * numNeurons + j] is the weight from neuron j to neuron i in the
+   *                f^th frame
+   * @param numNeurons number of neurons in the network
+   * @param times times[f] is the time step at which the f^th frame was recorded
+   */
+  void addWeights(double[][] weights, int numNeurons, int[] times) {
+    add3DDoubleArray("weights", weights, numNeurons, numNeurons);
+    variableList.add(new MLInt32("weights_times", new int[][]{ times }));
+  }
 
-    // reformat the positions to two numTimeSteps X numAgents double arrays, one each for x and y coordinates
-    variableList.add(new MLDouble("fired", booleanMatrixToDoubleMatrix(fired)));
-    add3DDoubleArray("weights", weights);
+  /**
+   * Records that the raster starts at the given time step, rather than at 0 (e.g., for a trial
+   * forked from a checkpoint), as the variable firstStep.
+   */
+  void addFirstStep(int firstStep) {
+    variableList.add(new MLInt32("firstStep", new int[]{firstStep}, 1));
+  }
 
+  /**
+   * @param fired firing patterns of each time step of the trial
+   */
+  void writeToMAT(String filepath, SpikeRaster fired, int numNeurons, int duration) throws IOException {
 
+    // reformat the positions to two numTimeSteps X numAgents double arrays, one each for x and y coordinates
+    variableList.add(new MLDouble("fired", rasterToDoubleMatrix(fired)));
 
     variableList.add(new MLInt32("numNeurons", new int[]{numNeurons}, 1));
     variableList.add(new MLInt32("duration", new int[]{duration}, 1));
 
-    try {
-      new MatFileWriter(filepath, variableList);
-      System.out.println("Saved simulation data to file: " + filepath);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    new MatFileWriter(filepath, variableList);
+    System.out.println("Saved simulation data to file: " + filepath);
 
   }
 
@@ -0,0 +1,185 @@
+package SORN;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Periodically exports a trial's StepMetrics, as rates over the time steps since the previous
+ * export, to a CSV file (flushed after every line, so that long trials can be monitored as they
+ * run) and, if available, as "SORN.StepMetrics" JFR events (see JFREventType).
+ *
+ * Columns (and event fields): time step, number of synapses, projections and skipped projections
+ * (see Network.synapticNormalization()), bytes passed to the recorders, wall-clock seconds since
+ * the writer was created, time steps per second, spikes per time step, and the milliseconds spent
+ * in each phase (see StepMetrics; summed over threads).
+ */
+class MetricsWriter {
+
+  private static final String[] COUNTER_NAMES = {
+      "t", "synapses", "projections", "projections_skipped", "bytes_recorded", "seconds",
+      "steps_per_second", "spikes_per_step" };
+  private static final int NUM_COUNTS = 5; // The first NUM_COUNTS columns are integers
+  private static final String[] COLUMN_NAMES = columnNames();
+
+  /**
+   * Holds the "SORN.StepMetrics" event type, which is defined (through jdk.jfr.EventFactory, whose
+   * create() is costly) the first time a writer emits JFR events, and then shared by all writers.
+   */
+  private static final class StepMetricsEvent {
+    static final JFREventType TYPE = new JFREventType("SORN.StepMetrics", "SORN Step Metrics", COLUMN_NAMES);
+  }
+
+  private final int exportEvery; // Export every exportEvery-th time step
+  private final BufferedWriter writer; // Or null, if only JFR events are emitted
+  private final JFREventType eventType; // Or null, if no JFR events are emitted
+  private final double[] values; // Values of the row being exported
+  private final long startNanos;
+
+  // Totals as of the previous export
+  private long previousNanos;
+  private long previousSteps;
+  private long previousSpikes;
+  private long previousProjections;
+  private long previousProjectionsSkipped;
+  private long previousBytesRecorded;
+  private final long[] previousPhaseNanos;
+
+  /**
+   * @param filepath CSV file to (over)write, or null to only emit JFR events
+   * @param exportEvery export every exportEvery-th time step
+   * @param emitJFREvents also emit JFR events, if JFR is available
+   */
+  MetricsWriter(String filepath, int exportEvery, boolean emitJFREvents) throws IOException {
+    this(filepath, exportEvery, emitJFREvents, -1);
+  }
+
+  /**
+   * @param resumeTime -1 to overwrite filepath, or the time step of the checkpoint from which the
+   *                   trial is resumed, in which case the rows of filepath up to that time step are
+   *                   kept, and appended to (with the seconds restarting from zero)
+   */
+  MetricsWriter(String filepath, int exportEvery, boolean emitJFREvents, int resumeTime) throws IOException {
+    if (exportEvery < 1) {
+      throw new IllegalArgumentException("Export cadence must be positive: " + exportEvery);
+    }
+    this.exportEvery = exportEvery;
+    values = new double[COLUMN_NAMES.length];
+    previousPhaseNanos = new long[StepMetrics.NUM_PHASES];
+    eventType = emitJFREvents ? StepMetricsEvent.TYPE : null;
+
+    if (filepath != null) {
+      ArrayList<String> keptRows = (resumeTime < 0) ? new ArrayList<String>() : readRowsUpTo(filepath, resumeTime);
+      writer = new BufferedWriter(new FileWriter(filepath));
+      StringBuilder header = new StringBuilder();
+      for (String name : COLUMN_NAMES) {
+        header.append(header.length() == 0 ? "" : ",").append(name);
+      }
+      writer.write(header.toString());
+      writer.newLine();
+      for (String row : keptRows) {
+        writer.write(row);
+        writer.newLine();
+      }
+      writer.flush();
+    } else {
+      writer = null;
+    }
+    startNanos = System.nanoTime();
+    previousNanos = startNanos;
+  }
+
+  /**
+   * @return the rows (without the header) of the CSV file at filepath, if there is one, up to time
+   *         step lastTime
+   */
+  private static ArrayList<String> readRowsUpTo(String filepath, int lastTime) throws IOException {
+    ArrayList<String> rows = new ArrayList<>();
+    if (!new File(filepath).isFile()) { return rows; }
+    try (BufferedReader reader = new BufferedReader(new FileReader(filepath))) {
+      reader.readLine(); // The header
+      String row;
+      while ((row = reader.readLine()) != null) {
+        String[] values = row.split(",", -1);
+        if (values.length != COLUMN_NAMES.length) { break; } // A partly written row
+        try {
+          if (Long.parseLong(values[0]) > lastTime) { break; } // Rows are in order of time
+        } catch (NumberFormatException e) {
+          break;
+        }
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  private static String[] columnNames() {
+    String[] names = new String[COUNTER_NAMES.length + StepMetrics.NUM_PHASES];
+    System.arraycopy(COUNTER_NAMES, 0, names, 0, COUNTER_NAMES.length);
+    for (int phase = 0; phase < StepMetrics.NUM_PHASES; phase++) {
+      names[COUNTER_NAMES.length + phase] = StepMetrics.PHASE_NAMES[phase] + "_ms";
+    }
+    return names;
+  }
+
+  /**
+   * @return true if and only if the metrics at time t should be passed to export()
+   */
+  boolean shouldExport(int t) {
+    return t % exportEvery == 0;
+  }
+
+  /**
+   * @param t current time step
+   * @param metrics metrics of the trial
+   * @param numSynapses current number of synapses (see Network.getNumSynapses())
+   */
+  void export(int t, StepMetrics metrics, long numSynapses) throws IOException {
+    long nanos = System.nanoTime();
+    long numSteps = metrics.getNumSteps() - previousSteps;
+    values[0] = t;
+    values[1] = numSynapses;
+    values[2] = metrics.getNumProjections() - previousProjections;
+    values[3] = metrics.getNumProjectionsSkipped() - previousProjectionsSkipped;
+    values[4] = metrics.getBytesRecorded() - previousBytesRecorded;
+    values[5] = (nanos - startNanos) * 1e-9;
+    values[6] = (nanos == previousNanos) ? 0.0 : numSteps / ((nanos - previousNanos) * 1e-9);
+    values[7] = (numSteps == 0) ? 0.0 : ((double) (metrics.getNumSpikes() - previousSpikes)) / numSteps;
+    for (int phase = 0; phase < StepMetrics.NUM_PHASES; phase++) {
+      long phaseNanos = metrics.getNanos(phase);
+      values[COUNTER_NAMES.length + phase] = (phaseNanos - previousPhaseNanos[phase]) * 1e-6;
+      previousPhaseNanos[phase] = phaseNanos;
+    }
+    previousNanos = nanos;
+    previousSteps = metrics.getNumSteps();
+    previousSpikes = metrics.getNumSpikes();
+    previousProjections = metrics.getNumProjections();
+    previousProjectionsSkipped = metrics.getNumProjectionsSkipped();
+    previousBytesRecorded = metrics.getBytesRecorded();
+
+    if (eventType != null) {
+      eventType.commit(values);
+    }
+    if (writer != null) {
+      StringBuilder row = new StringBuilder();
+      for (int valueIdx = 0; valueIdx < values.length; valueIdx++) {
+        if (valueIdx > 0) { row.append(','); }
+        row.append(valueIdx < NUM_COUNTS ? Long.toString((long) values[valueIdx]) : Double.toString(values[valueIdx]));
+      }
+      writer.write(row.toString());
+      writer.newLine();
+      writer.flush();
+    }
+  }
+
+  void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+}
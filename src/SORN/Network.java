@@ -0,0 +1,349 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * The state of all neurons in the SORN, stored as a structure of arrays of per-neuron parameters,
+ * plus synaptic weights whose storage is left to subclasses (DenseNetwork, SparseNetwork or
+ * OffHeapNetwork). Each update rule is a kernel over a range of (postsynaptic) neurons, so that
+ * disjoint ranges can be updated in parallel (see ParallelStepper); the kernels only write to the
+ * state of their own range.
+ *
+ * Neuron provides a per-neuron view of a Network.
+ */
+abstract class Network implements WeightMatrix {
+
+  static final double L1_NORM_SLACK = 1e-9; // Relative round-off tolerance of the running L1 norms
+
+  final int numNeurons;
+  final RandomStream random; // The trial's source of randomness
+
+  // Global neuron-related constants (see Parameters)
+  final double etaSTDP; // Excitatory STDP step size
+  final double etaIP; // Intrinsic plasticity step size
+  final double weightInitialMax; // Max of uniform dist of initial weights
+  final double targetL1Norm; // Target L1 norm for synaptic normalization
+  final double newStructuralConnectionWeight; // Strength of new connections
+  final double logNoNewConnection; // Log of the probability that no new connection is made
+  final int memory; // Number of time steps back that neurons remember (for STDP)
+  final double decayRate; // Fraction by which STDP effects decay with each time step
+
+  // Neuron-specific fixed parameters
+  final double[] sigmas; // Standard deviations of the neurons' firing thresholds
+  final double[] targetFiringRates;
+
+  // Neuron-specific time-varying parameters
+  final double[] l1Norms; // Running L1 norms of the neurons' input weights
+  final double[] firingThresholds;
+  final double[] firingNoise; // Standard normal noise of the most recent fire() call
+
+  private Stimulus stimulus; // External input to the first neurons, or null
+
+  /**
+   * Initializes the per-neuron parameters; subclasses initialize the weights.
+   *
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   */
+  Network(Parameters params, RandomStream random) {
+    numNeurons = params.numNeurons;
+    this.random = random;
+    etaSTDP = params.etaSTDP;
+    etaIP = params.etaIP;
+    weightInitialMax = params.weightInitialMax;
+    targetL1Norm = params.targetL1Norm;
+    newStructuralConnectionWeight = params.newStructuralConnectionWeight;
+    logNoNewConnection = StrictMath.log(1.0 - params.structuralConnectionProbability);
+    memory = params.memory;
+    decayRate = params.decayRate;
+    sigmas = new double[numNeurons];
+    targetFiringRates = new double[numNeurons];
+    l1Norms = new double[numNeurons];
+    firingThresholds = new double[numNeurons];
+    firingNoise = new double[numNeurons];
+    for (int i = 0; i < numNeurons; i++) {
+      sigmas[i] = Math.sqrt(params.sigma2Min + (params.sigma2Max - params.sigma2Min) * random.uniform(i, 0, RandomStream.SIGMA, 0));
+      targetFiringRates[i] = params.targetFiringRate;
+      firingThresholds[i] = params.firingThresholdInitialMax * random.uniform(i, 0, RandomStream.INITIAL_THRESHOLD, 0);
+    }
+  }
+
+  /**
+   * Writes the initial input weights of neuron i (uniformly random, except that there are no
+   * self-loops) to row[offset], ..., row[offset + numNeurons - 1].
+   *
+   * @return L1 norm of the initial input weights
+   */
+  double initialWeightsIn(int i, double[] row, int offset) {
+    random.fillUniform(row, offset, numNeurons, i, 0, RandomStream.INITIAL_WEIGHTS);
+    double l1Norm = 0.0;
+    for (int j = 0; j < numNeurons; j++) {
+      row[offset + j] = (j == i) ? 0.0 : weightInitialMax * row[offset + j];
+      l1Norm += row[offset + j];
+    }
+    return l1Norm;
+  }
+
+  @Override
+  public int getNumNeurons() { return numNeurons; }
+
+  /**
+   * @return weight of the input from neuron j to neuron i
+   */
+  abstract double getWeight(int i, int j);
+
+  @Override
+  public abstract void copyRow(int i, double[] destination, int offset);
+
+  /**
+   * Copies the weight matrix, in row-major order, into destination, so that entry i * numNeurons + j
+   * is the weight of the input from neuron j to neuron i.
+   */
+  void copyWeights(double[] destination) {
+    for (int i = 0; i < numNeurons; i++) {
+      copyRow(i, destination, i * numNeurons);
+    }
+  }
+
+  /**
+   * @return number of non-zero weights in the network
+   */
+  abstract long getNumSynapses();
+
+  @Override
+  public abstract int copyInputs(int i, int[] indices, double[] weights, int offset);
+
+  /**
+   * Must be called (by a single thread) after the weights have been updated and before the next
+   * call to fire(), so that subclasses can update any derived indices of the weights.
+   */
+  void prepareFire() { }
+
+  /**
+   * Fires neurons from, ..., to - 1, based only on the neurons that fired in the previous time step
+   * (see shouldFire(int, int[], int, double)).
+   *
+   * @param active active[0], ..., active[numActive - 1] are the (increasing) indices of the neurons
+   *               that fired in the previous time step
+   * @param numActive number of neurons that fired in the previous time step
+   * @param firedNow array in which firedNow[i] is set to whether neuron i fires
+   * @param t current time step
+   */
+  void fire(int[] active, int numActive, boolean[] firedNow, int t, int from, int to) {
+    random.fillGaussian(firingNoise, from, to, t, RandomStream.FIRING_NOISE);
+    for (int i = from; i < to; i++) {
+      firedNow[i] = shouldFire(i, active, numActive, firingNoise[i]);
+    }
+  }
+
+  /**
+   * Fires neurons from, ..., to - 1, by scanning the whole previous firing pattern (see
+   * shouldFire(int, boolean[], double)).
+   *
+   * @param firedPrevious firedPrevious[j] is true if and only if neuron j fired in the previous
+   *                      time step
+   * @param firedNow array in which firedNow[i] is set to whether neuron i fires
+   * @param t current time step
+   */
+  void fire(boolean[] firedPrevious, boolean[] firedNow, int t, int from, int to) {
+    random.fillGaussian(firingNoise, from, to, t, RandomStream.FIRING_NOISE);
+    for (int i = from; i < to; i++) {
+      firedNow[i] = shouldFire(i, firedPrevious, firingNoise[i]);
+    }
+  }
+
+  /**
+   * @param fired array with fired[j] true if and only if neuron j fired in the previous time step
+   * @param noise standard normal noise, which is scaled by neuron i's sigma
+   * @return true if and only if the total weighted input to neuron i surpasses its firing threshold
+   */
+  abstract boolean shouldFire(int i, boolean[] fired, double noise);
+
+  /**
+   * Event-driven equivalent of shouldFire(int, boolean[], double), which only visits the neurons
+   * that fired, so that its cost scales with the number of spikes rather than with numNeurons.
+   *
+   * @param active active[0], ..., active[numActive - 1] are the (increasing) indices of the neurons
+   *               that fired in the previous time step
+   * @param numActive number of neurons that fired in the previous time step
+   * @param noise standard normal noise, which is scaled by neuron i's sigma
+   * @return true if and only if the total weighted input to neuron i surpasses its firing threshold
+   */
+  abstract boolean shouldFire(int i, int[] active, int numActive, double noise);
+
+  /**
+   * Drives the first stimulus.getNumDriven() neurons with its input, from the next call to fire()
+   * on (or, if stimulus is null, stops driving them); the caller advances the stimulus to each time
+   * step before firing the neurons.
+   */
+  void setStimulus(Stimulus stimulus) {
+    this.stimulus = stimulus;
+  }
+
+  /**
+   * @return true if and only if weightedInput, plus neuron i's external input (see setStimulus())
+   *         and noise, surpasses its firing threshold
+   */
+  boolean exceedsThreshold(int i, double weightedInput, double noise) {
+    if (stimulus != null) {
+      weightedInput += stimulus.getInput(i); // Infinite for clamped neurons
+    }
+    return weightedInput + sigmas[i] * noise > firingThresholds[i];
+  }
+
+  /**
+   * Applies excitatorySTDP(int, SpikeHistory, int) to neurons from, ..., to - 1.
+   */
+  void excitatorySTDP(SpikeHistory history, int t, int from, int to) {
+    for (int i = from; i < to; i++) {
+      excitatorySTDP(i, history, t);
+    }
+  }
+
+  /**
+   * Applies excitatorySTDP(int, double[], boolean[], int[], int) to neurons from, ..., to - 1.
+   */
+  void excitatorySTDP(double[] trace, boolean[] firedNow, int[] active, int numActive, int from, int to) {
+    for (int i = from; i < to; i++) {
+      excitatorySTDP(i, trace, firedNow, active, numActive);
+    }
+  }
+
+  /**
+   * Updates neuron i's input weights according to excitatory STDP rules, using firing activity
+   * from the current and previous time steps
+   *
+   * @param history firing patterns of (at least) times t - memory, ..., t
+   * @param t current time step
+   */
+  abstract void excitatorySTDP(int i, SpikeHistory history, int t);
+
+  /**
+   * Trace-based equivalent of excitatorySTDP(int, SpikeHistory, int). Rather than scanning memory
+   * time steps of history, this uses one spike trace per neuron (see SpikeTrace). The total change
+   * to each weight is the same as in excitatorySTDP(int, SpikeHistory, int), except that the lower
+   * bound of 0.0 is applied once, rather than once per delay.
+   *
+   * @param trace trace[j] is the spike trace of neuron j over the time steps before the current one
+   * @param firedNow firedNow[j] is true if and only if neuron j fired in the current time step
+   * @param active active[0], ..., active[numActive - 1] are the indices of the neurons that fired
+   *               in the current time step
+   * @param numActive number of neurons that fired in the current time step
+   */
+  abstract void excitatorySTDP(int i, double[] trace, boolean[] firedNow, int[] active, int numActive);
+
+  /**
+   * Updates neuron i's input weights according to excitatory STDP rules, using firing activity
+   * from the current and previous time steps
+   *
+   * @param firedPreviously firedPreviously[j] true if and only if neuron j fired in the previous
+   *                        time step
+   * @param firedNow firedNow[j] true if and only if neuron j fired in the current time step
+   */
+  abstract void excitatorySTDP(int i, boolean[] firedPreviously, boolean[] firedNow);
+
+  /**
+   * Applies synapticNormalization(int, double[]) to neurons from, ..., to - 1.
+   *
+   * @return number of neurons whose weights were projected (rather than skipped)
+   */
+  int synapticNormalization(double[] scratch, int from, int to) {
+    int numProjections = 0;
+    for (int i = from; i < to; i++) {
+      numProjections += synapticNormalization(i, scratch) ? 1 : 0;
+    }
+    return numProjections;
+  }
+
+  /**
+   * Projects the input weights of neuron i onto the L1 ball of radius targetL1Norm. The
+   * projection is skipped entirely if the running L1 norm shows that the weights are already
+   * inside the ball.
+   *
+   * @param scratch working space for the projection, of length at least numNeurons
+   * @return true if and only if the weights were projected (rather than skipped)
+   */
+  abstract boolean synapticNormalization(int i, double[] scratch);
+
+  /**
+   * Applies intrinsicPlasticity(int, boolean) to neurons from, ..., to - 1.
+   *
+   * @param firedNow firedNow[i] is true if and only if neuron i fired this time step
+   */
+  void intrinsicPlasticity(boolean[] firedNow, int from, int to) {
+    for (int i = from; i < to; i++) {
+      intrinsicPlasticity(i, firedNow[i]);
+    }
+  }
+
+  /**
+   * @param fired true if and only if neuron i fired this time step
+   */
+  void intrinsicPlasticity(int i, boolean fired) {
+    if (fired) {
+      firingThresholds[i] += etaIP * (1.0 - targetFiringRates[i]);
+    } else {
+      firingThresholds[i] -= etaIP * targetFiringRates[i];
+    }
+  }
+
+  /**
+   * Applies structuralPlasticity(int, int, int[]) to neurons from, ..., to - 1.
+   */
+  void structuralPlasticity(int t, int[] scratch, int from, int to) {
+    for (int i = from; i < to; i++) {
+      structuralPlasticity(i, t, scratch);
+    }
+  }
+
+  /**
+   * Randomly (independently, with identical probabilities) reconnects neuron i's zero-weight
+   * input edges, setting the connection strength to a prescribed value.
+   *
+   * @param t current time step
+   * @param scratch working space for the new connections, of length at least numNeurons
+   */
+  abstract void structuralPlasticity(int i, int t, int[] scratch);
+
+  /**
+   * Releases any storage of the weights outside of the heap (see OffHeapNetwork); the network must
+   * not be used afterwards.
+   */
+  void close() { }
+
+  /**
+   * Writes the state of the neurons (the per-neuron parameters, and, in subclasses, the weights) to
+   * a checkpoint. Constants that are determined by the parameters are not written.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putDoubles(sigmas, 0, numNeurons);
+    out.putDoubles(l1Norms, 0, numNeurons);
+    out.putDoubles(firingThresholds, 0, numNeurons);
+  }
+
+  /**
+   * Replaces the state of the neurons with that written by saveState() (by a Network of the same
+   * class and number of neurons).
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    in.getDoubles(sigmas, 0, numNeurons);
+    in.getDoubles(l1Norms, 0, numNeurons);
+    in.getDoubles(firingThresholds, 0, numNeurons);
+  }
+
+  /**
+   * Samples how many zero-weight edges structural plasticity skips before the next new connection.
+   * This is geometrically distributed, so it can be sampled by inversion from a single uniform;
+   * structural plasticity therefore consumes one random number per new connection (plus one),
+   * rather than one per zero weight.
+   *
+   * @param drawIdx number of previous calls for the same neuron and time step
+   * @return number of zero weights skipped (possibly infinite)
+   */
+  double sampleStructuralSkip(int i, int t, int drawIdx) {
+    // 1.0 - uniform lies in (0, 1], so that its logarithm is finite
+    double uniform = random.uniform(i, t, RandomStream.STRUCTURAL_PLASTICITY, drawIdx);
+    return Math.floor(StrictMath.log(1.0 - uniform) / logNoNewConnection);
+  }
+
+}
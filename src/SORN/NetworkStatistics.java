@@ -0,0 +1,313 @@
+package SORN;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Computes a few scalar statistics of the network while the simulation runs, so that they can be
+ * analyzed without recording (and reloading) whole weight matrices. Every sampleEvery time steps,
+ * the following are recorded:
+ *   1) the firing rate (the fraction of neurons firing, averaged over the time steps since the
+ *      previous sample),
+ *   2) the density (the fraction of the numNeurons * (numNeurons - 1) possible synapses that exist),
+ *   3) the reciprocity (the fraction of synapses j -> i for which i -> j also exists), and
+ *   4) trace(W^k), where W is the weight matrix, which sums the (weighted) closed paths of length k,
+ *      as computed by analysis.m.
+ *
+ * Each sample takes a compressed sparse row snapshot of the weights. trace(W^k) is then computed
+ * exactly, as the sum over i, j of (W^a)_ij (W^b)_ji, where a = ceil(k / 2) and b = floor(k / 2),
+ * by a - 1 sparse-dense matrix products (i.e., O(k * numSynapses * numNeurons) time and
+ * O(numNeurons^2) space), or, if numProbes > 0, estimated by Hutchinson's estimator: the mean of
+ * z^T W^k z over numProbes random vectors z with independent +/-1 entries, which only needs k
+ * sparse matrix-vector products per probe (and is unbiased, with variance decreasing as
+ * 1 / numProbes).
+ */
+class NetworkStatistics {
+
+  private final int numNeurons;
+  private final int sampleEvery; // Sample every sampleEvery-th time step
+  private final int pathLength; // k in trace(W^k)
+  private final int numProbes; // Number of random probes for trace(W^k), or 0 to compute it exactly
+  private final RandomStream random;
+
+  // Compressed sparse row snapshot of the weights: for rowStarts[i] <= s < rowStarts[i + 1],
+  // synapseWeights[s] is the weight of the input from neuron synapseInputs[s] to neuron i
+  private final int[] rowStarts;
+  private int[] synapseInputs;
+  private double[] synapseWeights;
+
+  // Working space for trace(W^k): row-major powers of W (if exact), or probe vectors (otherwise)
+  private final double[] power;
+  private final double[] nextPower;
+  private final double[] halfPower;
+
+  private long numSpikes; // Spikes since the previous sample
+  private int numSpikeSteps; // Time steps since the previous sample
+
+  // The recorded time series
+  private int numSamples;
+  private int[] times;
+  private double[] firingRates;
+  private double[] densities;
+  private double[] reciprocities;
+  private double[] traces;
+
+  /**
+   * @param numNeurons number of neurons in the network
+   * @param sampleEvery sample every sampleEvery-th time step
+   * @param pathLength k in trace(W^k)
+   * @param numProbes number of random probes with which to estimate trace(W^k), or 0 to compute it
+   *                  exactly
+   * @param random the trial's source of randomness (only used for the probes)
+   */
+  NetworkStatistics(int numNeurons, int sampleEvery, int pathLength, int numProbes, RandomStream random) {
+    if (sampleEvery < 1) {
+      throw new IllegalArgumentException("Sampling cadence must be positive: " + sampleEvery);
+    }
+    if (pathLength < 1) {
+      throw new IllegalArgumentException("Path length must be positive: " + pathLength);
+    }
+    if (numProbes == 0 && (long) numNeurons * numNeurons > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many neurons to compute trace(W^k) exactly: " + numNeurons);
+    }
+    this.numNeurons = numNeurons;
+    this.sampleEvery = sampleEvery;
+    this.pathLength = pathLength;
+    this.numProbes = numProbes;
+    this.random = random;
+    rowStarts = new int[numNeurons + 1];
+    synapseInputs = new int[numNeurons];
+    synapseWeights = new double[numNeurons];
+    int powerSize = (numProbes == 0) ? numNeurons * numNeurons : numNeurons;
+    power = new double[powerSize];
+    nextPower = new double[powerSize];
+    halfPower = new double[powerSize];
+    times = new int[16];
+    firingRates = new double[16];
+    densities = new double[16];
+    reciprocities = new double[16];
+    traces = new double[16];
+  }
+
+  /**
+   * Must be called once for every time step (including the first), with the number of neurons that
+   * fired in it.
+   */
+  void countSpikes(int numFired) {
+    numSpikes += numFired;
+    numSpikeSteps++;
+  }
+
+  /**
+   * @return true if and only if the statistics at time t should be passed to sample()
+   */
+  boolean shouldSample(int t) {
+    return t % sampleEvery == 0;
+  }
+
+  /**
+   * Records the statistics of the network at time t.
+   */
+  void sample(int t, WeightMatrix network) {
+    // Snapshot of the synapses
+    int numSynapses = 0;
+    for (int i = 0; i < numNeurons; i++) {
+      if (synapseInputs.length < numSynapses + numNeurons) {
+        int capacity = Math.max(numSynapses + numNeurons, synapseInputs.length + (synapseInputs.length >> 1));
+        synapseInputs = Arrays.copyOf(synapseInputs, capacity);
+        synapseWeights = Arrays.copyOf(synapseWeights, capacity);
+      }
+      rowStarts[i] = numSynapses;
+      numSynapses += network.copyInputs(i, synapseInputs, synapseWeights, numSynapses);
+    }
+    rowStarts[numNeurons] = numSynapses;
+
+    if (numSamples == times.length) {
+      int capacity = 2 * times.length;
+      times = Arrays.copyOf(times, capacity);
+      firingRates = Arrays.copyOf(firingRates, capacity);
+      densities = Arrays.copyOf(densities, capacity);
+      reciprocities = Arrays.copyOf(reciprocities, capacity);
+      traces = Arrays.copyOf(traces, capacity);
+    }
+    times[numSamples] = t;
+    firingRates[numSamples] = (numSpikeSteps == 0) ? 0.0 : ((double) numSpikes) / ((double) numNeurons * numSpikeSteps);
+    densities[numSamples] = (numNeurons < 2) ? 0.0 : ((double) numSynapses) / ((double) numNeurons * (numNeurons - 1));
+    reciprocities[numSamples] = reciprocity(numSynapses);
+    traces[numSamples] = (numProbes == 0) ? exactTrace() : estimatedTrace(t);
+    numSamples++;
+    numSpikes = 0;
+    numSpikeSteps = 0;
+  }
+
+  int getNumSamples() { return numSamples; }
+
+  int getTime(int sample) { return times[sample]; }
+
+  double getFiringRate(int sample) { return firingRates[sample]; }
+
+  double getDensity(int sample) { return densities[sample]; }
+
+  double getReciprocity(int sample) { return reciprocities[sample]; }
+
+  double getTrace(int sample) { return traces[sample]; }
+
+  /**
+   * Writes the recorded time series, and the spikes counted since the last sample, to a checkpoint.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putLong(numSpikes);
+    out.putInt(numSpikeSteps);
+    out.putInt(numSamples);
+    out.putInts(times, 0, numSamples);
+    out.putDoubles(firingRates, 0, numSamples);
+    out.putDoubles(densities, 0, numSamples);
+    out.putDoubles(reciprocities, 0, numSamples);
+    out.putDoubles(traces, 0, numSamples);
+  }
+
+  /**
+   * Replaces the recorded time series with those written by saveState().
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    numSpikes = in.getLong();
+    numSpikeSteps = in.getInt();
+    numSamples = in.getInt();
+    if (numSamples < 0) {
+      throw new IOException("Checkpointed statistics have " + numSamples + " samples");
+    }
+    int capacity = Math.max(16, numSamples);
+    times = new int[capacity];
+    firingRates = new double[capacity];
+    densities = new double[capacity];
+    reciprocities = new double[capacity];
+    traces = new double[capacity];
+    in.getInts(times, 0, numSamples);
+    in.getDoubles(firingRates, 0, numSamples);
+    in.getDoubles(densities, 0, numSamples);
+    in.getDoubles(reciprocities, 0, numSamples);
+    in.getDoubles(traces, 0, numSamples);
+  }
+
+  /**
+   * Writes the recorded time series to a CSV file, with a header line and one line per sample
+   * (readable in MATLAB via csvread(filepath, 1, 0)).
+   */
+  void writeCSV(String filepath) throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(filepath))) {
+      writer.write("t,firing_rate,density,reciprocity,trace_W" + pathLength);
+      writer.newLine();
+      for (int sample = 0; sample < numSamples; sample++) {
+        writer.write(times[sample] + "," + firingRates[sample] + "," + densities[sample] + ","
+            + reciprocities[sample] + "," + traces[sample]);
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * @return fraction of the synapses in the snapshot whose reverse synapse also exists
+   */
+  private double reciprocity(int numSynapses) {
+    if (numSynapses == 0) { return 0.0; }
+    long numReciprocated = 0;
+    for (int i = 0; i < numNeurons; i++) {
+      for (int s = rowStarts[i]; s < rowStarts[i + 1]; s++) {
+        int j = synapseInputs[s];
+        if (Arrays.binarySearch(synapseInputs, rowStarts[j], rowStarts[j + 1], i) >= 0) {
+          numReciprocated++;
+        }
+      }
+    }
+    return ((double) numReciprocated) / numSynapses;
+  }
+
+  /**
+   * @return trace(W^k) of the snapshot, as the sum over i, j of (W^a)_ij (W^b)_ji
+   */
+  private double exactTrace() {
+    int a = (pathLength + 1) / 2;
+    int b = pathLength / 2;
+    double[] current = power;
+    double[] next = nextPower;
+    Arrays.fill(current, 0.0);
+    for (int i = 0; i < numNeurons; i++) {
+      for (int s = rowStarts[i]; s < rowStarts[i + 1]; s++) {
+        current[i * numNeurons + synapseInputs[s]] = synapseWeights[s];
+      }
+    }
+    if (b == 1) {
+      System.arraycopy(current, 0, halfPower, 0, current.length);
+    }
+    for (int m = 2; m <= a; m++) {
+      // Row i of W^m is the sum over the inputs j of neuron i of W_ij times row j of W^(m - 1)
+      Arrays.fill(next, 0.0);
+      for (int i = 0; i < numNeurons; i++) {
+        int rowStart = i * numNeurons;
+        for (int s = rowStarts[i]; s < rowStarts[i + 1]; s++) {
+          double weight = synapseWeights[s];
+          int inputRowStart = synapseInputs[s] * numNeurons;
+          for (int l = 0; l < numNeurons; l++) {
+            next[rowStart + l] += weight * current[inputRowStart + l];
+          }
+        }
+      }
+      double[] swap = current;
+      current = next;
+      next = swap;
+      if (m == b) {
+        System.arraycopy(current, 0, halfPower, 0, current.length);
+      }
+    }
+
+    double trace = 0.0;
+    for (int i = 0; i < numNeurons; i++) {
+      if (b == 0) { // W^0 is the identity
+        trace += current[i * numNeurons + i];
+        continue;
+      }
+      for (int j = 0; j < numNeurons; j++) {
+        trace += current[i * numNeurons + j] * halfPower[j * numNeurons + i];
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * @return Hutchinson's estimate of trace(W^k) of the snapshot; the probes of time t are those of
+   *         the trial's random stream with purpose TRACE_PROBES, step t and the probe's index in
+   *         place of the neuron
+   */
+  private double estimatedTrace(int t) {
+    double[] probe = halfPower;
+    double sum = 0.0;
+    for (int probeIdx = 0; probeIdx < numProbes; probeIdx++) {
+      random.fillUniform(probe, 0, numNeurons, probeIdx, t, RandomStream.TRACE_PROBES);
+      for (int i = 0; i < numNeurons; i++) {
+        probe[i] = (probe[i] < 0.5) ? -1.0 : 1.0;
+      }
+      double[] current = power;
+      double[] next = nextPower;
+      System.arraycopy(probe, 0, current, 0, numNeurons);
+      for (int m = 0; m < pathLength; m++) {
+        for (int i = 0; i < numNeurons; i++) {
+          double product = 0.0;
+          for (int s = rowStarts[i]; s < rowStarts[i + 1]; s++) {
+            product += synapseWeights[s] * current[synapseInputs[s]];
+          }
+          next[i] = product;
+        }
+        double[] swap = current;
+        current = next;
+        next = swap;
+      }
+      for (int i = 0; i < numNeurons; i++) {
+        sum += probe[i] * current[i];
+      }
+    }
+    return sum / numProbes;
+  }
+
+}
@@ -1,105 +1,95 @@
 package SORN;
 
-import java.util.Random;
-
 /**
  * An individual neuron in the SORN. Note that neurons are 'memoryless', in
  * that they only have information about their current state.
  *
+ * The state itself is stored in a Network, of which a Neuron is a (thin) view; the simulation
+ * applies the update rules to whole ranges of neurons through the Network directly. External input
+ * that fixes the firing of the first neurons, or adds to their input, is supplied by a Stimulus.
+ *
  * TODO:
  *   1) Find a way to measure periodicity of of a neuron's firing.
- *      - One option might be trace(A^k), where A is the adjacency matrix of the network
- *   2) Implement a "driving force" that can fix some inputs of some neurons.
+ *      - One option might be trace(A^k), where A is the adjacency matrix of the network; trace(W^k)
+ *        of the whole network is tracked by NetworkStatistics
  *
  * Author: sss1@andrew.cmu.edu
  */
 class Neuron {
 
-  // Global simulation constants (not static because they are granted by the simulation upon intialization)
-  private final int numNeurons;
-
-  // Global neuron-related constants
-  private static final double ETA_STDP = 0.004; // Excitatory STDP step size
-  private static final double ETA_IP = 0.01; // Intrinsic plasticity step size
-  private static final double WEIGHT_INITIAL_MAX = 1.0; // Max of uniform dist of initial weights
-  private static final double SIGMA2_MIN = 0.01; // Min of uniform dist of sigma^2
-  private static final double SIGMA2_MAX = 0.05; // Max of uniform dist of sigma^2
-  private static final double FIRING_THRESHOLD_INITIAL_MAX = 1.0; // Max of uniform dist of initial firingThreshold
-  private static final double TARGET_L1_NORM = 0.05; // Target L1 norm for synaptic normalization
-  private static final double STRUCTURAL_CONNECTION_PROBABILITY = 0.1; // Prob. of new connections
-  private static final double NEW_STRUCTURAL_CONNECTION_WEIGHT = 0.001; // Strength of new connections
-  static final int MEMORY = 10; // Number of time steps back that neurons remember (for STDP)
-  private static final double DECAY_RATE = 0.9; // Fraction by which STDP effects decay with each time step
-
-  // Neuron-specific fixed parameters
+  private final Network network;
   private final int ID; // Unique identifier for this neuron
-  private final Random rand; // This neuron's internal source of randomness
-  private final double sigma; // Standard deviation of this neuron's firing threshold
-  private final double targetFiringRate;
-
-  // Neuron-specific time-varying parameters
-  private double[] weightsIn; // weights of each input connection
-  private double firingThreshold;
 
-  Neuron(int numNeurons, int ID) {
-    this.numNeurons = numNeurons;
+  /**
+   * @param network network containing this neuron's state
+   * @param ID index of this neuron in the network
+   */
+  Neuron(Network network, int ID) {
+    this.network = network;
     this.ID = ID;
-    weightsIn = new double[numNeurons];
-    rand = new Random();
-    sigma = Math.sqrt(SIGMA2_MIN + (SIGMA2_MAX - SIGMA2_MIN) * rand.nextDouble());
-    targetFiringRate = 0.1; // As in Zhang et al. (they use N(0.1, 0), for some reason)
-
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-      // Uniformly random initial weights, except weightsIn[ID] == 0.0
-      weightsIn[neuronIdx] = (neuronIdx == ID) ? 0.0 : WEIGHT_INITIAL_MAX * rand.nextDouble();
-    }
-    firingThreshold = FIRING_THRESHOLD_INITIAL_MAX * rand.nextDouble();
   }
 
 //  int getID() { return ID; }
 
   double getWeightIn(int idx) {
-    return weightsIn[idx];
+    return network.getWeight(ID, idx);
   }
 
-  double[] getWeightsIn() { return weightsIn; }
+  /**
+   * @return a copy of the weights of each input connection
+   */
+  double[] getWeightsIn() {
+    double[] weightsIn = new double[network.getNumNeurons()];
+    network.copyRow(ID, weightsIn, 0);
+    return weightsIn;
+  }
 
   /**
    * @param fired array with fired[i] true if and only if neuron i fired in the previous time step
+   * @param noise standard normal noise, which is scaled by this neuron's sigma
    * @return true if and only if the total weighted input surpasses the firing threshold
    */
-  boolean shouldFire(boolean[] fired) {
-    double weightedSum = 0.0;
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-      if (fired[neuronIdx]) {
-        weightedSum += weightsIn[neuronIdx];
-      }
-    }
-    return weightedSum + sigma * rand.nextGaussian() > firingThreshold;
+  boolean shouldFire(boolean[] fired, double noise) {
+    return network.shouldFire(ID, fired, noise);
+  }
+
+  /**
+   * Event-driven equivalent of shouldFire(boolean[], double); see
+   * Network.shouldFire(int, int[], int, double).
+   *
+   * @param active active[0], ..., active[numActive - 1] are the (increasing) indices of the neurons
+   *               that fired in the previous time step
+   * @param numActive number of neurons that fired in the previous time step
+   * @param noise standard normal noise, which is scaled by this neuron's sigma
+   * @return true if and only if the total weighted input surpasses the firing threshold
+   */
+  boolean shouldFire(int[] active, int numActive, double noise) {
+    return network.shouldFire(ID, active, numActive, noise);
   }
 
   /**
    * Updates this neuron's input weights according to excitatory STDP rules, using firing activity
    * from the current and previous time steps
    *
-   * @param fired for s <= t, fired[s][i] is true if and only if neuron i fired at time s
-   * @param t last time step at which fired was updated
+   * @param history firing patterns of (at least) times t - memory, ..., t
+   * @param t current time step
+   */
+  void excitatorySTDP(SpikeHistory history, int t) {
+    network.excitatorySTDP(ID, history, t);
+  }
+
+  /**
+   * Trace-based equivalent of excitatorySTDP(SpikeHistory, int); see
+   * Network.excitatorySTDP(int, double[], boolean[], int[], int).
+   *
+   * @param trace trace[i] is the spike trace of neuron i over the time steps before the current one
+   * @param firedNow firedNow[i] is true if and only if neuron i fired in the current time step
+   * @param active active[0], ..., active[numActive - 1] are the indices of the neurons that fired
+   *               in the current time step
+   * @param numActive number of neurons that fired in the current time step
    */
-  void excitatorySTDP(boolean[][] fired, int t) {
-    for (int delay = 1; delay <= Math.min(MEMORY, t); delay++) {
-      double additiveDelta = ETA_STDP * Math.pow(DECAY_RATE, delay - 1);
-      for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-        if (neuronIdx == ID) { continue; } // No self-loops
-        if (fired[t][ID] && fired[t - delay][neuronIdx]) {
-          weightsIn[neuronIdx] += additiveDelta; // Additive increase
-//          System.out.println("Increasing weight from " + neuronIdx + " to " + ID + " by " + additiveDelta + " at time " + t + ".");
-        }
-        if (fired[t - delay][ID] && fired[t][neuronIdx]) {
-          // Additive decrease, with minimum value 0.0
-          weightsIn[neuronIdx] = Math.max(weightsIn[neuronIdx] - additiveDelta, 0.0);
-        }
-      }
-    }
+  void excitatorySTDP(double[] trace, boolean[] firedNow, int[] active, int numActive) {
+    network.excitatorySTDP(ID, trace, firedNow, active, numActive);
   }
 
   /**
@@ -112,50 +102,35 @@ class Neuron {
    */
   @SuppressWarnings("unused")
   void excitatorySTDP(boolean[] firedPreviously, boolean[] firedNow) {
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-
-      if (weightsIn[neuronIdx] < Double.MIN_VALUE) continue; // STDP only occurs between connected neurons
-
-      if (firedPreviously[neuronIdx] && firedNow[ID]) {
-        weightsIn[neuronIdx] += ETA_STDP; // Additive increase
-      }
-      if (firedPreviously[ID] && firedNow[neuronIdx]) {
-        // Additive decrease, with minimum value 0.0
-        weightsIn[neuronIdx] = Math.max(weightsIn[neuronIdx] - ETA_STDP, 0.0);
-      }
-    }
+    network.excitatorySTDP(ID, firedPreviously, firedNow);
   }
 
   /**
-   * Normalizes the weight vector of the neuron to have L1 norm TARGET_L1_NORM.
+   * Projects the weight vector of the neuron onto the L1 ball of radius targetL1Norm, unless it
+   * is already inside the ball.
+   *
+   * @param scratch working space for the projection, of length at least numNeurons
    */
-  void synapticNormalization() {
-//    weightsIn = Util.normalizeWeightsInL1(weightsIn, TARGET_L1_NORM);
-    Util.projectWeightsInL1(weightsIn, TARGET_L1_NORM);
+  void synapticNormalization(double[] scratch) {
+    network.synapticNormalization(ID, scratch);
   }
 
   /**
    * @param fired true if and only if this neuron fired this time step
    */
   void intrisicPlasticity(boolean fired) {
-    if (fired) {
-      firingThreshold += ETA_IP * (1.0 - targetFiringRate);
-    } else {
-      firingThreshold -= ETA_IP * targetFiringRate;
-    }
+    network.intrinsicPlasticity(ID, fired);
   }
 
   /**
    * Randomly (independently, with identical probabilities) reconnects zero-weight edges, setting
    * the connection strength to a prescribed value
+   *
+   * @param t current time step
+   * @param scratch working space for the new connections, of length at least numNeurons
    */
-  void structuralPlasticity() {
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-      if (neuronIdx == ID) { continue; } // No self-loops
-      if (weightsIn[neuronIdx] < Double.MIN_VALUE) {
-        weightsIn[neuronIdx] = (rand.nextDouble() > STRUCTURAL_CONNECTION_PROBABILITY) ? 0.0 : NEW_STRUCTURAL_CONNECTION_WEIGHT;
-      }
-    }
+  void structuralPlasticity(int t, int[] scratch) {
+    network.structuralPlasticity(ID, t, scratch);
   }
 
 //  int numInputs() {
@@ -166,4 +141,4 @@ class Neuron {
 //    return numInputs;
 //  }
 
-}
\ No newline at end of file
+}
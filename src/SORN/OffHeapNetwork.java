@@ -0,0 +1,311 @@
+package SORN;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Network whose weights are stored densely, like those of DenseNetwork, but outside of the Java
+ * heap, in a WeightStore (in direct memory or a memory-mapped file, in double or single precision),
+ * so that networks too large for the heap can be simulated without long garbage collection pauses.
+ *
+ * Update rules that visit a whole row of weights run the same kernels as DenseNetwork on a copy of
+ * the row (in a per-thread buffer), which is then written back; those that visit only the inputs
+ * from the neurons that fired read and write the store directly. Rather than an index of zero
+ * inputs (which would take as much memory as the weights), only the number of inputs of each neuron
+ * is kept, and structural plasticity finds its new connections by scanning the row, in the row's
+ * order (which is also that of DenseNetwork's bit sets). In double precision, trials therefore
+ * evolve exactly like those of DenseNetwork.
+ */
+class OffHeapNetwork extends Network {
+
+  private final WeightStore weights;
+  private final int[] numInputs; // Number of non-zero input weights of each neuron
+  private final ThreadLocal<double[]> rows; // Copies of the rows being updated
+
+  /**
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   * @param floatPrecision store the weights in single precision, rather than double precision
+   * @param file file (which is overwritten, and deleted by close()) to which to map the weights, or
+   *             null to store them in direct memory
+   */
+  OffHeapNetwork(Parameters params, RandomStream random, boolean floatPrecision, File file) throws IOException {
+    super(params, random);
+    weights = new WeightStore(numNeurons, numNeurons, floatPrecision, file);
+    numInputs = new int[numNeurons];
+    rows = new ThreadLocal<double[]>() {
+      @Override
+      protected double[] initialValue() {
+        return new double[numNeurons];
+      }
+    };
+
+    double[] row = rows.get();
+    for (int i = 0; i < numNeurons; i++) {
+      l1Norms[i] = initialWeightsIn(i, row, 0);
+      storeRow(i, row);
+    }
+  }
+
+  boolean isFloatPrecision() { return weights.isFloatPrecision(); }
+
+  /**
+   * @return the store of the weights (e.g., to share its segments, read-only, with other threads)
+   */
+  WeightStore getStore() { return weights; }
+
+  @Override
+  double getWeight(int i, int j) {
+    return weights.get(weights.segmentOf(i), weights.rowStartOf(i), j);
+  }
+
+  @Override
+  public void copyRow(int i, double[] destination, int offset) {
+    weights.readRow(i, destination, offset);
+  }
+
+  @Override
+  long getNumSynapses() {
+    long numSynapses = 0;
+    for (int i = 0; i < numNeurons; i++) {
+      numSynapses += numInputs[i];
+    }
+    return numSynapses;
+  }
+
+  @Override
+  public int copyInputs(int i, int[] indices, double[] weights, int offset) {
+    double[] row = rows.get();
+    this.weights.readRow(i, row, 0);
+    int numInputs = 0;
+    for (int j = 0; j < numNeurons; j++) {
+      if (row[j] >= Double.MIN_VALUE) {
+        indices[offset + numInputs] = j;
+        weights[offset + numInputs] = row[j];
+        numInputs++;
+      }
+    }
+    return numInputs;
+  }
+
+  @Override
+  boolean shouldFire(int i, boolean[] fired, double noise) {
+    double[] row = rows.get();
+    weights.readRow(i, row, 0);
+    double weightedSum = Kernels.SELECTED.maskedSum(row, 0, fired, numNeurons);
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  @Override
+  boolean shouldFire(int i, int[] active, int numActive, double noise) {
+    ByteBuffer segment = weights.segmentOf(i);
+    int rowStart = weights.rowStartOf(i);
+    double weightedSum = 0.0;
+    for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+      weightedSum += weights.get(segment, rowStart, active[activeIdx]);
+    }
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  @Override
+  void excitatorySTDP(int i, SpikeHistory history, int t) {
+    int maxDelay = Math.min(memory, t);
+    boolean firedNow = history.fired(t, i);
+    boolean firedRecently = false;
+    for (int delay = 1; delay <= maxDelay && !firedRecently; delay++) {
+      firedRecently = history.fired(t - delay, i);
+    }
+    if (!firedNow && !firedRecently) { return; } // No weight of neuron i changes
+
+    double[] row = rows.get();
+    weights.readRow(i, row, 0);
+    long[] words = history.getWords();
+    int nowOffset = history.getOffset(t);
+    for (int delay = 1; delay <= maxDelay; delay++) {
+      double additiveDelta = etaSTDP * Math.pow(decayRate, delay - 1);
+      int thenOffset = history.getOffset(t - delay);
+      boolean firedThen = history.fired(t - delay, i);
+      for (int wordIdx = 0; wordIdx < history.getNumWords(); wordIdx++) {
+        // As in DenseNetwork, only the set bits of these masks are visited
+        long potentiated = firedNow ? words[thenOffset + wordIdx] : 0L;
+        long depressed = firedThen ? words[nowOffset + wordIdx] : 0L;
+        long visited = potentiated | depressed;
+        while (visited != 0L) {
+          int bit = Long.numberOfTrailingZeros(visited);
+          visited &= visited - 1L;
+          int j = (wordIdx << 6) + bit;
+          if (j == i) { continue; } // No self-loops
+          if ((potentiated & (1L << bit)) != 0L) {
+            row[j] += additiveDelta; // Additive increase
+            l1Norms[i] += additiveDelta;
+          }
+          if ((depressed & (1L << bit)) != 0L) {
+            // Additive decrease, with minimum value 0.0
+            double decreasedWeight = Math.max(row[j] - additiveDelta, 0.0);
+            l1Norms[i] += decreasedWeight - row[j];
+            row[j] = decreasedWeight;
+          }
+        }
+      }
+    }
+    storeRow(i, row);
+  }
+
+  /**
+   * If neuron i fired, its whole row is updated (in a copy); otherwise, only the weights of the
+   * inputs from the neurons that fired are, in place.
+   */
+  @Override
+  void excitatorySTDP(int i, double[] trace, boolean[] firedNow, int[] active, int numActive) {
+    double subtractiveDelta = etaSTDP * trace[i];
+    if (firedNow[i]) {
+      double[] row = rows.get();
+      weights.readRow(i, row, 0);
+      // Additive increase (with no self-loop)
+      double traceSum = Kernels.SELECTED.addScaled(row, 0, trace, etaSTDP, numNeurons, i);
+      l1Norms[i] += etaSTDP * traceSum;
+      if (subtractiveDelta > 0.0) {
+        for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+          int j = active[activeIdx];
+          if (j == i) { continue; } // No self-loops
+          // Additive decrease, with minimum value 0.0
+          double decreasedWeight = Math.max(row[j] - subtractiveDelta, 0.0);
+          l1Norms[i] += decreasedWeight - row[j];
+          row[j] = decreasedWeight;
+        }
+      }
+      storeRow(i, row);
+    } else if (subtractiveDelta > 0.0) {
+      ByteBuffer segment = weights.segmentOf(i);
+      int rowStart = weights.rowStartOf(i);
+      for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+        int j = active[activeIdx];
+        if (j == i) { continue; } // No self-loops
+        double weight = weights.get(segment, rowStart, j);
+        if (weight < Double.MIN_VALUE) { continue; } // Already zero
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = weights.set(segment, rowStart, j, Math.max(weight - subtractiveDelta, 0.0));
+        l1Norms[i] += decreasedWeight - weight;
+        if (decreasedWeight < Double.MIN_VALUE) { numInputs[i]--; }
+      }
+    }
+  }
+
+  @Override
+  void excitatorySTDP(int i, boolean[] firedPreviously, boolean[] firedNow) {
+    if (!firedPreviously[i] && !firedNow[i]) { return; } // No weight of neuron i changes
+    double[] row = rows.get();
+    weights.readRow(i, row, 0);
+    for (int j = 0; j < numNeurons; j++) {
+
+      if (row[j] < Double.MIN_VALUE) continue; // STDP only occurs between connected neurons
+
+      if (firedPreviously[j] && firedNow[i]) {
+        row[j] += etaSTDP; // Additive increase
+        l1Norms[i] += etaSTDP;
+      }
+      if (firedPreviously[i] && firedNow[j]) {
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = Math.max(row[j] - etaSTDP, 0.0);
+        l1Norms[i] += decreasedWeight - row[j];
+        row[j] = decreasedWeight;
+      }
+    }
+    storeRow(i, row);
+  }
+
+  @Override
+  boolean synapticNormalization(int i, double[] scratch) {
+    if (l1Norms[i] <= targetL1Norm * (1.0 - L1_NORM_SLACK)) { return false; } // L1 constraint already satisfied
+    double[] row = rows.get();
+    weights.readRow(i, row, 0);
+    // The projection recomputes the L1 norm exactly, which also discards accumulated round-off
+    l1Norms[i] = Util.projectWeightsInL1(row, 0, numNeurons, targetL1Norm, scratch);
+    storeRow(i, row);
+    return true;
+  }
+
+  /**
+   * As in DenseNetwork and SparseNetwork, the new inputs are found in decreasing order, by a single downward scan of
+   * the row, which is only read if there are any.
+   */
+  @Override
+  void structuralPlasticity(int i, int t, int[] scratch) {
+    int numMissing = numNeurons - 1 - numInputs[i]; // Missing inputs, other than neuron i itself
+    int position = numMissing;
+    int numNew = 0;
+    while (true) {
+      double skipped = sampleStructuralSkip(i, t, numNew);
+      if (!(skipped < position)) { break; } // Also stops if logNoNewConnection == 0.0
+      position -= (int) skipped + 1;
+      scratch[numNew] = position; // The new input is the position^th missing input
+      numNew++;
+    }
+    if (numNew == 0) { return; }
+
+    double[] row = rows.get();
+    weights.readRow(i, row, 0);
+    ByteBuffer segment = weights.segmentOf(i);
+    int rowStart = weights.rowStartOf(i);
+    int j = numNeurons - 1;
+    int numMissingAbove = 0; // Missing inputs above j
+    for (int newIdx = 0; newIdx < numNew; newIdx++) {
+      int numAbove = numMissing - 1 - scratch[newIdx]; // Missing inputs above the new input
+      while (j == i || row[j] >= Double.MIN_VALUE || numMissingAbove < numAbove) {
+        if (j != i && row[j] < Double.MIN_VALUE) { numMissingAbove++; }
+        j--;
+      }
+      l1Norms[i] += weights.set(segment, rowStart, j, newStructuralConnectionWeight);
+      numMissingAbove++;
+      j--;
+    }
+    numInputs[i] += numNew;
+  }
+
+  @Override
+  void saveState(Checkpoint.Writer out) throws IOException {
+    super.saveState(out);
+    weights.saveState(out);
+  }
+
+  @Override
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    super.restoreState(in);
+    weights.restoreState(in);
+    double[] row = rows.get();
+    for (int i = 0; i < numNeurons; i++) {
+      weights.readRow(i, row, 0);
+      numInputs[i] = countInputs(row);
+    }
+  }
+
+  @Override
+  void close() {
+    weights.close();
+  }
+
+  /**
+   * Writes row (a copy of row i, with no self-loop) back to the store, and recounts its inputs;
+   * in single precision, the row is rounded, and its L1 norm is recomputed from the rounded weights.
+   */
+  private void storeRow(int i, double[] row) {
+    weights.writeRow(i, row, 0);
+    if (weights.isFloatPrecision()) {
+      l1Norms[i] = Kernels.SELECTED.sum(row, 0, numNeurons);
+    }
+    numInputs[i] = countInputs(row);
+  }
+
+  /**
+   * @return number of non-zero weights in row (a copy of a row, with no self-loop)
+   */
+  private int countInputs(double[] row) {
+    int count = 0;
+    for (int j = 0; j < numNeurons; j++) {
+      if (row[j] >= Double.MIN_VALUE) { count++; }
+    }
+    return count;
+  }
+
+}
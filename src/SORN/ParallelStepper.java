@@ -0,0 +1,140 @@
+package SORN;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Splits the neurons of a network into contiguous chunks, each owned by one thread for the
+ * lifetime of the stepper, and runs per-neuron phases of a time step on all chunks in parallel.
+ * Since every chunk is always processed by the same thread, per-chunk state that is not
+ * thread-safe (such as scratch space) stays confined to a single thread.
+ *
+ * The calling thread processes the first chunk itself, and run() only returns once every chunk has
+ * finished, so consecutive calls to run() are separated by a barrier.
+ */
+class ParallelStepper {
+
+  /**
+   * A phase of a time step, applied to the neurons of one chunk.
+   */
+  interface ChunkTask {
+    /**
+     * @param chunkIdx index of the chunk, in 0, ..., getNumChunks() - 1
+     * @param from first neuron of the chunk
+     * @param to one more than the last neuron of the chunk
+     */
+    void run(int chunkIdx, int from, int to);
+  }
+
+  private final int[] chunkStarts; // Chunk c consists of neurons chunkStarts[c], ..., chunkStarts[c + 1] - 1
+  private final Thread[] workers; // workers[c - 1] processes chunk c
+  private final CyclicBarrier start;
+  private final CyclicBarrier finish;
+  private ChunkTask task; // Published to the workers by the start barrier
+  private boolean closed;
+  private volatile Throwable failure; // First exception thrown by a worker during the current task
+
+  /**
+   * @param numNeurons number of neurons in the network
+   * @param numThreads number of threads (including the calling thread) to use
+   */
+  ParallelStepper(int numNeurons, int numThreads) {
+    this(0, numNeurons, numThreads);
+  }
+
+  /**
+   * Splits only neurons from, ..., to - 1 (e.g., those of one shard; see ShardWorker) into chunks.
+   *
+   * @param numThreads number of threads (including the calling thread) to use
+   */
+  ParallelStepper(int from, int to, int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+    int numChunks = Math.max(1, Math.min(numThreads, to - from));
+    chunkStarts = new int[numChunks + 1];
+    for (int chunkIdx = 0; chunkIdx <= numChunks; chunkIdx++) {
+      chunkStarts[chunkIdx] = from + (int) ((long) chunkIdx * (to - from) / numChunks);
+    }
+
+    start = new CyclicBarrier(numChunks);
+    finish = new CyclicBarrier(numChunks);
+    workers = new Thread[numChunks - 1];
+    for (int chunkIdx = 1; chunkIdx < numChunks; chunkIdx++) {
+      final int finalChunkIdx = chunkIdx;
+      workers[chunkIdx - 1] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          while (true) {
+            await(start);
+            if (closed) { return; }
+            runChunk(finalChunkIdx);
+            await(finish);
+          }
+        }
+      }, "ParallelStepper-" + chunkIdx);
+      workers[chunkIdx - 1].setDaemon(true);
+      workers[chunkIdx - 1].start();
+    }
+  }
+
+  int getNumChunks() { return chunkStarts.length - 1; }
+
+  /**
+   * Runs task on every chunk, and waits for all chunks to finish.
+   *
+   * @throws RuntimeException if task threw on any chunk (after all chunks have finished)
+   */
+  void run(ChunkTask task) {
+    if (closed) {
+      throw new IllegalStateException("Stepper has already been closed.");
+    }
+    this.task = task;
+    failure = null;
+    if (workers.length > 0) { await(start); }
+    runChunk(0);
+    if (workers.length > 0) { await(finish); }
+    this.task = null;
+
+    Throwable cause = failure;
+    if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+    if (cause instanceof Error) { throw (Error) cause; }
+  }
+
+  /**
+   * Stops the worker threads. The stepper cannot be used afterwards.
+   */
+  void close() {
+    if (closed) { return; }
+    closed = true;
+    if (workers.length > 0) { await(start); }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void runChunk(int chunkIdx) {
+    try {
+      task.run(chunkIdx, chunkStarts[chunkIdx], chunkStarts[chunkIdx + 1]);
+    } catch (Throwable t) {
+      if (failure == null) { failure = t; }
+    }
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for other chunks.", e);
+    } catch (BrokenBarrierException e) {
+      throw new IllegalStateException("Another chunk was interrupted.", e);
+    }
+  }
+
+}
@@ -0,0 +1,208 @@
+package SORN;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The parameters of a simulation: its size (numbers of trials, neurons and time steps), its seed,
+ * and the constants of the network's update rules. Each parameter has a default (below), which can
+ * be overridden by a property of the same name (e.g., "memory = 4"), so that different parameters
+ * can be simulated in the same JVM (see Sweep) without recompiling.
+ */
+final class Parameters {
+
+  // Defaults of the simulation's parameters
+  static final int NUM_TRIALS = 10; // Number of IID trials to run
+  static final int NUM_NEURONS = 200; // Number of neurons
+  static final int DURATION = 1000; // Number of time steps to simulate
+  static final long SEED = 20160820L; // Seed of all random numbers in the simulation
+
+  // Defaults of the global neuron-related constants
+  static final double ETA_STDP = 0.004; // Excitatory STDP step size
+  static final double ETA_IP = 0.01; // Intrinsic plasticity step size
+  static final double WEIGHT_INITIAL_MAX = 1.0; // Max of uniform dist of initial weights
+  static final double SIGMA2_MIN = 0.01; // Min of uniform dist of sigma^2
+  static final double SIGMA2_MAX = 0.05; // Max of uniform dist of sigma^2
+  static final double FIRING_THRESHOLD_INITIAL_MAX = 1.0; // Max of uniform dist of initial firingThreshold
+  static final double TARGET_FIRING_RATE = 0.1; // As in Zhang et al. (they use N(0.1, 0), for some reason)
+  static final double TARGET_L1_NORM = 0.05; // Target L1 norm for synaptic normalization
+  static final double STRUCTURAL_CONNECTION_PROBABILITY = 0.1; // Prob. of new connections
+  static final double NEW_STRUCTURAL_CONNECTION_WEIGHT = 0.001; // Strength of new connections
+  static final int MEMORY = 10; // Number of time steps back that neurons remember (for STDP)
+  static final double DECAY_RATE = 0.9; // Fraction by which STDP effects decay with each time step
+
+  // Names of the properties that override the defaults, in the order in which they are written
+  static final List<String> NAMES = Arrays.asList(
+      "numTrials", "numNeurons", "duration", "seed", "etaSTDP", "etaIP", "weightInitialMax",
+      "sigma2Min", "sigma2Max", "firingThresholdInitialMax", "targetFiringRate", "targetL1Norm",
+      "structuralConnectionProbability", "newStructuralConnectionWeight", "memory", "decayRate");
+
+  final int numTrials;
+  final int numNeurons;
+  final int duration;
+  final long seed;
+  final double etaSTDP;
+  final double etaIP;
+  final double weightInitialMax;
+  final double sigma2Min;
+  final double sigma2Max;
+  final double firingThresholdInitialMax;
+  final double targetFiringRate;
+  final double targetL1Norm;
+  final double structuralConnectionProbability;
+  final double newStructuralConnectionWeight;
+  final int memory;
+  final double decayRate;
+
+  /**
+   * The default parameters.
+   */
+  Parameters() {
+    this(new Properties());
+  }
+
+  /**
+   * @param properties overrides of the default parameters, keyed by the names in NAMES
+   * @throws IllegalArgumentException if a property is not a parameter, or its value is invalid
+   */
+  Parameters(Properties properties) {
+    for (String name : properties.stringPropertyNames()) {
+      if (!NAMES.contains(name)) {
+        throw new IllegalArgumentException("Unknown parameter: " + name);
+      }
+    }
+    numTrials = getInt(properties, "numTrials", NUM_TRIALS);
+    numNeurons = getInt(properties, "numNeurons", NUM_NEURONS);
+    duration = getInt(properties, "duration", DURATION);
+    seed = getLong(properties, "seed", SEED);
+    etaSTDP = getDouble(properties, "etaSTDP", ETA_STDP);
+    etaIP = getDouble(properties, "etaIP", ETA_IP);
+    weightInitialMax = getDouble(properties, "weightInitialMax", WEIGHT_INITIAL_MAX);
+    sigma2Min = getDouble(properties, "sigma2Min", SIGMA2_MIN);
+    sigma2Max = getDouble(properties, "sigma2Max", SIGMA2_MAX);
+    firingThresholdInitialMax = getDouble(properties, "firingThresholdInitialMax", FIRING_THRESHOLD_INITIAL_MAX);
+    targetFiringRate = getDouble(properties, "targetFiringRate", TARGET_FIRING_RATE);
+    targetL1Norm = getDouble(properties, "targetL1Norm", TARGET_L1_NORM);
+    structuralConnectionProbability = getDouble(properties, "structuralConnectionProbability", STRUCTURAL_CONNECTION_PROBABILITY);
+    newStructuralConnectionWeight = getDouble(properties, "newStructuralConnectionWeight", NEW_STRUCTURAL_CONNECTION_WEIGHT);
+    memory = getInt(properties, "memory", MEMORY);
+    decayRate = getDouble(properties, "decayRate", DECAY_RATE);
+
+    if (numTrials < 1 || numNeurons < 1 || duration < 1) {
+      throw new IllegalArgumentException("Numbers of trials, neurons and time steps must be positive: "
+          + numTrials + ", " + numNeurons + ", " + duration);
+    }
+    if (memory < 0) {
+      throw new IllegalArgumentException("STDP memory is negative: " + memory);
+    }
+    if (!(structuralConnectionProbability >= 0.0 && structuralConnectionProbability < 1.0)) {
+      throw new IllegalArgumentException("Structural connection probability must be in [0, 1): "
+          + structuralConnectionProbability);
+    }
+  }
+
+  /**
+   * @return a copy of these parameters, except that the parameter called name has the given value
+   */
+  Parameters with(String name, Object value) {
+    Properties properties = toProperties();
+    properties.setProperty(name, value.toString());
+    return new Parameters(properties);
+  }
+
+  /**
+   * @return all parameters (including defaults), keyed by the names in NAMES
+   */
+  Properties toProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("numTrials", Integer.toString(numTrials));
+    properties.setProperty("numNeurons", Integer.toString(numNeurons));
+    properties.setProperty("duration", Integer.toString(duration));
+    properties.setProperty("seed", Long.toString(seed));
+    properties.setProperty("etaSTDP", Double.toString(etaSTDP));
+    properties.setProperty("etaIP", Double.toString(etaIP));
+    properties.setProperty("weightInitialMax", Double.toString(weightInitialMax));
+    properties.setProperty("sigma2Min", Double.toString(sigma2Min));
+    properties.setProperty("sigma2Max", Double.toString(sigma2Max));
+    properties.setProperty("firingThresholdInitialMax", Double.toString(firingThresholdInitialMax));
+    properties.setProperty("targetFiringRate", Double.toString(targetFiringRate));
+    properties.setProperty("targetL1Norm", Double.toString(targetL1Norm));
+    properties.setProperty("structuralConnectionProbability", Double.toString(structuralConnectionProbability));
+    properties.setProperty("newStructuralConnectionWeight", Double.toString(newStructuralConnectionWeight));
+    properties.setProperty("memory", Integer.toString(memory));
+    properties.setProperty("decayRate", Double.toString(decayRate));
+    return properties;
+  }
+
+  /**
+   * @return names (in the order of NAMES) of the parameters whose values differ from other's
+   */
+  List<String> differingNames(Parameters other) {
+    Properties properties = toProperties();
+    Properties otherProperties = other.toProperties();
+    List<String> names = new ArrayList<>();
+    for (String name : NAMES) {
+      if (!properties.getProperty(name).equals(otherProperties.getProperty(name))) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return all parameters, as UTF-8 "name=value" lines (e.g., for Checkpoint and ShardWorker)
+   */
+  byte[] toBytes() {
+    Properties properties = toProperties();
+    StringBuilder lines = new StringBuilder();
+    for (String name : NAMES) {
+      lines.append(name).append('=').append(properties.getProperty(name)).append('\n');
+    }
+    return lines.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the parameters encoded by toBytes()
+   */
+  static Parameters fromBytes(byte[] bytes) {
+    Properties properties = new Properties();
+    for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+      int separator = line.indexOf('=');
+      if (separator > 0) {
+        properties.setProperty(line.substring(0, separator), line.substring(separator + 1));
+      }
+    }
+    return new Parameters(properties);
+  }
+
+  private static int getInt(Properties properties, String name, int defaultValue) {
+    String value = properties.getProperty(name);
+    try {
+      return (value == null) ? defaultValue : Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + value, e);
+    }
+  }
+
+  private static long getLong(Properties properties, String name, long defaultValue) {
+    String value = properties.getProperty(name);
+    try {
+      return (value == null) ? defaultValue : Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Parameter " + name + " is not an integer: " + value, e);
+    }
+  }
+
+  private static double getDouble(Properties properties, String name, double defaultValue) {
+    String value = properties.getProperty(name);
+    try {
+      return (value == null) ? defaultValue : Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Parameter " + name + " is not a number: " + value, e);
+    }
+  }
+
+}
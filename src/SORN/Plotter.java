@@ -9,8 +9,6 @@ import org.jfree.chart.axis.ValueAxis;
 import org.jfree.chart.plot.DatasetRenderingOrder;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYErrorRenderer;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.YIntervalSeries;
 import org.jfree.data.xy.YIntervalSeriesCollection;
 import org.jfree.ui.ApplicationFrame;
 
@@ -81,40 +79,4 @@ class Plotter extends ApplicationFrame {
     }
   }
 
-  static YIntervalSeriesCollection averageTrials(ArrayList<XYSeries> results, String label) {
-    if (results.size() == 0) {
-      throw new IllegalArgumentException("No trials to average.");
-    }
-
-    YIntervalSeries averagedSeries = new YIntervalSeries(label);
-    for (int i = 0; i < results.get(0).getItemCount(); i++) {
-
-      // compute point-wise means
-      double sum = 0.0;
-      for (XYSeries series : results) {
-        sum += (double) (series.getY(i));
-      }
-      double mean = sum / results.size();
-
-      // compute point-wise standard deviations
-      double sumSquaredDeviations = 0.0;
-      for (XYSeries series : results) {
-        sumSquaredDeviations += Math.pow(((double) series.getY(i)) - mean, 2.0);
-      }
-      double standardDeviation = Math.sqrt(sumSquaredDeviations / results.size());
-
-      // compute point-wise confidence intervals (CI)
-      double zScore95 = 1.96; // # of standard deviations from mean for two-sided 95% normal CI
-      double CIRadius = standardDeviation * zScore95; // Math.sqrt(numSamples);
-      averagedSeries.add((double) results.get(0).getX(i),
-          mean,
-          mean - CIRadius,  // lower 95% confidence bound
-          mean + CIRadius); // upper 95% confidence bound
-    }
-    YIntervalSeriesCollection averagedSeriesAsCollection = new YIntervalSeriesCollection();
-    averagedSeriesAsCollection.addSeries(averagedSeries);
-    return averagedSeriesAsCollection;
-  }
-
-
 }
@@ -0,0 +1,51 @@
+package SORN;
+
+/**
+ * A generated Stimulus.Source of independent (Bernoulli) spike trains, in which each driven neuron
+ * spikes in each time step with the same probability, drawn from a RandomStream (with purpose
+ * STIMULUS), so that the input never repeats, and is the same however it is read. A rate of 1.0
+ * makes the driven neurons fire in every time step.
+ */
+final class PoissonStimulus implements Stimulus.Source {
+
+  private final int numDriven;
+  private final double rate;
+  private final RandomStream random;
+
+  /**
+   * @param rate probability that each driven neuron spikes in each time step
+   * @param random source of the spikes (e.g., the trial's own, or one shared by several trials, to
+   *               drive them with the same input)
+   */
+  PoissonStimulus(int numDriven, double rate, RandomStream random) {
+    if (numDriven < 1 || !(rate >= 0.0 && rate <= 1.0)) {
+      throw new IllegalArgumentException("Invalid Poisson stimulus of " + numDriven + " neurons at rate " + rate);
+    }
+    this.numDriven = numDriven;
+    this.rate = rate;
+    this.random = random;
+  }
+
+  @Override
+  public int getNumDriven() { return numDriven; }
+
+  @Override
+  public boolean isSpikes() { return true; }
+
+  @Override
+  public int getNumSteps() { return Integer.MAX_VALUE; }
+
+  @Override
+  public void read(int step, long[] spikes, float[] currents, int offset) {
+    for (int wordIdx = 0; wordIdx < SpikeHistory.numWordsFor(numDriven); wordIdx++) {
+      long word = 0L;
+      for (int bit = 0; bit < 64 && (wordIdx << 6) + bit < numDriven; bit++) {
+        if (random.uniform((wordIdx << 6) + bit, step, RandomStream.STIMULUS, 0) < rate) {
+          word |= 1L << bit;
+        }
+      }
+      spikes[offset + wordIdx] = word;
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+package SORN;
+
+/**
+ * A counter-based source of randomness for a single trial. Rather than advancing a shared state,
+ * every random number is a hash of its 'coordinates' (trial seed, neuron, time step, purpose and
+ * index), so that the numbers used by a neuron do not depend on which thread steps it, or on the
+ * order in which neurons are stepped. Consequently, simulations are bit-for-bit reproducible
+ * whether neurons are stepped serially, in parallel, or in batches.
+ *
+ * The hash consists of two rounds of the SplitMix64 finalizer (see Util.deriveSeed()). Gaussians
+ * are generated in pairs (for neurons 2k and 2k + 1) by the Box-Muller transform, using StrictMath
+ * so that results do not depend on the JIT.
+ */
+final class RandomStream {
+
+  // Purposes, which separate the random numbers used by different parts of the simulation
+  static final int INITIAL_FIRING = 0;
+  static final int SIGMA = 1;
+  static final int INITIAL_WEIGHTS = 2;
+  static final int INITIAL_THRESHOLD = 3;
+  static final int FIRING_NOISE = 4;
+  static final int STRUCTURAL_PLASTICITY = 5;
+  static final int TRACE_PROBES = 6;
+  static final int STIMULUS = 7;
+
+  private static final double TWO_PI = 2.0 * Math.PI;
+
+  private final long key; // Hash of the simulation's seed and the trial index
+
+  /**
+   * @param seed seed of the whole simulation
+   * @param trial index of the trial within the simulation
+   */
+  RandomStream(long seed, int trial) {
+    key = Util.deriveSeed(seed, trial);
+  }
+
+  private RandomStream(long key) {
+    this.key = key;
+  }
+
+  /**
+   * @return the RandomStream whose key (see getKey()) is key
+   */
+  static RandomStream withKey(long key) {
+    return new RandomStream(key);
+  }
+
+  /**
+   * @return the key from which all of this stream's numbers are hashed, which is its entire state
+   */
+  long getKey() { return key; }
+
+  /**
+   * @return a uniformly distributed double in [0, 1)
+   */
+  double uniform(int neuron, int step, int purpose, int index) {
+    return toUniform(hash(neuronStepKey(neuron, step), purpose, index));
+  }
+
+  /**
+   * Fills out[offset], ..., out[offset + length - 1] with the uniformly distributed doubles in
+   * [0, 1) with the given neuron, step and purpose, and indices 0, ..., length - 1.
+   */
+  void fillUniform(double[] out, int offset, int length, int neuron, int step, int purpose) {
+    long neuronStepKey = neuronStepKey(neuron, step);
+    for (int index = 0; index < length; index++) {
+      out[offset + index] = toUniform(hash(neuronStepKey, purpose, index));
+    }
+  }
+
+  /**
+   * @return a standard normal random variable
+   */
+  double gaussian(int neuron, int step, int purpose) {
+    int evenNeuron = neuron & ~1;
+    double radius = boxMullerRadius(evenNeuron, step, purpose);
+    double angle = boxMullerAngle(evenNeuron, step, purpose);
+    return radius * (((neuron & 1) == 0) ? StrictMath.cos(angle) : StrictMath.sin(angle));
+  }
+
+  /**
+   * Fills out[from], ..., out[to - 1] with the standard normal random variables of neurons
+   * from, ..., to - 1, with the given step and purpose.
+   */
+  void fillGaussian(double[] out, int from, int to, int step, int purpose) {
+    int neuron = from;
+    if ((neuron & 1) == 1 && neuron < to) { // Unpaired first neuron
+      out[neuron] = gaussian(neuron, step, purpose);
+      neuron++;
+    }
+    for (; neuron + 1 < to; neuron += 2) {
+      double radius = boxMullerRadius(neuron, step, purpose);
+      double angle = boxMullerAngle(neuron, step, purpose);
+      out[neuron] = radius * StrictMath.cos(angle);
+      out[neuron + 1] = radius * StrictMath.sin(angle);
+    }
+    if (neuron < to) { // Unpaired last neuron
+      out[neuron] = gaussian(neuron, step, purpose);
+    }
+  }
+
+  private double boxMullerRadius(int evenNeuron, int step, int purpose) {
+    // 1.0 - uniform lies in (0, 1], so its logarithm is finite
+    return Math.sqrt(-2.0 * StrictMath.log(1.0 - uniform(evenNeuron, step, purpose, 0)));
+  }
+
+  private double boxMullerAngle(int evenNeuron, int step, int purpose) {
+    return TWO_PI * uniform(evenNeuron, step, purpose, 1);
+  }
+
+  private long neuronStepKey(int neuron, int step) {
+    return Util.deriveSeed(key, ((long) neuron << 32) | (step & 0xFFFFFFFFL));
+  }
+
+  private static long hash(long neuronStepKey, int purpose, int index) {
+    return Util.deriveSeed(neuronStepKey, ((long) purpose << 32) | (index & 0xFFFFFFFFL));
+  }
+
+  private static double toUniform(long bits) {
+    return (bits >>> 11) * 0x1.0p-53;
+  }
+
+}
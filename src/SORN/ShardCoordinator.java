@@ -0,0 +1,272 @@
+package SORN;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a trial whose network is split into shards, each stepped by its own worker process (see
+ * ShardWorker), so that networks whose weights exceed the memory of one JVM can be simulated. Each
+ * shard owns a contiguous range of neurons, and hence their rows of the weight matrix, so every
+ * update rule stays within one shard; the only data exchanged in each time step is the packed
+ * firing pattern (numNeurons / 8 bytes).
+ *
+ * The coordinator listens on a loopback socket, to which the workers connect. In each time step,
+ * it waits for every shard's part of the firing pattern, which makes it the barrier between time
+ * steps, and then sends the whole pattern to every shard. Shards are aligned to multiples of 64
+ * neurons, so that their parts are disjoint words of the pattern. The coordinator also computes
+ * the firing rate and the density of the network (as NetworkStatistics does) from the patterns and
+ * the shards' numbers of synapses, and writes them to a .stats file.
+ *
+ * Since every shard evolves exactly like its neurons would in a single process (see Trial), a
+ * sharded trial is identical to the trial of Sim with the same parameters, index and (dense)
+ * synapses, whatever the number of shards.
+ *
+ * Protocol (big-endian; one TCP connection per shard):
+ *   setup (to the worker): magic, version, shard index, from, to (ints), RandomStream key (long),
+ *     eventDrivenPropagation, useSpikeTraces, truncateSpikeTraces (booleans), stepThreads,
+ *     statisticsEvery (ints), parameters (int length, then that many bytes; see Parameters.toBytes())
+ *   then (from the worker) its number of synapses at time 0 (long), and, for each time step
+ *   t = 1, ..., duration - 1: t (int) and the words of the pattern of the shard's neurons (from the
+ *   worker), the whole pattern (to the worker), and, if t is a multiple of statisticsEvery, the
+ *   shard's number of synapses (long; from the worker)
+ *
+ * Usage: java SORN.ShardCoordinator numShards outputPathRoot [worker JVM options (e.g., -Xmx8g)]
+ * runs trial 0 of the default parameters (see Parameters) in numShards local worker processes.
+ */
+final class ShardCoordinator implements Closeable {
+
+  static final int MAGIC = 0x534E5254; // Distinct from StimulusFile.MAGIC
+  static final int VERSION = 1;
+
+  private static final int ACCEPT_TIMEOUT_MILLIS = 60000; // For workers to start and connect
+  private static final int STREAM_BUFFER_BYTES = 1 << 16;
+
+  // Configuration of the trial, as in Sim
+  private static final boolean eventDrivenPropagation = true; // Only propagate input from neurons that fired
+  private static final boolean useSpikeTraces = true; // Compute STDP from spike traces, rather than from the firing history
+  private static final boolean truncateSpikeTraces = true; // Only use the last Parameters.memory steps of spike traces
+  private static final int stepThreads = 1; // Number of threads that step the neurons of each shard
+  private static final int statisticsEvery = 10; // Compute firing rate and density every statisticsEvery time steps
+
+  private final ServerSocket server;
+  private final List<Process> workers = new ArrayList<>();
+
+  /**
+   * Listens on an ephemeral port of the loopback interface.
+   */
+  ShardCoordinator() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: java SORN.ShardCoordinator numShards outputPathRoot [worker JVM options]");
+      System.exit(2);
+    }
+    int numShards = Integer.parseInt(args[0]);
+    String outputPathRoot = args[1];
+    Parameters params = new Parameters();
+    try (ShardCoordinator coordinator = new ShardCoordinator()) {
+      coordinator.launchWorkers(numShards, Arrays.asList(args).subList(2, args.length));
+      coordinator.runTrial(params, new RandomStream(params.seed, 0), numShards, eventDrivenPropagation, useSpikeTraces,
+          truncateSpikeTraces, stepThreads, statisticsEvery, outputPathRoot + ".stats", null);
+    }
+  }
+
+  int getPort() { return server.getLocalPort(); }
+
+  /**
+   * Starts numWorkers local worker processes (with this JVM's java executable and class path), which
+   * connect to this coordinator.
+   *
+   * @param jvmOptions options of the workers' JVMs (e.g., their maximum heap size)
+   */
+  void launchWorkers(int numWorkers, List<String> jvmOptions) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    for (int workerIdx = 0; workerIdx < numWorkers; workerIdx++) {
+      List<String> command = new ArrayList<>();
+      command.add(java);
+      command.addAll(jvmOptions);
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(ShardWorker.class.getName());
+      command.add(InetAddress.getLoopbackAddress().getHostAddress());
+      command.add(Integer.toString(getPort()));
+      workers.add(new ProcessBuilder(command).inheritIO().start());
+    }
+  }
+
+  /**
+   * Runs one trial, split into numShards shards, each stepped by a worker that connects to this
+   * coordinator (e.g., one started by launchWorkers()).
+   *
+   * @param random the trial's source of randomness
+   * @param statsFilePath path of the CSV file (as written by NetworkStatistics.writeCSV(), but with
+   *                      only the firing rate and density) to which to write the statistics
+   * @param spikeRecorder recorder of the firing pattern of every time step, or null
+   */
+  void runTrial(Parameters params, RandomStream random, int numShards, boolean eventDrivenPropagation,
+                boolean useSpikeTraces, boolean truncateSpikeTraces, int stepThreads, int statisticsEvery,
+                String statsFilePath, SpikeRecorder spikeRecorder) throws IOException {
+    int numNeurons = params.numNeurons;
+    int numWords = SpikeHistory.numWordsFor(numNeurons);
+    if (numShards < 1 || numShards > numWords) {
+      throw new IllegalArgumentException("Cannot split " + numNeurons + " neurons into " + numShards + " shards");
+    }
+    if (statisticsEvery < 1) {
+      throw new IllegalArgumentException("Sampling cadence must be positive: " + statisticsEvery);
+    }
+    int[] wordStarts = new int[numShards + 1]; // Shard k owns words wordStarts[k], ..., wordStarts[k + 1] - 1
+    for (int shardIdx = 0; shardIdx <= numShards; shardIdx++) {
+      wordStarts[shardIdx] = (int) ((long) shardIdx * numWords / numShards);
+    }
+
+    Socket[] sockets = new Socket[numShards];
+    DataInputStream[] ins = new DataInputStream[numShards];
+    DataOutputStream[] outs = new DataOutputStream[numShards];
+    try (BufferedWriter stats = new BufferedWriter(new FileWriter(statsFilePath))) {
+      byte[] paramBytes = params.toBytes();
+      for (int shardIdx = 0; shardIdx < numShards; shardIdx++) {
+        sockets[shardIdx] = server.accept();
+        sockets[shardIdx].setTcpNoDelay(true);
+        ins[shardIdx] = new DataInputStream(new BufferedInputStream(sockets[shardIdx].getInputStream(), STREAM_BUFFER_BYTES));
+        outs[shardIdx] = new DataOutputStream(new BufferedOutputStream(sockets[shardIdx].getOutputStream(), STREAM_BUFFER_BYTES));
+        DataOutputStream out = outs[shardIdx];
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(shardIdx);
+        out.writeInt(Math.min(wordStarts[shardIdx] << 6, numNeurons));
+        out.writeInt(Math.min(wordStarts[shardIdx + 1] << 6, numNeurons));
+        out.writeLong(random.getKey());
+        out.writeBoolean(eventDrivenPropagation);
+        out.writeBoolean(useSpikeTraces);
+        out.writeBoolean(truncateSpikeTraces);
+        out.writeInt(stepThreads);
+        out.writeInt(statisticsEvery);
+        out.writeInt(paramBytes.length);
+        out.write(paramBytes);
+        out.flush();
+      }
+      System.out.println("Running " + numNeurons + " neurons in " + numShards + " shards");
+
+      // The initial firing pattern is drawn by every shard alike, so it is only counted here
+      long[] pattern = new long[numWords];
+      byte[] scratch = new byte[8 * numWords];
+      for (int i = 0; i < numNeurons; i++) {
+        if (Trial.firesInitially(random, i)) { pattern[i >> 6] |= 1L << (i & 63); }
+      }
+      if (spikeRecorder != null) { spikeRecorder.recordSpikes(0, pattern); }
+      stats.write("t,firing_rate,density");
+      stats.newLine();
+      long numSpikes = SpikeHistory.countSpikes(pattern, 0, numWords);
+      int numSpikeSteps = 1;
+      writeSample(stats, 0, numNeurons, numSpikes, numSpikeSteps, readNumSynapses(ins));
+      numSpikes = 0;
+      numSpikeSteps = 0;
+
+      for (int t = 1; t < params.duration; t++) {
+        if (t % 500 == 0) System.out.println("Sharded trial t: " + t);
+        for (int shardIdx = 0; shardIdx < numShards; shardIdx++) {
+          int shardTime = ins[shardIdx].readInt();
+          if (shardTime != t) {
+            throw new IOException("Shard " + shardIdx + " sent time step " + shardTime + ", not " + t);
+          }
+          readWords(ins[shardIdx], pattern, wordStarts[shardIdx], wordStarts[shardIdx + 1] - wordStarts[shardIdx], scratch);
+        }
+        for (int shardIdx = 0; shardIdx < numShards; shardIdx++) {
+          writeWords(outs[shardIdx], pattern, 0, numWords, scratch);
+          outs[shardIdx].flush();
+        }
+        if (spikeRecorder != null) { spikeRecorder.recordSpikes(t, pattern); }
+        numSpikes += SpikeHistory.countSpikes(pattern, 0, numWords);
+        numSpikeSteps++;
+        if (t % statisticsEvery == 0) {
+          writeSample(stats, t, numNeurons, numSpikes, numSpikeSteps, readNumSynapses(ins));
+          numSpikes = 0;
+          numSpikeSteps = 0;
+        }
+      }
+    } finally {
+      for (Socket socket : sockets) {
+        if (socket != null) { socket.close(); }
+      }
+    }
+  }
+
+  /**
+   * Stops listening, and waits for the workers started by launchWorkers() to exit (destroying those
+   * that do not, e.g., after a failure).
+   */
+  @Override
+  public void close() throws IOException {
+    server.close();
+    for (Process worker : workers) {
+      try {
+        if (!worker.waitFor(10, TimeUnit.SECONDS)) {
+          worker.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        worker.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Writes words[offset], ..., words[offset + count - 1] through scratch (of at least 8 * count
+   * bytes), in a single write.
+   */
+  static void writeWords(DataOutputStream out, long[] words, int offset, int count, byte[] scratch) throws IOException {
+    ByteBuffer.wrap(scratch).asLongBuffer().put(words, offset, count);
+    out.write(scratch, 0, 8 * count);
+  }
+
+  /**
+   * Reads words[offset], ..., words[offset + count - 1] through scratch (of at least 8 * count
+   * bytes), as written by writeWords().
+   */
+  static void readWords(DataInputStream in, long[] words, int offset, int count, byte[] scratch) throws IOException {
+    in.readFully(scratch, 0, 8 * count);
+    ByteBuffer.wrap(scratch).asLongBuffer().get(words, offset, count);
+  }
+
+  /**
+   * @return total number of synapses, read from every shard
+   */
+  private static long readNumSynapses(DataInputStream[] ins) throws IOException {
+    long numSynapses = 0;
+    for (DataInputStream in : ins) {
+      numSynapses += in.readLong();
+    }
+    return numSynapses;
+  }
+
+  /**
+   * Writes a line of the .stats file, with the firing rate and density computed as in
+   * NetworkStatistics.sample().
+   */
+  private static void writeSample(BufferedWriter stats, int t, int numNeurons, long numSpikes, int numSpikeSteps,
+                                  long numSynapses) throws IOException {
+    double firingRate = (numSpikeSteps == 0) ? 0.0 : ((double) numSpikes) / ((double) numNeurons * numSpikeSteps);
+    double density = (numNeurons < 2) ? 0.0 : ((double) numSynapses) / ((double) numNeurons * (numNeurons - 1));
+    stats.write(t + "," + firingRate + "," + density);
+    stats.newLine();
+  }
+
+}
@@ -0,0 +1,100 @@
+package SORN;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A worker process that steps one shard of a trial run by a ShardCoordinator (see its protocol):
+ * it connects to the coordinator, receives the parameters, trial and range of neurons of its shard,
+ * and then steps the shard (see Trial), exchanging each time step's firing pattern with the other
+ * shards through the coordinator, until the end of the trial.
+ *
+ * Usage: java SORN.ShardWorker coordinatorHost coordinatorPort
+ */
+final class ShardWorker implements Trial.SpikeExchange {
+
+  private static final int STREAM_BUFFER_BYTES = 1 << 16;
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private final long[] pattern; // Packed firing pattern of the latest time step, as in SpikeHistory
+  private final byte[] scratch;
+
+  private ShardWorker(DataInputStream in, DataOutputStream out, int numNeurons) {
+    this.in = in;
+    this.out = out;
+    pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+    scratch = new byte[8 * pattern.length];
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: java SORN.ShardWorker coordinatorHost coordinatorPort");
+      System.exit(2);
+    }
+    try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_BYTES));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_BYTES));
+      if (in.readInt() != ShardCoordinator.MAGIC) {
+        throw new IOException("Not connected to a SORN shard coordinator");
+      }
+      int version = in.readInt();
+      if (version != ShardCoordinator.VERSION) {
+        throw new IOException("Unsupported shard protocol version " + version);
+      }
+      int shardIdx = in.readInt();
+      int from = in.readInt();
+      int to = in.readInt();
+      long key = in.readLong();
+      boolean eventDrivenPropagation = in.readBoolean();
+      boolean useSpikeTraces = in.readBoolean();
+      boolean truncateSpikeTraces = in.readBoolean();
+      int stepThreads = in.readInt();
+      int statisticsEvery = in.readInt();
+      byte[] paramBytes = new byte[in.readInt()];
+      in.readFully(paramBytes);
+      Parameters params = Parameters.fromBytes(paramBytes);
+
+      System.out.println("Shard " + shardIdx + " steps neurons " + from + " to " + (to - 1));
+      ShardWorker worker = new ShardWorker(in, out, params.numNeurons);
+      try (Trial trial = new Trial(params, RandomStream.withKey(key), from, to, worker, eventDrivenPropagation,
+          useSpikeTraces, truncateSpikeTraces, stepThreads)) {
+        out.writeLong(trial.getNetwork().getNumSynapses());
+        out.flush();
+        for (int t = 1; t < params.duration; t++) {
+          trial.step();
+          if (t % statisticsEvery == 0) {
+            out.writeLong(trial.getNetwork().getNumSynapses());
+            out.flush();
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void exchange(int t, boolean[] firedNow, int from, int to) throws IOException {
+    int firstWord = from >> 6;
+    int endWord = SpikeHistory.numWordsFor(to);
+    for (int wordIdx = firstWord; wordIdx < endWord; wordIdx++) {
+      pattern[wordIdx] = 0L;
+    }
+    for (int i = from; i < to; i++) {
+      if (firedNow[i]) { pattern[i >> 6] |= 1L << (i & 63); }
+    }
+    out.writeInt(t);
+    ShardCoordinator.writeWords(out, pattern, firstWord, endWord - firstWord, scratch);
+    out.flush();
+
+    ShardCoordinator.readWords(in, pattern, 0, pattern.length, scratch);
+    for (int i = 0; i < firedNow.length; i++) {
+      firedNow[i] = ((pattern[i >> 6] >>> (i & 63)) & 1L) != 0L;
+    }
+  }
+
+}
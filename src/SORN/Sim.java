@@ -1,10 +1,13 @@
 package SORN;
 
-import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.YIntervalSeriesCollection;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * This file is the backbone of the simulation, including the main() method.
@@ -13,120 +16,662 @@ import java.util.Random;
  */
 public class Sim {
 
-  private static final int numTrials = 10; // Number of IID trials to run
-  private static final int numNeurons = 200; // Number of neurons
-  private static final int duration = 1000; // Number of time steps to simulate
+  private static final boolean eventDrivenPropagation = true; // Only propagate input from neurons that fired
+  private static final boolean useSpikeTraces = true; // Compute STDP from spike traces, rather than from the firing history (faster, but not identical; see SpikeTrace)
+  private static final boolean truncateSpikeTraces = true; // Only use the last Parameters.memory steps of spike traces
+  private static final boolean sparseSynapses = false; // Store only non-zero weights (see SparseNetwork); trials are the same as with dense weights
+  private static final boolean offHeapWeights = false; // Store the weights densely, outside of the heap (see OffHeapNetwork)
+  private static final boolean floatWeights = false; // Store off-heap weights in single precision
+  private static final boolean mapWeights = false; // Map off-heap weights to a .synapses file (rather than direct memory)
 
   // Parameters specifying where and what the simulation should output
   private static final boolean makePlot = false;
   private static final boolean makeMATFile = true;
-  private static final String plotFilePath = "/home/sss1/Desktop/SORN/basic_" + numNeurons + "neurons_" + duration + "timesteps.png";
-  private static final String MATFileRoot = "/home/sss1/Desktop/SORN/resultsMemory" + Neuron.MEMORY;
+  private static final String outputDirectory = "/home/sss1/Desktop/SORN"; // Unless a sweep's config file says otherwise
 
-  public static void main(String[] args) {
+  // Parameters specifying how weights are recorded over time
+  private static final int recordEvery = 1; // Record weights every recordEvery time steps
+  private static final boolean streamWeights = true; // Stream weights to a .weights file (rather than the .mat file)
+  private static final int recorderBufferBytes = 64 << 20; // Size of the buffer for streamed weights
+  private static final boolean writeTrialFile = false; // Write spikes and weights to a compressed .trial file (rather than .weights and .mat files)
+  private static final int trialFileChunkBytes = 16 << 20; // Uncompressed size of the chunks of .trial files
+  private static final boolean asyncOutput = true; // Encode and write output on a separate thread, while the trial runs
+  private static final int outputQueueCapacity = 256; // Snapshots that may wait for the output thread
+  private static final int outputQueueFrames = 4; // Weight snapshots that may wait for the output thread
 
+  // Parameters specifying the external input that drives the first neurons (see Stimulus)
+  private static final String stimulusFilePath = null; // .stimulus file whose input is replayed in each trial (see StimulusFile), or null
+  private static final double drivenFraction = 0.0; // Otherwise, fraction of neurons driven by generated spike trains (see PoissonStimulus)
+  private static final double drivenRate = 1.0; // Probability that each driven neuron spikes in each time step
+  private static final int stimulusBlockSteps = 1024; // Time steps of input read (ahead) at a time
+
+  // Parameters specifying which statistics of the network are computed while the simulation runs
+  private static final boolean computeStatistics = true; // Write firing rate, density, reciprocity and trace(W^k) to a .stats file
+  private static final int statisticsEvery = 10; // Compute statistics every statisticsEvery time steps
+  private static final int tracePathLength = 4; // k in trace(W^k)
+  private static final int maxExactTraceNeurons = 2000; // Estimate trace(W^k) from random probes in larger networks
+  private static final int traceProbes = 32; // Number of random probes with which to estimate trace(W^k)
+
+  // Parameters specifying how trials that reach a steady state are cut short (see ConvergenceDetector)
+  private static final boolean detectConvergence = false; // Watch each trial for a steady firing rate, weight change, density and L1 norm
+  private static final boolean stopWhenConverged = true; // Stop converged trials (rather than recording them sparsely)
+  private static final int convergedRecordEvery = 100; // Otherwise, record weights and statistics of converged trials every convergedRecordEvery time steps
+  private static final int convergenceWindow = 100; // Check for a steady state every convergenceWindow time steps
+  private static final int convergenceStableWindows = 5; // Consecutive steady windows after which a trial has converged
+  private static final int convergenceRows = 256; // Rows of weights on which the weight change and L1 norm are measured
+  private static final double firingRateTolerance = 0.01; // Maximum distance of the firing rate from Parameters.targetFiringRate
+  private static final double weightChangeTolerance = 0.05; // Maximum relative change of the weight change from one window to the next
+  private static final double densityTolerance = 0.1; // Maximum relative change of the density from one window to the next
+  private static final double l1NormTolerance = 0.05; // Maximum relative change of the mean L1 norm from one window to the next
+
+  // Parameters specifying how the performance of the simulation is monitored
+  private static final boolean writeMetrics = true; // Write per-phase timings and counters to a .metrics file
+  private static final boolean emitJFREvents = true; // Also emit them as JFR events (SORN.StepMetrics), if JFR is available
+  private static final int metricsEvery = 100; // Export metrics every metricsEvery time steps
+
+  // Parameters specifying how trials are checkpointed (see Checkpoint)
+  private static final int checkpointEvery = 0; // Checkpoint each trial to a .checkpoint file every checkpointEvery time steps, and at its end (0: never)
+  private static final boolean resumeFromCheckpoints = true; // Resume each unfinished trial that has a .checkpoint file from it
+
+  // Parameters specifying how trials (and the neurons within each trial) are run in parallel
+  private static final int stepThreads = 1; // Number of threads that step the neurons of each trial
+  static final int maxTrialThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / stepThreads);
+  static final double trialHeapFraction = 0.75; // Fraction of the heap that concurrent trials may use
+
+  /**
+   * Runs the trials of the default parameters (see Parameters) or, if the path of a config file is
+   * given, the sweep that it describes (see Sweep).
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length > 0) {
+      Sweep.read(args[0]).run();
+      return;
+    }
+
+    Parameters params = new Parameters();
     Plotter plotter = new Plotter("Network density over time.", 0.05);
     ArrayList<YIntervalSeriesCollection> averagedResultsByExperiment = new ArrayList<>();
 
     // Run trials of particular experiment type
     String experimentLabel = "Basic";
-    averagedResultsByExperiment.add(runTrials(experimentLabel));
+    averagedResultsByExperiment.add(runTrials(experimentLabel, params, outputDirectory + "/resultsMemory" + params.memory));
 
     if (makePlot) {
+      String plotFilePath = outputDirectory + "/basic_" + params.numNeurons + "neurons_" + params.duration + "timesteps.png";
       plotter.plotMultiple(averagedResultsByExperiment, plotFilePath);
     }
 
   }
 
-  private static YIntervalSeriesCollection runTrials(String label) {
-    ArrayList<XYSeries> resultsByTrial = new ArrayList<>();
-
+  /**
+   * @param outputRoot prefix of the paths of the trials' output files
+   */
+  private static YIntervalSeriesCollection runTrials(final String label, final Parameters params,
+                                                     final String outputRoot) throws IOException {
+    final int numTrials = params.numTrials;
+    final TrialAggregator[] trialAggregates = new TrialAggregator[numTrials]; // Merged in order of trial index
+    ArrayList<Callable<Void>> trials = new ArrayList<>();
     for (int trialIdx = 0; trialIdx < numTrials; trialIdx++) {
-      System.out.println("Starting trial " + (trialIdx + 1) + "/" + numTrials + " of " + label + " experiment.");
-      resultsByTrial.add(runTrial("Trial" + trialIdx));
-      System.out.println("Finished trial " + (trialIdx + 1) + "/" + numTrials + " of " + label + " experiment.");
+      final int finalTrialIdx = trialIdx;
+      trials.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          System.out.println("Starting trial " + (finalTrialIdx + 1) + "/" + numTrials + " of " + label + " experiment.");
+          TrialAggregator trialAggregate = new TrialAggregator();
+          runTrial(params, outputRoot, "Trial" + finalTrialIdx, new RandomStream(params.seed, finalTrialIdx), null,
+              trialAggregate);
+          trialAggregates[finalTrialIdx] = trialAggregate;
+          System.out.println("Finished trial " + (finalTrialIdx + 1) + "/" + numTrials + " of " + label + " experiment.");
+          return null;
+        }
+      });
+    }
+
+    int numThreads = TrialScheduler.numThreadsFor(maxTrialThreads, numTrials, estimateTrialBytes(params), trialHeapFraction);
+    System.out.println("Running " + numTrials + " trials of " + label + " experiment on " + numThreads + " threads.");
+    new TrialScheduler(numThreads).runAll(trials);
+    return TrialAggregator.mergeAll(trialAggregates).toSeriesCollection(label);
+  }
+
+  /**
+   * @return rough upper bound on the peak heap usage (in bytes) of a single trial, including its
+   *         recorded output
+   */
+  static long estimateTrialBytes(Parameters params) {
+    int numNeurons = params.numNeurons;
+    int duration = params.duration;
+    // A sparse network stores an index and a weight per synapse, in both its rows and its columns;
+    // structural plasticity keeps up to about STRUCTURAL_CONNECTION_PROBABILITY of the weights non-zero
+    long weightBytes = sparseSynapses
+        ? (long) (2 * 12 * params.structuralConnectionProbability * numNeurons * numNeurons)
+        : 8L * numNeurons * numNeurons;
+    long networkBytes = offHeapWeights ? 0L : weightBytes; // Recorded weights are still copied to the heap
+    boolean MATOutput = makeMATFile && !writeTrialFile;
+    long rasterBytes = MATOutput ? 8L * duration * SpikeHistory.numWordsFor(numNeurons) : 0L;
+    long recordedBytes = (streamWeights || writeTrialFile) ? 0L : (duration / recordEvery + 1) * weightBytes;
+    // Writing the .mat file copies the raster (as doubles) and the recorded weights (flattened), and
+    // MatFileWriter buffers another serialized copy of each
+    long outputBytes = MATOutput ? 2L * (8L * duration * numNeurons + recordedBytes) : 0L;
+    if (writeTrialFile) { // The chunk buffers, plus the previous frame (for delta encoding)
+      outputBytes = 2L * trialFileChunkBytes + 16L * numNeurons * numNeurons;
+    }
+    if (asyncOutput) { // The frames waiting for the output thread
+      outputBytes += outputQueueFrames * 8L * numNeurons * numNeurons;
     }
-    return Plotter.averageTrials(resultsByTrial, label);
+    // Computing statistics takes a sparse copy of the weights, and, for exact traces, three dense
+    // powers of the weights
+    long statisticsBytes = 0L;
+    if (computeStatistics) {
+      statisticsBytes = (long) (12 * params.structuralConnectionProbability * numNeurons * numNeurons)
+          + ((numNeurons <= maxExactTraceNeurons) ? 3 * 8L * numNeurons * numNeurons : 0L);
+    }
+    long convergenceBytes = detectConvergence ? 8L * Math.min(convergenceRows, numNeurons) * numNeurons : 0L;
+    return networkBytes + rasterBytes + recordedBytes + outputBytes + statisticsBytes + convergenceBytes;
   }
 
   /**
    * Runs a single self-contained simulation and outputs some results of interest
    *
-   * @return XYSeries each X-value is a time between 0.0 and simDuration and each Y-value is some
-   *         quantity of interest
+   * If resumeFromCheckpoints is set and the trial has a checkpoint, which must have been written with
+   * the same RandomStream and parameters (except numTrials), the trial resumes from it, unless it is
+   * finished (at the end of the duration, or stopped), in which case it is skipped, and only the
+   * densities sampled in the checkpoint's statistics are added to aggregate. Otherwise, if start is not null, the trial is
+   * forked from start, with its own RandomStream (so that trials forked from the same checkpoint
+   * diverge), and with the checkpointed statistics, if there are any. The output files of a forked
+   * trial begin at the checkpoint's time step. Those of a resumed trial are kept up to the
+   * checkpoint's time step (and the output for its .mat file is restored from the checkpoint), and
+   * appended to, so that they end up as if the trial had never been interrupted; to that end, the
+   * recorders are flushed before every checkpoint.
+   *
+   * If detectConvergence is set, the trial is watched for a steady state (see ConvergenceDetector).
+   * Once it has converged, it is either stopped (and its output ends at that time step), or only
+   * recorded (and its statistics only sampled) every convergedRecordEvery time steps from then on.
+   * The detector is checkpointed with the trial, so a resumed trial converges when it would have,
+   * had it not been interrupted. A trial that stopped early is checkpointed (if checkpointEvery > 0)
+   * at its last time step, and marked as stopped, so that, like a trial that ran for its whole
+   * duration, it is finished, and is skipped rather than resumed.
+   *
+   * @param outputRoot prefix of the paths of the trial's output files, which are followed by
+   *                   trialLabel and an extension
+   * @param start checkpoint from which to fork the trial, or null
+   * @param aggregate aggregator to which to add the density of the network over time (see
+   *                  NetworkStatistics), as it is sampled; once the trial has converged, its last
+   *                  sample is also added for the samples it skips (and, if it stopped, for those
+   *                  up to its duration), so that every sample is averaged over the same trials
+   */
+  static void runTrial(Parameters params, String outputRoot, String trialLabel, RandomStream random,
+                       Checkpoint start, TrialAggregator aggregate) throws IOException {
+
+    int duration = params.duration;
+    String checkpointFilePath = outputRoot + trialLabel + ".checkpoint";
+    boolean resume = false;
+    if (resumeFromCheckpoints && new File(checkpointFilePath).isFile()) {
+      Checkpoint checkpoint = Checkpoint.read(checkpointFilePath);
+      if (checkpoint.getRandom().getKey() != random.getKey()) {
+        throw new IllegalStateException(checkpointFilePath + " is a checkpoint of a different trial");
+      }
+      List<String> differingParams = checkpoint.getParameters().differingNames(params);
+      differingParams.remove("numTrials"); // Which does not change any single trial
+      if (!differingParams.isEmpty()) {
+        throw new IllegalStateException(checkpointFilePath + " is a checkpoint of a trial with different "
+            + differingParams + "; delete it to run " + trialLabel + " with these parameters");
+      }
+      if (checkpoint.getTime() >= duration - 1 || checkpoint.isStopped()) {
+        System.out.println(trialLabel + " finished at time step " + checkpoint.getTime() + " of " + checkpointFilePath
+            + "; skipping it.");
+        aggregateFinished(params, checkpoint, outputRoot + trialLabel, random, aggregate);
+        return;
+      }
+      System.out.println("Resuming " + trialLabel + " from time step " + checkpoint.getTime() + " of " + checkpointFilePath);
+      start = checkpoint;
+      resume = true;
+    } else if (start != null) {
+      System.out.println("Forking " + trialLabel + " from time step " + start.getTime() + " of a checkpoint");
+    }
+
+    Trial trial = null;
+    TrialOutput output = null;
+    boolean completed = false; // Whether the trial ran to its duration, or until it was stopped
+    MetricsWriter metricsWriter = null;
+    Stimulus.Source stimulusSource = null;
+    Stimulus stimulus = null;
+    ConvergenceDetector convergence = !detectConvergence ? null : new ConvergenceDetector(params, convergenceWindow,
+        convergenceStableWindows, convergenceRows, firingRateTolerance, weightChangeTolerance, densityTolerance,
+        l1NormTolerance);
+
+    try {
+      int firstStep = (start == null) ? 0 : start.getTime();
+      output = new TrialOutput(params, outputRoot, trialLabel, random, firstStep, resume, aggregate);
+      boolean restoreStatistics = start != null && start.hasStatistics() && output.statistics != null;
+      boolean restoreConvergence = resume && start.hasConvergence() && convergence != null;
+      if (start == null) {
+        trial = new Trial(params, random, weightStorage(outputRoot + trialLabel), eventDrivenPropagation, useSpikeTraces,
+            truncateSpikeTraces, stepThreads);
+      } else {
+        trial = start.restore(params, random, weightStorage(outputRoot + trialLabel), eventDrivenPropagation, stepThreads,
+            restoreStatistics ? output.statistics : null, resume ? output.MATRecorder : null,
+            restoreConvergence ? convergence : null);
+      }
+      // The input of each time step depends only on the time step, so resumed trials get the same input
+      stimulusSource = stimulusSource(params, random);
+      if (stimulusSource != null) {
+        stimulus = new Stimulus(stimulusSource, stimulusBlockSteps, true);
+        trial.setStimulus(stimulus);
+      }
+      Network network = trial.getNetwork();
+      SpikeHistory history = trial.getHistory();
+      StepMetrics metrics = trial.getMetrics();
+      metricsWriter = newMetricsWriter(outputRoot + trialLabel, resume ? firstStep : -1);
+      output.recordInitial(history, network, metrics, !resume, !restoreStatistics);
+      if (convergence != null && !restoreConvergence) { // The first window starts at the initial state
+        convergence.check(trial.getTime(), network, network.getNumSynapses());
+      } else if (restoreConvergence && convergence.isConverged()) {
+        output.recordSparsely(convergedRecordEvery);
+      }
+
+      // Checkpoints are taken at multiples of checkpointEvery, wherever the trial started
+      int nextCheckpoint = (checkpointEvery > 0) ? nextMultiple(trial.getTime(), checkpointEvery) : -1;
+      for (int t = trial.getTime(); t < duration - 1; t++) {
+        if (t % 500 == 0) System.out.println(trialLabel + " t: " + t);
+        trial.step();
+
+        output.record(history, network, metrics);
+        boolean stop = false;
+        if (convergence != null && !convergence.isConverged()) {
+          long convergenceStart = System.nanoTime();
+          convergence.countSpikes(history.countSpikes(t + 1));
+          if (convergence.shouldCheck(t + 1) && convergence.check(t + 1, network, network.getNumSynapses())) {
+            stop = stopWhenConverged;
+            System.out.println(trialLabel + " converged at t: " + (t + 1) + " (" + convergence.getReason() + "); "
+                + (stop ? "stopping it." : "recording every " + convergedRecordEvery + " time steps from now on."));
+            if (stop) {
+              output.endEarly();
+            } else {
+              output.recordSparsely(convergedRecordEvery);
+            }
+          }
+          metrics.addCallerNanos(StepMetrics.STATISTICS, System.nanoTime() - convergenceStart);
+        }
+        if (nextCheckpoint > 0 && (t + 1 == nextCheckpoint || t + 1 == duration - 1 || stop)) {
+          nextCheckpoint = nextMultiple(t + 1, checkpointEvery);
+          long checkpointStart = System.nanoTime();
+          output.flush();
+          Checkpoint.write(checkpointFilePath, params, trial, output.statistics, output.MATRecorder, convergence, stop);
+          metrics.addCallerNanos(StepMetrics.CHECKPOINTING, System.nanoTime() - checkpointStart);
+        }
+        if (metricsWriter != null && metricsWriter.shouldExport(t + 1)) {
+          metricsWriter.export(t + 1, metrics, network.getNumSynapses());
+        }
+        if (stop) { break; }
+      }
+      completed = true;
+    } finally {
+      if (trial != null) {
+        trial.close();
+      }
+      if (stimulus != null) {
+        stimulus.close();
+      }
+      if (stimulusSource instanceof Closeable) {
+        ((Closeable) stimulusSource).close();
+      }
+      close(output, completed, metricsWriter);
+    }
+
+    output.finish();
+
+  }
+
+  /**
+   * Adds the densities sampled by a finished trial, which is skipped, to aggregate, as the trial did
+   * when it ran; they are restored from its last checkpoint, if statistics are computed and were
+   * checkpointed.
+   *
+   * @param pathRoot path of the trial's output files, without the extension
+   */
+  private static void aggregateFinished(Parameters params, Checkpoint checkpoint, String pathRoot,
+                                        RandomStream random, TrialAggregator aggregate) throws IOException {
+    if (!computeStatistics) { return; }
+    if (!checkpoint.hasStatistics()) {
+      System.out.println("The checkpoint of " + pathRoot + " has no statistics, so its densities are not averaged");
+      return;
+    }
+    NetworkStatistics statistics = newStatistics(params.numNeurons, random);
+    checkpoint.restore(params, random, weightStorage(pathRoot), eventDrivenPropagation, stepThreads, statistics,
+        null, null).close();
+    AggregatedDensities densities = new AggregatedDensities(statistics, aggregate);
+    densities.addSamples();
+    densities.carryForward(numSamplesUpTo(params.duration));
+  }
+
+  /**
+   * @param random source of randomness of the trial (for estimating statistics)
+   * @return statistics of a trial of numNeurons neurons, as configured above
+   */
+  private static NetworkStatistics newStatistics(int numNeurons, RandomStream random) {
+    int numProbes = (numNeurons <= maxExactTraceNeurons) ? 0 : traceProbes;
+    return new NetworkStatistics(numNeurons, statisticsEvery, tracePathLength, numProbes, random);
+  }
+
+  /**
+   * @return the first multiple of every after t
+   */
+  private static int nextMultiple(int t, int every) {
+    return (t / every + 1) * every;
+  }
+
+  /**
+   * @param random the trial's source of randomness
+   * @return source of the input that drives the trial's first neurons, as configured above, or null
+   *         if none are driven; the caller closes it, if it is Closeable
+   */
+  private static Stimulus.Source stimulusSource(Parameters params, RandomStream random) throws IOException {
+    if (stimulusFilePath != null) {
+      return new StimulusFile(stimulusFilePath);
+    }
+    int numDriven = (int) (drivenFraction * params.numNeurons);
+    return (numDriven == 0) ? null : new PoissonStimulus(numDriven, drivenRate, random);
+  }
+
+  /**
+   * @param pathRoot path of the .synapses file (if the weights are mapped), without the extension
+   * @return the storage of a trial's weights, as configured above
+   */
+  private static WeightStorage weightStorage(String pathRoot) {
+    if (sparseSynapses) { return WeightStorage.SPARSE; }
+    if (!offHeapWeights) { return WeightStorage.DENSE; }
+    return WeightStorage.offHeap(floatWeights, mapWeights ? pathRoot + ".synapses" : null);
+  }
+
+  /**
+   * @param pathRoot path of the .metrics file, without the extension
+   * @param resumeTime time step of the checkpoint from which the trial is resumed, or -1
+   * @return a MetricsWriter, or null if metrics are neither written nor emitted as JFR events
+   */
+  private static MetricsWriter newMetricsWriter(String pathRoot, int resumeTime) throws IOException {
+    if (!writeMetrics && !emitJFREvents) { return null; }
+    return new MetricsWriter(writeMetrics ? pathRoot + ".metrics" : null, metricsEvery, emitJFREvents, resumeTime);
+  }
+
+  /**
+   * Closes output and then metricsWriter (skipping nulls), even if closing output fails.
+   *
+   * @param completed whether the trial ran to its duration, or until it was stopped (rather than
+   *                  failing)
+   */
+  private static void close(TrialOutput output, boolean completed, MetricsWriter metricsWriter) throws IOException {
+    try {
+      if (output != null) {
+        output.close(completed);
+      }
+    } finally {
+      if (metricsWriter != null) {
+        metricsWriter.close();
+      }
+    }
+  }
+
+  /**
+   * The recorders and statistics of a single trial, which are passed the trial's firing pattern
+   * and weights after every time step.
    */
-  private static XYSeries runTrial(String trialLabel) {
-
-    // for s < t, fired[s][i] is true if and only if neuron i fired at time s
-    boolean[][] fired = new boolean[duration][numNeurons];
-    Neuron[] neurons = new Neuron[numNeurons];
-
-    Random rand = new Random();
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-      // Initialize each neuron
-      neurons[neuronIdx] = new Neuron(numNeurons, neuronIdx);
-      // In the first time step, each neuron fires independently with probability 1/2
-      fired[0][neuronIdx] = rand.nextBoolean();
-    }
-
-    XYSeries output = new XYSeries("Stuff over time");
-    double[][][] weights = new double[duration][numNeurons][numNeurons];
-    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-      weights[0][neuronIdx] = neurons[neuronIdx].getWeightsIn(); // record initial weights
-    }
-
-    for (int t = 0; t < duration - 1; t++) {
-      if (t % 500 == 0) System.out.println("t: " + t);
-      for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-//        if (false) { // (neuronIdx < 0.1 * numNeurons) { // The first 10% of neurons always fire
-//          fired[t + 1][neuronIdx] = true;
-//        } else {
-          fired[t + 1][neuronIdx] = neurons[neuronIdx].shouldFire(fired[t]); // Fire neuron
-//        }
-      }
-
-      for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
-        // Apply each update rule, based on current and previous firing patterns
-        neurons[neuronIdx].excitatorySTDP(fired, t + 1);
-        neurons[neuronIdx].synapticNormalization();
-        neurons[neuronIdx].intrisicPlasticity(fired[t + 1][neuronIdx]);
-        neurons[neuronIdx].structuralPlasticity();
-        for (int i = 0; i < numNeurons; i++) {
-          weights[t + 1][neuronIdx][i] = neurons[neuronIdx].getWeightIn(i);
+  private static class TrialOutput {
+
+    private final String outputRoot;
+    private final String trialLabel;
+    private final WeightRecorder recorder;
+    private final SpikeRecorder spikeRecorder; // Or null, if spikes are not recorded
+    private final MATFileRecorder MATRecorder; // Or null, if there is no .mat file
+    private final NetworkStatistics statistics; // Or null, if statistics are not computed
+    private final AggregatedDensities densities; // Or null, if statistics are not computed
+    private final int duration; // Of the trial, had it not stopped early
+    private boolean stopped; // Whether the trial was stopped before its duration
+    private final long[] pattern; // Firing pattern being recorded
+    private final long weightBytes;
+    private int sparseEvery = 1; // Weights and statistics are only recorded at multiples of sparseEvery
+
+    /**
+     * @param random source of randomness of the trial (for estimating statistics)
+     * @param firstStep time step from which the trial is recorded (0, unless it is resumed or forked
+     *                  from a checkpoint)
+     * @param resume whether the trial is resumed from its checkpoint at firstStep, in which case the
+     *               output files it wrote up to then are kept, and appended to (see
+     *               TrialFileWriter.resume() and StreamingWeightRecorder.resume())
+     * @param aggregate aggregator to which to add the density of the network at each sample of the
+     *                  statistics
+     */
+    TrialOutput(Parameters params, String outputRoot, String trialLabel, RandomStream random, int firstStep,
+                boolean resume, TrialAggregator aggregate) throws IOException {
+      this.outputRoot = outputRoot;
+      this.trialLabel = trialLabel;
+      int numNeurons = params.numNeurons;
+      duration = params.duration;
+      WeightRecorder recorder;
+      SpikeRecorder spikeRecorder = null;
+      MATFileRecorder MATRecorder = null;
+      if (writeTrialFile) {
+        String trialFilePath = outputRoot + trialLabel + ".trial";
+        System.out.println((resume ? "Appending" : "Writing") + " spikes and weights to " + trialFilePath);
+        TrialFileWriter trialFile = resume
+            ? TrialFileWriter.resume(trialFilePath, numNeurons, recordEvery, trialFileChunkBytes, firstStep)
+            : new TrialFileWriter(trialFilePath, numNeurons, recordEvery, trialFileChunkBytes, firstStep);
+        recorder = trialFile;
+        spikeRecorder = trialFile;
+      } else if (streamWeights) {
+        String weightsFilePath = outputRoot + trialLabel + ".weights";
+        System.out.println((resume ? "Appending" : "Streaming") + " weights to " + weightsFilePath);
+        recorder = resume
+            ? StreamingWeightRecorder.resume(weightsFilePath, numNeurons, recordEvery, recorderBufferBytes, firstStep)
+            : new StreamingWeightRecorder(weightsFilePath, numNeurons, recordEvery, recorderBufferBytes);
+      } else {
+        recorder = new InMemoryWeightRecorder(numNeurons, recordEvery);
+      }
+      if (makeMATFile && !writeTrialFile) { // output simulation results to .mat file
+        InMemoryWeightRecorder MATWeights = (recorder instanceof InMemoryWeightRecorder) ? (InMemoryWeightRecorder) recorder : null;
+        MATRecorder = new MATFileRecorder(outputRoot + trialLabel + ".mat", numNeurons, firstStep, duration, MATWeights);
+        spikeRecorder = MATRecorder;
+      }
+      if (asyncOutput) {
+        AsyncRecorder asyncRecorder = new AsyncRecorder(recorder, spikeRecorder, numNeurons, outputQueueCapacity, outputQueueFrames);
+        recorder = asyncRecorder;
+        spikeRecorder = asyncRecorder;
+      }
+      this.recorder = recorder;
+      this.spikeRecorder = spikeRecorder;
+      this.MATRecorder = MATRecorder;
+      pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+      if (computeStatistics) {
+        statistics = newStatistics(numNeurons, random);
+        densities = new AggregatedDensities(statistics, aggregate);
+      } else {
+        statistics = null;
+        densities = null;
+      }
+      weightBytes = 8L * numNeurons * numNeurons;
+    }
+
+    /**
+     * Records the trial's initial state (at time 0, or at the time step of the checkpoint from which
+     * it was restored).
+     *
+     * @param recordState whether to record the initial firing pattern and weights (which the output
+     *                    already ends with, if the trial is resumed)
+     * @param sampleStatistics whether to add the initial state to the statistics (which it is
+     *                         already part of, if they were restored from a checkpoint)
+     */
+    void recordInitial(SpikeHistory history, WeightMatrix weights, StepMetrics metrics,
+                       boolean recordState, boolean sampleStatistics) throws IOException {
+      int t = history.getLatestTime();
+      if (recordState) {
+        metrics.addBytesRecorded(recordSpikes(history));
+        recorder.record(t, weights); // record initial weights
+        metrics.addBytesRecorded(weightBytes);
+      }
+      if (statistics != null) {
+        if (sampleStatistics) {
+          statistics.countSpikes(history.countSpikes(t));
+          statistics.sample(t, weights);
+        }
+        densities.addSamples();
+      }
+    }
+
+    /**
+     * Records the trial's latest time step, and adds the time spent doing so to metrics.
+     */
+    void record(SpikeHistory history, WeightMatrix weights, StepMetrics metrics) throws IOException {
+      int t = history.getLatestTime();
+      long recordingStart = System.nanoTime();
+      metrics.addBytesRecorded(recordSpikes(history));
+      if (recorder.shouldRecord(t) && t % sparseEvery == 0) {
+        recorder.record(t, weights);
+        metrics.addBytesRecorded(weightBytes);
+      }
+      long statisticsStart = System.nanoTime();
+      metrics.addCallerNanos(StepMetrics.RECORDING, statisticsStart - recordingStart);
+      if (statistics != null) {
+        statistics.countSpikes(history.countSpikes(t));
+        if (statistics.shouldSample(t) && t % sparseEvery == 0) {
+          statistics.sample(t, weights);
+          densities.addSamples();
+        }
+        metrics.addCallerNanos(StepMetrics.STATISTICS, System.nanoTime() - statisticsStart);
+      }
+    }
+
+    /**
+     * From the next time step on, only records weights (and samples statistics) at the time steps
+     * that are multiples of every (as well as of recordEvery and statisticsEvery, respectively).
+     */
+    void recordSparsely(int every) {
+      sparseEvery = every;
+    }
+
+    /**
+     * Ends the trial's output at its latest time step (rather than at params.duration); must be
+     * called before close().
+     */
+    void endEarly() {
+      stopped = true;
+    }
+
+    /**
+     * Writes what the recorders have buffered to their files, so that a checkpoint taken next can
+     * be resumed from without losing output.
+     */
+    void flush() throws IOException {
+      recorder.flush();
+      if (spikeRecorder != null && spikeRecorder != recorder) {
+        spikeRecorder.flush();
+      }
+    }
+
+    /**
+     * Closes the recorders (all of them, even if closing one fails), and then MATRecorder with the
+     * trial's status, so that its .mat file is written unless the trial failed.
+     *
+     * @param completed whether the trial ran to its duration, or until it was stopped (rather than
+     *                  failing)
+     */
+    void close(boolean completed) throws IOException {
+      boolean closed = false;
+      try {
+        try {
+          recorder.close();
+        } finally {
+          if (spikeRecorder != null && spikeRecorder != recorder) {
+            spikeRecorder.close();
+          }
+        }
+        closed = true;
+      } finally {
+        if (MATRecorder != null) {
+          MATFileRecorder.Status status = (!completed || !closed) ? MATFileRecorder.Status.FAILED
+              : stopped ? MATFileRecorder.Status.STOPPED : MATFileRecorder.Status.FINISHED;
+          MATRecorder.close(status);
         }
       }
+    }
+
+    /**
+     * Writes the trial's statistics (if any), and carries their last sample forward to
+     * params.duration in aggregate (if the trial stopped early, or was sampled sparsely at its
+     * end); must only be called after close().
+     */
+    void finish() throws IOException {
+      if (statistics != null) {
+        densities.carryForward(numSamplesUpTo(duration));
+        String statisticsFilePath = outputRoot + trialLabel + ".stats";
+        System.out.println("Writing network statistics to " + statisticsFilePath);
+        statistics.writeCSV(statisticsFilePath);
+      }
+    }
 
+    /**
+     * Passes the latest firing pattern in history to spikeRecorder (if it is not null).
+     *
+     * @return number of bytes recorded
+     */
+    private long recordSpikes(SpikeHistory history) throws IOException {
+      if (spikeRecorder == null) { return 0L; }
+      int t = history.getLatestTime();
+      history.copyPattern(t, pattern, 0);
+      spikeRecorder.recordSpikes(t, pattern);
+      return 8L * history.getNumWords();
     }
+  }
+
+  /**
+   * @return number of samples of statistics taken in a trial of the given duration (at multiples of
+   *         statisticsEvery below it)
+   */
+  private static int numSamplesUpTo(int duration) {
+    return (duration - 1) / statisticsEvery + 1;
+  }
+
+  /**
+   * Adds the densities sampled by a trial's statistics to a TrialAggregator, indexed by their time
+   * step (so that trials that are sampled sparsely once they converge still line up). The samples
+   * that a converged trial skips are filled in with its last sample, as it is in a steady state.
+   */
+  private static class AggregatedDensities {
 
-    // Prints some basic diagnostic connectivity statistics from the simulation
-//    int numZeroPairs = 0;
-//    int numPartZeroPairs = 0;
-//    int numTotalPairs = 0;
-//    for (int destNeuronIdx = 0; destNeuronIdx < numNeurons; destNeuronIdx++) {
-//      for (int sourceNeuronIdx = 0; sourceNeuronIdx < destNeuronIdx; sourceNeuronIdx++) {
-//        output.add(neurons[destNeuronIdx].getWeightIn(sourceNeuronIdx), neurons[sourceNeuronIdx].getWeightIn(destNeuronIdx));
-//        numTotalPairs++;
-//        if (neurons[destNeuronIdx].getWeightIn(sourceNeuronIdx) < Double.MIN_VALUE || neurons[sourceNeuronIdx].getWeightIn(destNeuronIdx) < Double.MIN_VALUE) {
-//          numPartZeroPairs++;
-//        }
-//        if (neurons[destNeuronIdx].getWeightIn(sourceNeuronIdx) < Double.MIN_VALUE && neurons[sourceNeuronIdx].getWeightIn(destNeuronIdx) < Double.MIN_VALUE) {
-//          numZeroPairs++;
-//        }
-//      }
-//    }
-//    System.out.println("Fraction of edges that are zero in both directions: " + ((double) numZeroPairs) / numTotalPairs);
-//    System.out.println("Fraction of pairs that are connected in at least one direction: " + ((double) (numTotalPairs - numZeroPairs)) / numTotalPairs);
-//    System.out.println("Fraction of pairs that are zero in at least one direction: " + ((double) numPartZeroPairs) / numTotalPairs);
-//    System.out.println("Fraction of pairs that are connected in both directions: " + ((double) (numTotalPairs - numPartZeroPairs)) / numTotalPairs);
+    private final NetworkStatistics statistics;
+    private final TrialAggregator aggregate;
+    private int numAggregatedSamples; // Samples of statistics already added to aggregate
+    private int lastAggregateIdx = -1; // Index in aggregate of the last sample added to it
+    private double lastDensity; // Density of that sample
 
-    if (makeMATFile) { // output simulation results to .mat file
-      String MATFilePath = MATFileRoot + trialLabel + ".mat";
-      System.out.println("Writing MATLAB output to " + MATFilePath);
-      MatPlotter matPlotter = new MatPlotter();
-      matPlotter.writeToMAT(MATFilePath, fired, weights, numNeurons, duration);
+    AggregatedDensities(NetworkStatistics statistics, TrialAggregator aggregate) {
+      this.statistics = statistics;
+      this.aggregate = aggregate;
     }
 
-    return output;
+    /**
+     * Adds the samples of statistics taken since the last call (or, for statistics restored from a
+     * checkpoint, before it) to aggregate.
+     */
+    void addSamples() {
+      for (; numAggregatedSamples < statistics.getNumSamples(); numAggregatedSamples++) {
+        int t = statistics.getTime(numAggregatedSamples);
+        carryForward(t / statisticsEvery);
+        lastAggregateIdx = t / statisticsEvery;
+        lastDensity = statistics.getDensity(numAggregatedSamples);
+        aggregate.add(lastAggregateIdx, t, lastDensity);
+      }
+    }
 
+    /**
+     * Adds the last sample added to aggregate (if any) again as each later sample before
+     * endIdx, i.e., at each multiple of statisticsEvery up to (endIdx - 1) * statisticsEvery.
+     */
+    void carryForward(int endIdx) {
+      if (lastAggregateIdx < 0) { return; }
+      for (int s = lastAggregateIdx + 1; s < endIdx; s++) {
+        aggregate.add(s, s * statisticsEvery, lastDensity);
+      }
+      lastAggregateIdx = Math.max(lastAggregateIdx, endIdx - 1);
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,633 @@
+package SORN;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Network whose weights are stored sparsely, so that memory use and the cost of each time step
+ * grow with the number of synapses (non-zero weights), rather than with numNeurons^2.
+ *
+ * Each neuron's inputs are stored as a compressed sparse row: the (increasing) indices of its
+ * presynaptic neurons and the corresponding weights, in arrays of their own, so that rows can grow
+ * (through structural plasticity) and shrink (when weights reach zero) independently of each other,
+ * and hence in parallel. For firing, prepareFire() rebuilds a compressed sparse column copy of the
+ * weights, so that the input from each neuron that fired is pushed to its postsynaptic neurons.
+ *
+ * The weights evolve exactly as those of DenseNetwork (with the scalar Kernels): STDP creates a
+ * synapse wherever it makes a zero weight non-zero, and the inputs are summed, and projected, in
+ * the same order. The initial weights, which are all non-zero, are not stored: each neuron's are
+ * drawn again from random whenever they are read, until its first STDP update. That update is
+ * applied to a stored copy of the initial weights, and is immediately followed by the synaptic
+ * normalization that DenseNetwork applies to them later in the same time step (which only depends
+ * on the neuron's own weights), so that at most one row of initial weights per thread is stored at
+ * a time.
+ */
+class SparseNetwork extends Network {
+
+  // For k < numInputs[i], inputs[i][k] is the k^th (in increasing order) presynaptic neuron of
+  // neuron i, and inputWeights[i][k] > 0.0 is the weight of the input from it; both are null while
+  // neuron i's weights are its initial weights (see materialize())
+  private final int[][] inputs;
+  private final double[][] inputWeights;
+  private final int[] numInputs;
+  private final boolean[] projectedEarly; // Neuron i's weights were projected by its first STDP update
+  private final ThreadLocal<double[]> rows; // Copies of initial weights, and scratch space for their projection
+
+  // Compressed sparse column copy of the weights, as of the last call to prepareFire(): for
+  // columnStarts[j] <= k < columnStarts[j + 1], columnWeights[k] is the weight of the input from
+  // neuron j to neuron columnOutputs[k], in increasing order of columnOutputs[k]
+  private final int[] columnStarts;
+  private int[] columnOutputs;
+  private double[] columnWeights;
+
+  private final double[] weightedInputs; // Total input to each neuron, accumulated by fire()
+
+  /**
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   */
+  SparseNetwork(Parameters params, RandomStream random) {
+    super(params, random);
+    inputs = new int[numNeurons][];
+    inputWeights = new double[numNeurons][];
+    numInputs = new int[numNeurons];
+    projectedEarly = new boolean[numNeurons];
+    rows = new ThreadLocal<double[]>() {
+      @Override
+      protected double[] initialValue() {
+        return new double[numNeurons];
+      }
+    };
+    columnStarts = new int[numNeurons + 1];
+    columnOutputs = new int[0];
+    columnWeights = new double[0];
+    weightedInputs = new double[numNeurons];
+
+    double[] row = rows.get();
+    for (int i = 0; i < numNeurons; i++) {
+      l1Norms[i] = initialWeightsIn(i, row, 0);
+      for (int j = 0; j < numNeurons; j++) {
+        numInputs[i] += (row[j] >= Double.MIN_VALUE) ? 1 : 0;
+      }
+    }
+  }
+
+  @Override
+  double getWeight(int i, int j) {
+    if (inputs[i] == null) {
+      double[] row = rows.get();
+      initialWeightsIn(i, row, 0);
+      return row[j];
+    }
+    int k = findInput(i, j);
+    return (k >= 0) ? inputWeights[i][k] : 0.0;
+  }
+
+  @Override
+  public void copyRow(int i, double[] destination, int offset) {
+    if (inputs[i] == null) {
+      initialWeightsIn(i, destination, offset);
+      return;
+    }
+    Arrays.fill(destination, offset, offset + numNeurons, 0.0);
+    for (int k = 0; k < numInputs[i]; k++) {
+      destination[offset + inputs[i][k]] = inputWeights[i][k];
+    }
+  }
+
+  @Override
+  long getNumSynapses() {
+    long numSynapses = 0;
+    for (int i = 0; i < numNeurons; i++) {
+      numSynapses += numInputs[i];
+    }
+    return numSynapses;
+  }
+
+  @Override
+  public int copyInputs(int i, int[] indices, double[] weights, int offset) {
+    if (inputs[i] == null) {
+      double[] row = rows.get();
+      initialWeightsIn(i, row, 0);
+      int numNonZero = 0;
+      for (int j = 0; j < numNeurons; j++) {
+        if (row[j] >= Double.MIN_VALUE) {
+          indices[offset + numNonZero] = j;
+          weights[offset + numNonZero] = row[j];
+          numNonZero++;
+        }
+      }
+      return numNonZero;
+    }
+    System.arraycopy(inputs[i], 0, indices, offset, numInputs[i]);
+    System.arraycopy(inputWeights[i], 0, weights, offset, numInputs[i]);
+    return numInputs[i];
+  }
+
+  /**
+   * Rebuilds the compressed sparse column copy of the weights, by a counting sort of the rows; rows
+   * of initial weights are left out, since fire() draws them.
+   */
+  @Override
+  void prepareFire() {
+    Arrays.fill(columnStarts, 0);
+    for (int i = 0; i < numNeurons; i++) {
+      if (inputs[i] == null) { continue; }
+      for (int k = 0; k < numInputs[i]; k++) {
+        columnStarts[inputs[i][k] + 1]++;
+      }
+    }
+    for (int j = 0; j < numNeurons; j++) {
+      columnStarts[j + 1] += columnStarts[j];
+    }
+    int numSynapses = columnStarts[numNeurons];
+    if (columnOutputs.length < numSynapses) {
+      int capacity = Math.max(numSynapses, columnOutputs.length + (columnOutputs.length >> 1));
+      columnOutputs = new int[capacity];
+      columnWeights = new double[capacity];
+    }
+    // Visiting the rows in increasing order keeps the outputs of each column in increasing order;
+    // columnStarts[j] is used as the insertion point of column j, and then restored
+    for (int i = 0; i < numNeurons; i++) {
+      if (inputs[i] == null) { continue; }
+      for (int k = 0; k < numInputs[i]; k++) {
+        int position = columnStarts[inputs[i][k]]++;
+        columnOutputs[position] = i;
+        columnWeights[position] = inputWeights[i][k];
+      }
+    }
+    for (int j = numNeurons; j > 0; j--) {
+      columnStarts[j] = columnStarts[j - 1];
+    }
+    columnStarts[0] = 0;
+  }
+
+  /**
+   * Pushes the input from each neuron that fired to those of its postsynaptic neurons in from, ...,
+   * to - 1, using the weights as of the last call to prepareFire(). Since the spiking neurons are
+   * visited in increasing order, the input to each neuron is summed in the same order as in
+   * DenseNetwork.
+   */
+  @Override
+  void fire(int[] active, int numActive, boolean[] firedNow, int t, int from, int to) {
+    random.fillGaussian(firingNoise, from, to, t, RandomStream.FIRING_NOISE);
+    Arrays.fill(weightedInputs, from, to, 0.0);
+    for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+      int j = active[activeIdx];
+      int columnEnd = columnStarts[j + 1];
+      for (int k = firstOutputAtLeast(j, from); k < columnEnd && columnOutputs[k] < to; k++) {
+        weightedInputs[columnOutputs[k]] += columnWeights[k];
+      }
+    }
+    for (int i = from; i < to; i++) {
+      if (inputs[i] == null) {
+        weightedInputs[i] = initialInput(i, active, numActive);
+      }
+      firedNow[i] = exceedsThreshold(i, weightedInputs[i], firingNoise[i]);
+    }
+  }
+
+  @Override
+  boolean shouldFire(int i, boolean[] fired, double noise) {
+    if (inputs[i] == null) {
+      double[] row = rows.get();
+      initialWeightsIn(i, row, 0);
+      return exceedsThreshold(i, Kernels.SELECTED.maskedSum(row, 0, fired, numNeurons), noise);
+    }
+    double weightedSum = 0.0;
+    for (int k = 0; k < numInputs[i]; k++) {
+      if (fired[inputs[i][k]]) {
+        weightedSum += inputWeights[i][k];
+      }
+    }
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  /**
+   * Merges the (increasing) indices of the neurons that fired with those of neuron i's inputs.
+   */
+  @Override
+  boolean shouldFire(int i, int[] active, int numActive, double noise) {
+    if (inputs[i] == null) {
+      return exceedsThreshold(i, initialInput(i, active, numActive), noise);
+    }
+    int[] rowInputs = inputs[i];
+    double weightedSum = 0.0;
+    int k = 0;
+    for (int activeIdx = 0; activeIdx < numActive && k < numInputs[i]; activeIdx++) {
+      int j = active[activeIdx];
+      while (k < numInputs[i] && rowInputs[k] < j) { k++; }
+      if (k < numInputs[i] && rowInputs[k] == j) {
+        weightedSum += inputWeights[i][k];
+      }
+    }
+    return exceedsThreshold(i, weightedSum, noise);
+  }
+
+  /**
+   * Potentiation creates the synapses from the neurons that fired then (if neuron i fired now) that
+   * are missing, as it makes their zero weights non-zero in DenseNetwork.
+   */
+  @Override
+  void excitatorySTDP(int i, SpikeHistory history, int t) {
+    boolean first = materialize(i);
+    long[] words = history.getWords();
+    int nowOffset = history.getOffset(t);
+    boolean firedNow = history.fired(t, i);
+    for (int delay = 1; delay <= Math.min(memory, t); delay++) {
+      double additiveDelta = etaSTDP * Math.pow(decayRate, delay - 1);
+      int thenOffset = history.getOffset(t - delay);
+      boolean firedThen = history.fired(t - delay, i);
+      if (!firedNow && !firedThen) { continue; }
+      if (firedNow) {
+        insertPotentiatedInputs(i, null, words, thenOffset);
+      }
+      int[] rowInputs = inputs[i];
+      double[] rowWeights = inputWeights[i];
+      for (int k = 0; k < numInputs[i]; k++) {
+        int j = rowInputs[k];
+        long bit = 1L << j;
+        if (firedNow && (words[thenOffset + (j >>> 6)] & bit) != 0L) {
+          rowWeights[k] += additiveDelta; // Additive increase
+          l1Norms[i] += additiveDelta;
+        }
+        if (firedThen && (words[nowOffset + (j >>> 6)] & bit) != 0L) {
+          // Additive decrease, with minimum value 0.0
+          double decreasedWeight = Math.max(rowWeights[k] - additiveDelta, 0.0);
+          l1Norms[i] += decreasedWeight - rowWeights[k];
+          rowWeights[k] = decreasedWeight;
+        }
+      }
+    }
+    pruneInputs(i);
+    if (first) { normalizeEarly(i); }
+  }
+
+  /**
+   * Each call costs O(numNeurons) if neuron i fired, since potentiation then creates the synapses
+   * from all neurons with non-zero traces that are missing (as it makes their zero weights non-zero
+   * in DenseNetwork), and O(numInputs[i]) otherwise; the depressed synapses are found through
+   * firedNow, rather than by scanning active.
+   */
+  @Override
+  void excitatorySTDP(int i, double[] trace, boolean[] firedNow, int[] active, int numActive) {
+    boolean first = materialize(i);
+    if (firedNow[i]) {
+      insertPotentiatedInputs(i, trace, null, 0);
+      int[] rowInputs = inputs[i];
+      double[] rowWeights = inputWeights[i];
+      for (int k = 0; k < numInputs[i]; k++) {
+        rowWeights[k] += etaSTDP * trace[rowInputs[k]]; // Additive increase
+      }
+      double traceSum = 0.0; // Summed in the same order as by Kernels.addScaled()
+      for (int j = 0; j < numNeurons; j++) {
+        if (j != i) { traceSum += trace[j]; }
+      }
+      l1Norms[i] += etaSTDP * traceSum;
+    }
+    int[] rowInputs = inputs[i];
+    double[] rowWeights = inputWeights[i];
+    double subtractiveDelta = etaSTDP * trace[i];
+    if (subtractiveDelta > 0.0) {
+      boolean depressedToZero = false;
+      for (int k = 0; k < numInputs[i]; k++) {
+        if (!firedNow[rowInputs[k]]) { continue; }
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = Math.max(rowWeights[k] - subtractiveDelta, 0.0);
+        l1Norms[i] += decreasedWeight - rowWeights[k];
+        rowWeights[k] = decreasedWeight;
+        depressedToZero |= decreasedWeight < Double.MIN_VALUE;
+      }
+      if (depressedToZero) { pruneInputs(i); }
+    }
+    if (first) { normalizeEarly(i); }
+  }
+
+  /**
+   * As in DenseNetwork, this rule only changes existing synapses.
+   */
+  @Override
+  void excitatorySTDP(int i, boolean[] firedPreviously, boolean[] firedNow) {
+    boolean first = materialize(i);
+    int[] rowInputs = inputs[i];
+    double[] rowWeights = inputWeights[i];
+    for (int k = 0; k < numInputs[i]; k++) {
+      int j = rowInputs[k];
+      if (firedPreviously[j] && firedNow[i]) {
+        rowWeights[k] += etaSTDP; // Additive increase
+        l1Norms[i] += etaSTDP;
+      }
+      if (firedPreviously[i] && firedNow[j]) {
+        // Additive decrease, with minimum value 0.0
+        double decreasedWeight = Math.max(rowWeights[k] - etaSTDP, 0.0);
+        l1Norms[i] += decreasedWeight - rowWeights[k];
+        rowWeights[k] = decreasedWeight;
+      }
+    }
+    pruneInputs(i);
+    if (first) { normalizeEarly(i); }
+  }
+
+  /**
+   * Since zero weights are not stored, only the synapses of neuron i are projected, and those
+   * zeroed by soft-thresholding are then pruned. If neuron i's first STDP update has already
+   * projected its weights in this time step (see normalizeEarly()), this only reports that.
+   */
+  @Override
+  boolean synapticNormalization(int i, double[] scratch) {
+    if (projectedEarly[i]) {
+      projectedEarly[i] = false;
+      return true;
+    }
+    return project(i, scratch);
+  }
+
+  /**
+   * Projects the input weights of neuron i onto the L1 ball, unless the running L1 norm shows that
+   * they are already inside it.
+   *
+   * @return true if and only if the weights were projected
+   */
+  private boolean project(int i, double[] scratch) {
+    if (l1Norms[i] <= targetL1Norm * (1.0 - L1_NORM_SLACK)) { return false; } // L1 constraint already satisfied
+    materialize(i);
+    // The projection recomputes the L1 norm exactly, which also discards accumulated round-off
+    l1Norms[i] = Util.projectWeightsInL1(inputWeights[i], 0, numInputs[i], targetL1Norm, scratch);
+    pruneInputs(i);
+    return true;
+  }
+
+  /**
+   * Applies to the weights of neuron i, right after its first STDP update, the synaptic
+   * normalization that follows that update in the same time step (and only depends on neuron i's
+   * weights and L1 norm), so that its initial weights, which are all non-zero, are pruned before
+   * those of the next neuron are stored.
+   */
+  private void normalizeEarly(int i) {
+    projectedEarly[i] = project(i, rows.get());
+  }
+
+  /**
+   * Walks down the (implicit) list of neuron i's missing inputs, jumping directly from one new
+   * connection to the next (see sampleStructuralSkip()), and then merges the new connections into
+   * the row from its end.
+   */
+  @Override
+  void structuralPlasticity(int i, int t, int[] scratch) {
+    materialize(i);
+    int rowLength = numInputs[i];
+    int selfPosition = firstInputAtLeast(i, i); // Neuron i is excluded, as if it were an input
+    int numExcluded = rowLength + 1; // Excluded indices (inputs and i itself) below the candidate
+    int position = numNeurons - 1 - rowLength; // Missing inputs, other than neuron i itself
+    int numNew = 0;
+    while (true) {
+      double skipped = sampleStructuralSkip(i, t, numNew);
+      if (!(skipped < position)) { break; } // Also stops if logNoNewConnection == 0.0
+      position -= (int) skipped + 1;
+      // The new input is the position^th missing input; since position decreases, so does it
+      while (numExcluded > 0 && excludedInput(i, numExcluded - 1, selfPosition) >= position + numExcluded) {
+        numExcluded--;
+      }
+      scratch[numNew] = position + numExcluded;
+      numNew++;
+    }
+    if (numNew == 0) { return; }
+
+    ensureCapacity(i, rowLength + numNew);
+    int[] rowInputs = inputs[i];
+    double[] rowWeights = inputWeights[i];
+    int oldIdx = rowLength - 1;
+    int mergedIdx = rowLength + numNew - 1;
+    for (int newIdx = 0; newIdx < numNew; newIdx++) {
+      int j = scratch[newIdx];
+      while (oldIdx >= 0 && rowInputs[oldIdx] > j) {
+        rowInputs[mergedIdx] = rowInputs[oldIdx];
+        rowWeights[mergedIdx] = rowWeights[oldIdx];
+        oldIdx--;
+        mergedIdx--;
+      }
+      rowInputs[mergedIdx] = j;
+      rowWeights[mergedIdx] = newStructuralConnectionWeight;
+      mergedIdx--;
+      l1Norms[i] += newStructuralConnectionWeight;
+    }
+    numInputs[i] = rowLength + numNew;
+  }
+
+  /**
+   * Initial weights are written like the others (and are therefore stored once restored).
+   */
+  @Override
+  void saveState(Checkpoint.Writer out) throws IOException {
+    super.saveState(out);
+    out.putInts(numInputs, 0, numNeurons);
+    int[] rowInputs = new int[numNeurons];
+    double[] rowWeights = new double[numNeurons];
+    for (int i = 0; i < numNeurons; i++) {
+      int rowLength = copyInputs(i, rowInputs, rowWeights, 0);
+      out.putInts(rowInputs, 0, rowLength);
+      out.putDoubles(rowWeights, 0, rowLength);
+    }
+  }
+
+  /**
+   * The compressed sparse column copy is not restored, since prepareFire() rebuilds it.
+   */
+  @Override
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    super.restoreState(in);
+    in.getInts(numInputs, 0, numNeurons);
+    Arrays.fill(projectedEarly, false);
+    for (int i = 0; i < numNeurons; i++) {
+      if (numInputs[i] < 0 || numInputs[i] >= numNeurons) {
+        throw new IOException("Checkpointed neuron " + i + " has " + numInputs[i] + " inputs");
+      }
+      inputs[i] = new int[numInputs[i]];
+      inputWeights[i] = new double[numInputs[i]];
+      in.getInts(inputs[i], 0, numInputs[i]);
+      in.getDoubles(inputWeights[i], 0, numInputs[i]);
+    }
+  }
+
+  /**
+   * Stores the initial weights of neuron i (see initialWeightsIn()), unless its weights are stored
+   * already.
+   *
+   * @return true if and only if the weights were not stored yet
+   */
+  private boolean materialize(int i) {
+    if (inputs[i] != null) { return false; }
+    double[] row = rows.get();
+    initialWeightsIn(i, row, 0);
+    inputs[i] = new int[numInputs[i]];
+    inputWeights[i] = new double[numInputs[i]];
+    int k = 0;
+    for (int j = 0; j < numNeurons; j++) {
+      if (row[j] >= Double.MIN_VALUE) {
+        inputs[i][k] = j;
+        inputWeights[i][k] = row[j];
+        k++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the total initial weight of the inputs to neuron i from active[0], ...,
+   *         active[numActive - 1], summed in the same order as in DenseNetwork
+   */
+  private double initialInput(int i, int[] active, int numActive) {
+    double[] row = rows.get();
+    initialWeightsIn(i, row, 0);
+    double weightedSum = 0.0;
+    for (int activeIdx = 0; activeIdx < numActive; activeIdx++) {
+      weightedSum += row[active[activeIdx]];
+    }
+    return weightedSum;
+  }
+
+  /**
+   * Inserts, with weight 0.0, the missing inputs of neuron i that potentiation is about to make
+   * non-zero: those from the neurons j != i with a non-zero increase etaSTDP * trace[j] (if trace
+   * is not null), or that fired in the packed firing pattern at pattern[patternOffset] (otherwise).
+   */
+  private void insertPotentiatedInputs(int i, double[] trace, long[] pattern, int patternOffset) {
+    int rowLength = numInputs[i];
+    int numNew = 0;
+    if (pattern != null) {
+      // The neurons that fired are counted by popcounts, less i and those that are already inputs
+      numNew = SpikeHistory.countSpikes(pattern, patternOffset, SpikeHistory.numWordsFor(numNeurons));
+      if (isPotentiated(i, null, pattern, patternOffset)) { numNew--; }
+      for (int k = 0; k < rowLength; k++) {
+        if (isPotentiated(inputs[i][k], null, pattern, patternOffset)) { numNew--; }
+      }
+    } else {
+      int k = 0;
+      for (int j = 0; j < numNeurons; j++) {
+        if (k < rowLength && inputs[i][k] == j) {
+          k++;
+        } else if (j != i && isPotentiated(j, trace, pattern, patternOffset)) {
+          numNew++;
+        }
+      }
+    }
+    if (numNew == 0) { return; }
+
+    // Merges the new inputs into the row from its end, as structuralPlasticity() does
+    ensureCapacity(i, rowLength + numNew);
+    int[] rowInputs = inputs[i];
+    double[] rowWeights = inputWeights[i];
+    int oldIdx = rowLength - 1;
+    int mergedIdx = rowLength + numNew - 1;
+    for (int j = numNeurons - 1; mergedIdx > oldIdx; j--) {
+      if (oldIdx >= 0 && rowInputs[oldIdx] == j) {
+        rowInputs[mergedIdx] = j;
+        rowWeights[mergedIdx] = rowWeights[oldIdx];
+        oldIdx--;
+        mergedIdx--;
+      } else if (j != i && isPotentiated(j, trace, pattern, patternOffset)) {
+        rowInputs[mergedIdx] = j;
+        rowWeights[mergedIdx] = 0.0;
+        mergedIdx--;
+      }
+    }
+    numInputs[i] = rowLength + numNew;
+  }
+
+  /**
+   * @return whether potentiation increases the weight of the input from neuron j (see
+   *         insertPotentiatedInputs())
+   */
+  private boolean isPotentiated(int j, double[] trace, long[] pattern, int patternOffset) {
+    if (trace != null) {
+      return etaSTDP * trace[j] >= Double.MIN_VALUE;
+    }
+    return (pattern[patternOffset + (j >>> 6)] & (1L << j)) != 0L;
+  }
+
+  /**
+   * @return the m^th (in increasing order) of neuron i's inputs and i itself, where selfPosition is
+   *         the number of neuron i's inputs below i
+   */
+  private int excludedInput(int i, int m, int selfPosition) {
+    if (m < selfPosition) { return inputs[i][m]; }
+    return (m == selfPosition) ? i : inputs[i][m - 1];
+  }
+
+  /**
+   * @return position of j among neuron i's inputs, or -1 if j is not an input of i
+   */
+  private int findInput(int i, int j) {
+    int k = firstInputAtLeast(i, j);
+    return (k < numInputs[i] && inputs[i][k] == j) ? k : -1;
+  }
+
+  /**
+   * @return number of neuron i's inputs below j
+   */
+  private int firstInputAtLeast(int i, int j) {
+    int low = 0;
+    int high = numInputs[i];
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (inputs[i][middle] < j) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return position, in the compressed sparse columns, of the first output of neuron j that is at
+   *         least i (or the end of column j, if there is none)
+   */
+  private int firstOutputAtLeast(int j, int i) {
+    int low = columnStarts[j];
+    int high = columnStarts[j + 1];
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (columnOutputs[middle] < i) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Removes neuron i's inputs whose weights have reached zero, preserving the order of the rest, and
+   * releases most of the row's capacity if it is mostly unused (e.g., once the initial weights have
+   * been projected).
+   */
+  private void pruneInputs(int i) {
+    int[] rowInputs = inputs[i];
+    double[] rowWeights = inputWeights[i];
+    int numKept = 0;
+    for (int k = 0; k < numInputs[i]; k++) {
+      if (rowWeights[k] >= Double.MIN_VALUE) {
+        rowInputs[numKept] = rowInputs[k];
+        rowWeights[numKept] = rowWeights[k];
+        numKept++;
+      }
+    }
+    numInputs[i] = numKept;
+    if (rowInputs.length > 4 * numKept + 8) {
+      inputs[i] = Arrays.copyOf(rowInputs, 2 * numKept);
+      inputWeights[i] = Arrays.copyOf(rowWeights, 2 * numKept);
+    }
+  }
+
+  /**
+   * Grows (by at least half) the arrays of neuron i's inputs, if they cannot hold capacity inputs.
+   */
+  private void ensureCapacity(int i, int capacity) {
+    if (inputs[i].length >= capacity) { return; }
+    int newCapacity = Math.min(numNeurons - 1, Math.max(capacity, inputs[i].length + (inputs[i].length >> 1)));
+    inputs[i] = Arrays.copyOf(inputs[i], newCapacity);
+    inputWeights[i] = Arrays.copyOf(inputWeights[i], newCapacity);
+  }
+
+}
@@ -0,0 +1,166 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Remembers the firing patterns of the last few time steps, bit-packed into a ring buffer of longs,
+ * so that the history needed for STDP takes one bit per neuron per remembered time step (and stays
+ * in cache), rather than one byte per neuron for the whole trial.
+ *
+ * Bit (i % 64) of word i / 64 of a pattern is set if and only if neuron i fired; bits beyond the
+ * last neuron are always clear. Since patterns are packed, whole words can be combined at once:
+ * e.g., countSpikes() is a sum of popcounts, and the update rules AND patterns with each other (or
+ * with a row's synapses) and visit only the set bits of the result, a word at a time.
+ */
+class SpikeHistory {
+
+  private final int numNeurons;
+  private final int numWords; // Words per firing pattern
+  private final int depth; // Number of remembered time steps
+  private final long[] words; // Pattern of time s starts at word (s % depth) * numWords
+  private int numSteps; // Number of patterns pushed so far; the latest is that of time numSteps - 1
+
+  /**
+   * @param numNeurons number of neurons in the network
+   * @param depth number of time steps to remember, including the latest
+   */
+  SpikeHistory(int numNeurons, int depth) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Spike history must remember at least one time step: " + depth);
+    }
+    this.numNeurons = numNeurons;
+    this.depth = depth;
+    numWords = numWordsFor(numNeurons);
+    words = new long[depth * numWords];
+  }
+
+  /**
+   * @return number of longs needed to pack the firing pattern of numNeurons neurons
+   */
+  static int numWordsFor(int numNeurons) {
+    return (numNeurons + 63) >>> 6;
+  }
+
+  int getNumNeurons() { return numNeurons; }
+
+  int getNumWords() { return numWords; }
+
+  /**
+   * Packs the firing pattern of the next time step into the history, overwriting the oldest one.
+   *
+   * @param fired fired[i] is true if and only if neuron i fired at time getLatestTime() + 1
+   */
+  void push(boolean[] fired) {
+    int offset = (numSteps % depth) * numWords;
+    for (int wordIdx = 0; wordIdx < numWords; wordIdx++) {
+      long word = 0L;
+      int wordStart = wordIdx << 6;
+      int wordEnd = Math.min(wordStart + 64, numNeurons);
+      for (int i = wordEnd - 1; i >= wordStart; i--) {
+        word = (word << 1) | (fired[i] ? 1L : 0L);
+      }
+      words[offset + wordIdx] = word;
+    }
+    numSteps++;
+  }
+
+  /**
+   * @return time step of the latest pattern (or -1, if nothing has been pushed)
+   */
+  int getLatestTime() { return numSteps - 1; }
+
+  /**
+   * @return true if and only if neuron i fired at (remembered) time s
+   */
+  boolean fired(int s, int i) {
+    return (words[offsetOf(s) + (i >>> 6)] & (1L << i)) != 0L;
+  }
+
+  /**
+   * Lists the neurons that fired at (remembered) time s, visiting only the set bits of the pattern.
+   *
+   * @param indices array (of length at least the number of spikes) into which the (increasing)
+   *                indices of the neurons that fired are written
+   * @return number of neurons that fired
+   */
+  int spikingNeurons(int s, int[] indices) {
+    int offset = offsetOf(s);
+    int numSpikes = 0;
+    for (int wordIdx = 0; wordIdx < numWords; wordIdx++) {
+      long word = words[offset + wordIdx];
+      while (word != 0L) {
+        indices[numSpikes] = (wordIdx << 6) + Long.numberOfTrailingZeros(word);
+        numSpikes++;
+        word &= word - 1L; // Clears the lowest set bit
+      }
+    }
+    return numSpikes;
+  }
+
+  /**
+   * @return number of neurons that fired at (remembered) time s
+   */
+  int countSpikes(int s) {
+    return countSpikes(words, offsetOf(s), numWords);
+  }
+
+  /**
+   * @return number of set bits of words[offset], ..., words[offset + numWords - 1], i.e., number of
+   *         neurons that fired in the packed pattern that starts at words[offset]
+   */
+  static int countSpikes(long[] words, int offset, int numWords) {
+    int numSpikes = 0;
+    for (int wordIdx = 0; wordIdx < numWords; wordIdx++) {
+      numSpikes += Long.bitCount(words[offset + wordIdx]);
+    }
+    return numSpikes;
+  }
+
+  /**
+   * Copies the packed pattern of (remembered) time s to destination[offset], ...,
+   * destination[offset + getNumWords() - 1].
+   */
+  void copyPattern(int s, long[] destination, int offset) {
+    System.arraycopy(words, offsetOf(s), destination, offset, numWords);
+  }
+
+  /**
+   * @return the (live) packed patterns, in which the pattern of (remembered) time s starts at word
+   *         getOffset(s); this must not be modified
+   */
+  long[] getWords() { return words; }
+
+  /**
+   * @return position, in getWords(), of the first word of the pattern of (remembered) time s
+   */
+  int getOffset(int s) { return offsetOf(s); }
+
+  /**
+   * Writes the remembered patterns, and the number of time steps pushed, to a checkpoint.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putInt(depth);
+    out.putInt(numSteps);
+    out.putLongs(words, 0, words.length);
+  }
+
+  /**
+   * Replaces the remembered patterns with those written by saveState().
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    int savedDepth = in.getInt();
+    if (savedDepth != depth) {
+      throw new IOException("Checkpointed spike history remembers " + savedDepth + " time steps, not " + depth);
+    }
+    numSteps = in.getInt();
+    in.getLongs(words, 0, words.length);
+  }
+
+  private int offsetOf(int s) {
+    if (s < 0 || s >= numSteps || s < numSteps - depth) {
+      throw new IllegalArgumentException("Time step " + s + " is not remembered; latest is " + (numSteps - 1));
+    }
+    return (s % depth) * numWords;
+  }
+
+}
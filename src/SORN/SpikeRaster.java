@@ -0,0 +1,81 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Records the firing pattern of every time step of a trial, bit-packed as in SpikeHistory, for
+ * output at the end of the trial. The simulation itself only needs a SpikeHistory; a raster is
+ * only kept if the firing patterns are written out.
+ */
+class SpikeRaster {
+
+  private final int numNeurons;
+  private final int numWords; // Words per firing pattern
+  private final long[] words; // Pattern of time s starts at word s * numWords
+  private int numSteps; // Number of patterns recorded so far
+
+  /**
+   * @param numNeurons number of neurons in the network
+   * @param duration number of time steps to record
+   */
+  SpikeRaster(int numNeurons, int duration) {
+    this.numNeurons = numNeurons;
+    numWords = SpikeHistory.numWordsFor(numNeurons);
+    if ((long) duration * numWords > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Spike raster too large: " + duration + " time steps of " + numNeurons + " neurons");
+    }
+    words = new long[duration * numWords];
+  }
+
+  /**
+   * Appends the packed pattern (as in SpikeHistory) pattern[offset], ..., pattern[offset +
+   * SpikeHistory.numWordsFor(getNumNeurons()) - 1] as that of time getNumSteps().
+   */
+  void record(long[] pattern, int offset) {
+    System.arraycopy(pattern, offset, words, numSteps * numWords, numWords);
+    numSteps++;
+  }
+
+  int getNumNeurons() { return numNeurons; }
+
+  /**
+   * @return number of time steps recorded so far
+   */
+  int getNumSteps() { return numSteps; }
+
+  /**
+   * @return number of bytes written by saveState()
+   */
+  long stateBytes() {
+    return 4 + 8L * numSteps * numWords;
+  }
+
+  /**
+   * Writes the patterns recorded so far to a checkpoint (see Checkpoint).
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putInt(numSteps);
+    out.putLongs(words, 0, numSteps * numWords);
+  }
+
+  /**
+   * Replaces the recorded patterns with those written by saveState().
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    int numSteps = in.getInt();
+    if (numSteps < 0 || (long) numSteps * numWords > words.length) {
+      throw new IOException("Checkpointed spike raster has " + numSteps + " time steps, not at most "
+          + (words.length / numWords));
+    }
+    in.getLongs(words, 0, numSteps * numWords);
+    this.numSteps = numSteps;
+  }
+
+  /**
+   * @return true if and only if neuron i fired at time s
+   */
+  boolean fired(int s, int i) {
+    return (words[s * numWords + (i >>> 6)] & (1L << i)) != 0L;
+  }
+
+}
@@ -0,0 +1,30 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Receives the firing pattern of every time step from the simulation loop.
+ */
+interface SpikeRecorder {
+
+  /**
+   * Records a copy of the firing pattern of time t; patterns are recorded for consecutive time
+   * steps, starting at 0 (or at the time step of the checkpoint from which the trial was forked).
+   * The recorder must not keep references to pattern, which is reused.
+   *
+   * @param pattern packed firing pattern, as in SpikeHistory
+   */
+  void recordSpikes(int t, long[] pattern) throws IOException;
+
+  /**
+   * Writes the patterns recorded so far to the recorder's file (if it has one), so that they
+   * survive a crash of the simulation (e.g., before a trial is checkpointed; see Sim.runTrial()).
+   */
+  void flush() throws IOException;
+
+  /**
+   * Flushes any buffered patterns and releases resources held by the recorder.
+   */
+  void close() throws IOException;
+
+}
@@ -0,0 +1,110 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Keeps an exponentially decaying trace of each neuron's recent spikes, so that STDP can be
+ * computed from one number per neuron instead of by scanning the last memory time steps.
+ *
+ * After update() has been called with the firing patterns of times 0, ..., t - 1, trace[i] is
+ *   sum over delay = 1, ..., memory of decayRate^(delay - 1) * (1 if neuron i fired at t - delay)
+ * if the trace is truncated, and the same sum over all delay >= 1 otherwise (both up to round-off).
+ * The truncated trace has the same finite STDP window as Network.excitatorySTDP(int, SpikeHistory,
+ * int), at the cost of remembering the last memory + 1 firing patterns; the untruncated trace
+ * corresponds to memory = infinity and needs no history at all.
+ *
+ * Even truncated, trace-based STDP does not reproduce history-based STDP exactly: the weight
+ * changes of all delays are summed (in another order, so with other round-off) before the lower
+ * bound of 0.0 is applied, once, whereas the history applies them and the bound one delay at a
+ * time. Trials that must match history-based STDP exactly should be run with Sim.useSpikeTraces
+ * unset.
+ */
+class SpikeTrace {
+
+  private final int memory;
+  private final double decayRate;
+  private final boolean truncated;
+  private final double tailWeight; // decayRate^memory, the weight of a spike leaving the window
+  private final double[] trace;
+
+  // Only used if truncated
+  private final SpikeHistory window; // Firing patterns of the last memory + 1 updates
+  private final int[] numSpikesInWindow; // Lets traces of silent neurons be reset to exactly 0.0
+
+  SpikeTrace(int numNeurons, int memory, double decayRate, boolean truncated) {
+    if (memory < 0) {
+      throw new IllegalArgumentException("STDP memory is negative: " + memory);
+    }
+    this.memory = memory;
+    this.decayRate = decayRate;
+    this.truncated = truncated;
+    tailWeight = Math.pow(decayRate, memory);
+    trace = new double[numNeurons];
+    window = truncated ? new SpikeHistory(numNeurons, memory + 1) : null;
+    numSpikesInWindow = truncated ? new int[numNeurons] : null;
+  }
+
+  /**
+   * Advances the traces by one time step.
+   *
+   * @param fired fired[i] is true if and only if neuron i fired at the most recent time step
+   */
+  void update(boolean[] fired) {
+    if (!truncated) {
+      for (int neuronIdx = 0; neuronIdx < trace.length; neuronIdx++) {
+        trace[neuronIdx] = decayRate * trace[neuronIdx] + (fired[neuronIdx] ? 1.0 : 0.0);
+      }
+      return;
+    }
+
+    // Spikes from memory time steps before fired leave the window. The newest pattern is pushed
+    // first so that, for memory == 0, the pattern that enters the window also leaves it.
+    window.push(fired);
+    int leavingTime = window.getLatestTime() - memory;
+    long[] words = window.getWords();
+    int leavingOffset = (leavingTime >= 0) ? window.getOffset(leavingTime) : -1;
+    for (int neuronIdx = 0; neuronIdx < trace.length; neuronIdx++) {
+      double newTrace = decayRate * trace[neuronIdx];
+      if (fired[neuronIdx]) {
+        newTrace += 1.0;
+        numSpikesInWindow[neuronIdx]++;
+      }
+      if (leavingOffset >= 0 && (words[leavingOffset + (neuronIdx >>> 6)] & (1L << neuronIdx)) != 0L) {
+        newTrace -= tailWeight;
+        numSpikesInWindow[neuronIdx]--;
+      }
+      // Avoids round-off residue for neurons that have not fired within the window
+      trace[neuronIdx] = (numSpikesInWindow[neuronIdx] == 0) ? 0.0 : newTrace;
+    }
+  }
+
+  /**
+   * @return the current traces; trace[i] belongs to neuron i
+   */
+  double[] getTrace() { return trace; }
+
+  boolean isTruncated() { return truncated; }
+
+  /**
+   * Writes the traces (and, if truncated, the window of firing patterns) to a checkpoint.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    out.putDoubles(trace, 0, trace.length);
+    if (truncated) {
+      window.saveState(out);
+      out.putInts(numSpikesInWindow, 0, numSpikesInWindow.length);
+    }
+  }
+
+  /**
+   * Replaces the traces with those written by saveState() (by a SpikeTrace of the same shape).
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    in.getDoubles(trace, 0, trace.length);
+    if (truncated) {
+      window.restoreState(in);
+      in.getInts(numSpikesInWindow, 0, numSpikesInWindow.length);
+    }
+  }
+
+}
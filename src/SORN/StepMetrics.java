@@ -0,0 +1,121 @@
+package SORN;
+
+/**
+ * Accumulates the time spent in each phase of the simulation's time steps, plus a few counters
+ * (time steps, spikes, projections, bytes recorded), cheaply enough to be left on in every trial:
+ * each phase of each chunk costs two calls to System.nanoTime() per time step.
+ *
+ * Phases run in parallel chunks (see ParallelStepper) are timed per chunk, so the time of a phase
+ * is summed over the threads that ran it. Each chunk (and the calling thread, for the phases it
+ * runs alone) has its own row of counters, so that threads never write to the same cache line;
+ * the rows are read (by the calling thread) between time steps, after ParallelStepper.run() has
+ * synchronized with the workers.
+ *
+ * All counts are totals since the start of the trial (see MetricsWriter for rates).
+ */
+class StepMetrics {
+
+  // Phases of a time step
+  static final int FIRE = 0;
+  static final int STDP = 1;
+  static final int NORMALIZATION = 2;
+  static final int INTRINSIC_PLASTICITY = 3;
+  static final int STRUCTURAL_PLASTICITY = 4;
+  static final int RECORDING = 5;
+  static final int STATISTICS = 6;
+  static final int CHECKPOINTING = 7;
+  static final int EXCHANGE = 8; // Of spikes between shards (see ShardWorker)
+  static final int NUM_PHASES = 9;
+  static final String[] PHASE_NAMES = {
+      "fire", "stdp", "normalization", "intrinsic_plasticity", "structural_plasticity", "recording", "statistics",
+      "checkpointing", "exchange" };
+
+  private static final int PROJECTIONS = NUM_PHASES; // Position of the number of projections in a row
+  private static final int ROW_LENGTH = NUM_PHASES + 1 + 8; // Padded by a cache line (of longs)
+
+  private final int numNeurons;
+  private final long[][] counters; // Row c belongs to chunk c; the last row to the calling thread
+  private long numSteps;
+  private long numSpikes;
+  private long bytesRecorded;
+
+  /**
+   * @param numNeurons number of neurons in the network
+   * @param numChunks number of chunks into which the neurons are split (see ParallelStepper)
+   */
+  StepMetrics(int numNeurons, int numChunks) {
+    this.numNeurons = numNeurons;
+    counters = new long[numChunks + 1][ROW_LENGTH];
+  }
+
+  /**
+   * Adds nanos to the time spent in phase, by the thread running chunk chunkIdx.
+   */
+  void addNanos(int chunkIdx, int phase, long nanos) {
+    counters[chunkIdx][phase] += nanos;
+  }
+
+  /**
+   * Adds nanos to the time spent in phase, by the calling thread, outside of any chunk.
+   */
+  void addCallerNanos(int phase, long nanos) {
+    counters[counters.length - 1][phase] += nanos;
+  }
+
+  /**
+   * Adds numProjections to the number of projections (see Network.synapticNormalization()) of chunk
+   * chunkIdx.
+   */
+  void addProjections(int chunkIdx, int numProjections) {
+    counters[chunkIdx][PROJECTIONS] += numProjections;
+  }
+
+  /**
+   * Counts a completed time step, in which numFired neurons fired.
+   */
+  void countStep(int numFired) {
+    numSteps++;
+    numSpikes += numFired;
+  }
+
+  void addBytesRecorded(long bytes) {
+    bytesRecorded += bytes;
+  }
+
+  long getNumSteps() { return numSteps; }
+
+  long getNumSpikes() { return numSpikes; }
+
+  long getBytesRecorded() { return bytesRecorded; }
+
+  /**
+   * @return total time spent in phase, summed over all threads
+   */
+  long getNanos(int phase) {
+    long nanos = 0;
+    for (long[] row : counters) {
+      nanos += row[phase];
+    }
+    return nanos;
+  }
+
+  /**
+   * @return number of times a neuron's weights were projected onto the L1 ball
+   */
+  long getNumProjections() {
+    long numProjections = 0;
+    for (long[] row : counters) {
+      numProjections += row[PROJECTIONS];
+    }
+    return numProjections;
+  }
+
+  /**
+   * @return number of times a neuron's projection was skipped, because its weights were already
+   *         inside the L1 ball
+   */
+  long getNumProjectionsSkipped() {
+    return numSteps * numNeurons - getNumProjections();
+  }
+
+}
@@ -0,0 +1,217 @@
+package SORN;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * External input that drives the first getNumDriven() neurons of a trial, either as spike trains,
+ * which clamp the driven neurons (each fires if and only if its input spikes, whatever its other
+ * input), or as currents, which are added to the driven neurons' weighted input before it is
+ * compared with their thresholds (see Network.exceedsThreshold()).
+ *
+ * The input is read from a Source (e.g., a StimulusFile, or a generator such as PoissonStimulus)
+ * in blocks of consecutive time steps, so that the fire phase only looks up the current step's
+ * input in an array, without allocating or parsing anything. With read-ahead, the next block is
+ * read by a background thread while the current one is in use, so that a trial only waits for its
+ * input if the source cannot keep up.
+ *
+ * The input of each time step depends only on the time step, so a trial that is resumed from a
+ * checkpoint (and driven by an equivalent Stimulus) continues with the same input.
+ *
+ * Each trial needs its own Stimulus (which is not thread-safe, except for getInput()), although
+ * several may share a source that can be read concurrently, such as a StimulusFile.
+ */
+final class Stimulus implements Closeable {
+
+  /**
+   * Input for each time step, for a fixed number of driven neurons. read() is called by a single
+   * thread at a time, but not always the same one.
+   */
+  interface Source {
+
+    /**
+     * @return number of driven neurons (the first ones of the network)
+     */
+    int getNumDriven();
+
+    /**
+     * @return true if the input is spike trains, or false if it is currents
+     */
+    boolean isSpikes();
+
+    /**
+     * @return number of time steps of input, after which it repeats from the beginning
+     */
+    int getNumSteps();
+
+    /**
+     * Copies the input of step (less than getNumSteps()): the packed spikes of the driven neurons
+     * (as in SpikeHistory) to spikes[offset], ..., spikes[offset + SpikeHistory.numWordsFor(
+     * getNumDriven()) - 1], if the input is spike trains, or their currents to currents[offset], ...,
+     * currents[offset + getNumDriven() - 1], if it is currents.
+     */
+    void read(int step, long[] spikes, float[] currents, int offset) throws IOException;
+  }
+
+  private final Source source;
+  private final int numDriven;
+  private final boolean isSpikes;
+  private final int stride; // Longs or floats of input per time step
+  private final int blockSteps;
+
+  // Input of time steps blockStart, ..., blockStart + blockSteps - 1; the next... arrays are filled
+  // by the read-ahead thread, and swapped in once the trial reaches nextBlockStart
+  private long[] spikes;
+  private float[] currents;
+  private int blockStart = -1;
+  private long[] nextSpikes;
+  private float[] nextCurrents;
+  private int nextBlockStart = -1;
+  private int stepOffset; // Position of the current time step's input in spikes or currents
+
+  private final ExecutorService readAhead; // Or null
+  private Future<?> pending; // Read of the next block, or null
+
+  /**
+   * @param blockSteps number of time steps of input read at a time
+   * @param readAhead read the next block on a background thread while the current one is in use
+   */
+  Stimulus(Source source, int blockSteps, boolean readAhead) {
+    if (blockSteps < 1) {
+      throw new IllegalArgumentException("Blocks must contain at least one time step: " + blockSteps);
+    }
+    this.source = source;
+    this.blockSteps = blockSteps;
+    numDriven = source.getNumDriven();
+    isSpikes = source.isSpikes();
+    stride = isSpikes ? SpikeHistory.numWordsFor(numDriven) : numDriven;
+    spikes = new long[isSpikes ? blockSteps * stride : 0];
+    currents = new float[isSpikes ? 0 : blockSteps * stride];
+    nextSpikes = new long[spikes.length];
+    nextCurrents = new float[currents.length];
+    this.readAhead = !readAhead ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SORN-stimulus");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  int getNumDriven() { return numDriven; }
+
+  boolean isSpikes() { return isSpikes; }
+
+  /**
+   * Makes the input of time step t current. Must be called (by a single thread) before neurons
+   * are fired in time step t; unless t follows on from the previous call, this reads t's block
+   * synchronously.
+   *
+   * @throws UncheckedIOException if the source cannot be read
+   */
+  void advanceTo(int t) {
+    int start = t - t % blockSteps;
+    if (start != blockStart) {
+      try {
+        if (pending != null) {
+          awaitPending();
+          if (nextBlockStart == start) { // Swaps in the block that was read ahead
+            long[] spikesSwap = spikes;
+            spikes = nextSpikes;
+            nextSpikes = spikesSwap;
+            float[] currentsSwap = currents;
+            currents = nextCurrents;
+            nextCurrents = currentsSwap;
+            blockStart = start;
+          }
+        }
+        if (start != blockStart) {
+          blockStart = -1; // Until the block has been read
+          readBlock(start, spikes, currents);
+          blockStart = start;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not read the stimulus of time step " + t, e);
+      }
+      if (readAhead != null) {
+        final int finalNextBlockStart = start + blockSteps;
+        final long[] finalNextSpikes = nextSpikes;
+        final float[] finalNextCurrents = nextCurrents;
+        nextBlockStart = finalNextBlockStart;
+        pending = readAhead.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            readBlock(finalNextBlockStart, finalNextSpikes, finalNextCurrents);
+            return null;
+          }
+        });
+      }
+    }
+    stepOffset = (t - blockStart) * stride;
+  }
+
+  /**
+   * @return input to neuron i in the current time step (see advanceTo()): 0.0 if i is not driven,
+   *         its current, or, for spike trains, positive (negative) infinity if it does (not) spike
+   */
+  double getInput(int i) {
+    if (i >= numDriven) { return 0.0; }
+    if (!isSpikes) { return currents[stepOffset + i]; }
+    return ((spikes[stepOffset + (i >> 6)] >>> (i & 63)) & 1L) != 0L ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Stops the read-ahead thread, once it has finished any read in progress; the source is left
+   * open, since other stimuli may share it.
+   */
+  @Override
+  public void close() {
+    if (readAhead == null) { return; }
+    readAhead.shutdown();
+    try {
+      readAhead.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads the input of time steps start, ..., start + blockSteps - 1 (repeating the source's input
+   * as needed).
+   */
+  private void readBlock(int start, long[] spikes, float[] currents) throws IOException {
+    int numSteps = source.getNumSteps();
+    for (int s = 0; s < blockSteps; s++) {
+      source.read((int) ((start + (long) s) % numSteps), spikes, currents, s * stride);
+    }
+  }
+
+  /**
+   * Waits for the read of the next block, rethrowing its failure, if any.
+   */
+  private void awaitPending() throws IOException {
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading the stimulus ahead");
+    } catch (ExecutionException e) {
+      nextBlockStart = -1;
+      if (e.getCause() instanceof IOException) { throw (IOException) e.getCause(); }
+      throw new IOException("Could not read the stimulus ahead", e.getCause());
+    } finally {
+      pending = null;
+    }
+  }
+
+}
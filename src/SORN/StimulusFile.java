@@ -0,0 +1,147 @@
+package SORN;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A precomputed Stimulus.Source, read from a memory-mapped .stimulus file, so that input much
+ * longer than fits on the heap can be replayed by any number of trials (which share its pages in
+ * the OS's cache). The file is mapped in windows of up to WINDOW_BYTES, each holding whole time
+ * steps, and read() copies a single step out of its window; read() is thread-safe.
+ *
+ * Layout (little-endian, so that e.g. numpy's tofile() can write the input; version 1):
+ *   magic (int), version (int), type (int; SPIKES or CURRENTS), number of driven neurons (int),
+ *   number of time steps (int), padding to HEADER_BYTES,
+ *   then, for each time step, the packed spikes of the driven neurons (SpikeHistory.numWordsFor()
+ *   longs, in which bit i % 64 of long i / 64 is set if neuron i spikes), or their currents (one
+ *   float each)
+ */
+final class StimulusFile implements Stimulus.Source, Closeable {
+
+  static final int MAGIC = 0x534E5253; // "SRNS", when read as little-endian bytes
+  static final int VERSION = 1;
+  static final int SPIKES = 0;
+  static final int CURRENTS = 1;
+  static final int HEADER_BYTES = 32;
+  static final int WINDOW_BYTES = 1 << 30; // Maximum size of each mapped window
+
+  private final RandomAccessFile file;
+  private final int numDriven;
+  private final boolean isSpikes;
+  private final int numSteps;
+  private final int stepBytes;
+  private final int stepsPerWindow;
+  private final ByteBuffer[] windows;
+
+  /**
+   * @param filepath file written by write() (or in the same layout)
+   */
+  StimulusFile(String filepath) throws IOException {
+    file = new RandomAccessFile(filepath, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_BYTES) {
+        throw new IOException(filepath + " is too short to be a SORN stimulus file.");
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(filepath + " is not a SORN stimulus file.");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported SORN stimulus file version " + version + " in " + filepath);
+      }
+      int type = header.getInt();
+      if (type != SPIKES && type != CURRENTS) {
+        throw new IOException("Unknown stimulus type " + type + " in " + filepath);
+      }
+      isSpikes = type == SPIKES;
+      numDriven = header.getInt();
+      numSteps = header.getInt();
+      stepBytes = isSpikes ? 8 * SpikeHistory.numWordsFor(numDriven) : 4 * numDriven;
+      if (numDriven < 1 || numSteps < 1 || stepBytes > WINDOW_BYTES
+          || channel.size() < HEADER_BYTES + (long) numSteps * stepBytes) {
+        throw new IOException(filepath + " is truncated, or has an invalid header.");
+      }
+      stepsPerWindow = WINDOW_BYTES / stepBytes;
+      windows = new ByteBuffer[(int) ((numSteps + (long) stepsPerWindow - 1) / stepsPerWindow)];
+      for (int windowIdx = 0; windowIdx < windows.length; windowIdx++) {
+        int windowSteps = (int) Math.min(stepsPerWindow, numSteps - (long) windowIdx * stepsPerWindow);
+        windows[windowIdx] = channel.map(FileChannel.MapMode.READ_ONLY,
+            HEADER_BYTES + (long) windowIdx * stepsPerWindow * stepBytes, (long) windowSteps * stepBytes);
+        windows[windowIdx].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the first numSteps time steps of source's input to a .stimulus file (e.g., to replay the
+   * output of an expensive generator in many trials).
+   */
+  static void write(String filepath, Stimulus.Source source, int numSteps) throws IOException {
+    int numDriven = source.getNumDriven();
+    boolean isSpikes = source.isSpikes();
+    int numWords = SpikeHistory.numWordsFor(numDriven);
+    long[] spikes = new long[isSpikes ? numWords : 0];
+    float[] currents = new float[isSpikes ? 0 : numDriven];
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_BYTES, isSpikes ? 8 * numWords : 4 * numDriven));
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filepath), 1 << 16)) {
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(isSpikes ? SPIKES : CURRENTS).putInt(numDriven).putInt(numSteps);
+      out.write(buffer.array(), 0, HEADER_BYTES);
+      for (int t = 0; t < numSteps; t++) {
+        source.read(t % source.getNumSteps(), spikes, currents, 0);
+        buffer.clear();
+        if (isSpikes) {
+          buffer.asLongBuffer().put(spikes);
+        } else {
+          buffer.asFloatBuffer().put(currents);
+        }
+        out.write(buffer.array(), 0, isSpikes ? 8 * numWords : 4 * numDriven);
+      }
+    }
+  }
+
+  @Override
+  public int getNumDriven() { return numDriven; }
+
+  @Override
+  public boolean isSpikes() { return isSpikes; }
+
+  @Override
+  public int getNumSteps() { return numSteps; }
+
+  @Override
+  public void read(int step, long[] spikes, float[] currents, int offset) {
+    ByteBuffer window = windows[step / stepsPerWindow];
+    int position = (step % stepsPerWindow) * stepBytes;
+    if (isSpikes) {
+      for (int k = 0; k < stepBytes / 8; k++) {
+        spikes[offset + k] = window.getLong(position + 8 * k);
+      }
+    } else {
+      for (int k = 0; k < numDriven; k++) {
+        currents[offset + k] = window.getFloat(position + 4 * k);
+      }
+    }
+  }
+
+  /**
+   * Closes the file; its mappings remain valid until they are garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+}
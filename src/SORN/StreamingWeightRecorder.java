@@ -0,0 +1,186 @@
+package SORN;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams weight snapshots to a binary file, one chunk of frames at a time, so that memory use is
+ * bounded by the chunk buffer rather than by the length of the trial.
+ *
+ * File layout (big-endian, readable in MATLAB via analysis/readWeights.m):
+ *   header: int magic, int version, int numNeurons, int recordEvery, int numFrames
+ *   frames: int t, followed by numNeurons^2 doubles in row-major order, where row i holds the
+ *           input weights of neuron i
+ *
+ * numFrames is written by flush() and close(); a file that was not closed (because the simulation
+ * crashed) may hold more, or fewer, frames. Such a file can be reopened by resume(), which keeps the
+ * whole frames up to a checkpoint, and appends to them.
+ */
+class StreamingWeightRecorder implements WeightRecorder {
+
+  static final int MAGIC = 0x534F524E; // "SORN"
+  static final int VERSION = 1;
+  private static final int HEADER_BYTES = 5 * 4;
+  private static final int NUM_FRAMES_OFFSET = 4 * 4; // Position of numFrames within the header
+
+  private final int numNeurons;
+  private final int recordEvery; // Record every recordEvery-th time step
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final ByteBuffer chunk; // Frames waiting to be written
+  private final double[] row; // The row of weights being written
+  private int numFrames;
+
+  /**
+   * @param filepath file to (over)write
+   * @param numNeurons number of neurons in the network
+   * @param recordEvery record every recordEvery-th time step
+   * @param bufferBytes size of the chunk buffer; the buffer always holds at least one row of
+   *                    weights, and frames larger than the buffer are written row by row
+   */
+  StreamingWeightRecorder(String filepath, int numNeurons, int recordEvery, int bufferBytes) throws IOException {
+    this(filepath, numNeurons, recordEvery, bufferBytes, -1);
+  }
+
+  /**
+   * @param resumeTime -1 to (over)write filepath, or the time step after which to discard the
+   *                   frames already in filepath, and append to the rest (see resume())
+   */
+  private StreamingWeightRecorder(String filepath, int numNeurons, int recordEvery, int bufferBytes, int resumeTime)
+      throws IOException {
+    if (recordEvery < 1) {
+      throw new IllegalArgumentException("Recording cadence must be positive: " + recordEvery);
+    }
+    this.numNeurons = numNeurons;
+    this.recordEvery = recordEvery;
+    chunk = ByteBuffer.allocateDirect(Math.max(bufferBytes, 4 + 8 * numNeurons));
+    row = new double[numNeurons];
+
+    file = new RandomAccessFile(filepath, "rw");
+    channel = file.getChannel();
+    try {
+      if (resumeTime < 0) {
+        file.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numNeurons).putInt(recordEvery).putInt(0);
+        header.flip();
+        writeFully(header);
+      } else {
+        numFrames = keepFramesUpTo(filepath, resumeTime);
+        channel.position(HEADER_BYTES + numFrames * frameBytes());
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reopens a file written by a trial that was interrupted after its checkpoint at time step
+   * checkpointTime (and whose frames up to then were flushed before the checkpoint was taken): the
+   * frames recorded after checkpointTime (and any partly written frame) are discarded, and the
+   * frames recorded from then on are appended to the rest, so that the file ends up as if the trial
+   * had never been interrupted.
+   *
+   * @throws IOException if filepath is not a file of frames of numNeurons neurons, recorded every
+   *                     recordEvery time steps
+   */
+  static StreamingWeightRecorder resume(String filepath, int numNeurons, int recordEvery, int bufferBytes,
+                                        int checkpointTime) throws IOException {
+    if (checkpointTime < 0) {
+      throw new IllegalArgumentException("Checkpoints are taken at non-negative time steps: " + checkpointTime);
+    }
+    return new StreamingWeightRecorder(filepath, numNeurons, recordEvery, bufferBytes, checkpointTime);
+  }
+
+  /**
+   * Checks the header of the file, and truncates it after its last whole frame recorded at or
+   * before time step lastTime.
+   *
+   * @return number of frames kept
+   */
+  private int keepFramesUpTo(String filepath, int lastTime) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        throw new IOException(filepath + " is too short to be a SORN weights file.");
+      }
+    }
+    header.flip();
+    if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != numNeurons
+        || header.getInt() != recordEvery) {
+      throw new IOException(filepath + " is not a SORN weights file of " + numNeurons + " neurons, recorded every "
+          + recordEvery + " time steps.");
+    }
+    long frameBytes = frameBytes();
+    long numWholeFrames = (channel.size() - HEADER_BYTES) / frameBytes;
+    int numKept = 0;
+    ByteBuffer time = ByteBuffer.allocate(4);
+    while (numKept < numWholeFrames) { // Frames are recorded in order of time
+      time.clear();
+      channel.read(time, HEADER_BYTES + numKept * frameBytes);
+      if (time.getInt(0) > lastTime) { break; }
+      numKept++;
+    }
+    file.setLength(HEADER_BYTES + numKept * frameBytes);
+    return numKept;
+  }
+
+  private long frameBytes() {
+    return 4 + 8L * numNeurons * numNeurons;
+  }
+
+  @Override
+  public boolean shouldRecord(int t) {
+    return t % recordEvery == 0;
+  }
+
+  @Override
+  public void record(int t, WeightMatrix weights) throws IOException {
+    if (chunk.remaining() < 4) {
+      flushChunk();
+    }
+    chunk.putInt(t);
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      if (chunk.remaining() < 8 * numNeurons) {
+        flushChunk();
+      }
+      weights.copyRow(neuronIdx, row, 0);
+      chunk.asDoubleBuffer().put(row); // Bulk copy of one row
+      chunk.position(chunk.position() + 8 * numNeurons);
+    }
+    numFrames++;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushChunk();
+    ByteBuffer numFramesBuffer = ByteBuffer.allocate(4);
+    numFramesBuffer.putInt(numFrames).flip();
+    channel.write(numFramesBuffer, NUM_FRAMES_OFFSET);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      file.close();
+    }
+  }
+
+  private void flushChunk() throws IOException {
+    chunk.flip();
+    writeFully(chunk);
+    chunk.clear();
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+}
@@ -0,0 +1,338 @@
+package SORN;
+
+import org.jfree.data.xy.YIntervalSeries;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sweep over several sets of parameters (points), all of whose trials are run in the same JVM, on
+ * one shared TrialScheduler. The sweep is described by a config file in java.util.Properties
+ * format, e.g.,
+ *
+ *   outputDirectory = /home/sss1/Desktop/SORN/memorySweep
+ *   numTrials = 10
+ *   memory = 0, 1, 2, 3, 4, 10
+ *
+ * Each parameter (see Parameters.NAMES) may be given a single value, which applies to every point,
+ * or a comma-separated list of values, in which case the sweep runs the grid of all combinations of
+ * the listed values. Explicit points may also be listed, as "point.<name>.<parameter> = <value>",
+ * each of which overrides the single values (and is combined with each point of the grid, if any).
+ *
+ * Each point's output goes to a directory of its own, named after the point (e.g., "memory4"),
+ * which contains the files of each trial (as in Sim.runTrial()), the point's parameters
+ * (parameters.properties) and, once all of its trials have finished, the density of the network
+ * averaged over the trials (summary.csv; a trial that stopped once it converged counts with its last
+ * density up to the point's duration, as described at Sim.runTrial()). Since summary.csv is written last, points that have one
+ * are complete, and are skipped when the sweep is run again (e.g., after a crash). The sweep's
+ * outputDirectory also contains an index of all points (index.csv): their names, whether they are
+ * complete, their final average densities, and their parameters.
+ *
+ * All points use the same seed (unless it is swept), so that, for example, trial k of every point
+ * starts from the same random numbers.
+ *
+ * If the config file gives the path of a checkpoint (see Checkpoint) as "startFrom", every trial of
+ * every point is forked from it (see Sim.runTrial()), e.g., to run several perturbations of the
+ * parameters after one shared burn-in; the points' parameters must then keep the checkpoint's
+ * numNeurons, memory and decayRate.
+ */
+class Sweep {
+
+  private static final String POINT_PREFIX = "point.";
+  private static final String PARAMETERS_FILE = "parameters.properties";
+  private static final String SUMMARY_FILE = "summary.csv";
+  private static final String INDEX_FILE = "index.csv";
+
+  /**
+   * A single set of parameters of the sweep, and where its output goes.
+   */
+  static final class Point {
+
+    final String name;
+    final Parameters params;
+    final File directory;
+
+    Point(String name, Parameters params, File directory) {
+      this.name = name;
+      this.params = params;
+      this.directory = directory;
+    }
+
+    File getSummaryFile() { return new File(directory, SUMMARY_FILE); }
+
+    boolean isComplete() { return getSummaryFile().isFile(); }
+
+  }
+
+  private final File outputDirectory;
+  private final String startFrom; // Path of the checkpoint from which every trial is forked, or null
+  private final List<Point> points;
+
+  /**
+   * @param config description of the sweep (see above)
+   * @throws IllegalArgumentException if config is invalid
+   */
+  Sweep(Properties config) {
+    String outputPath = config.getProperty("outputDirectory");
+    if (outputPath == null) {
+      throw new IllegalArgumentException("Sweep config has no outputDirectory.");
+    }
+    outputDirectory = new File(outputPath.trim());
+    String startPath = config.getProperty("startFrom");
+    startFrom = (startPath == null) ? null : startPath.trim();
+
+    // Single values, which apply to every point, and lists of values, which form the grid
+    Properties base = new Properties();
+    List<String> gridNames = new ArrayList<>();
+    List<String[]> gridValues = new ArrayList<>();
+    // Explicit points, by name, and the names of the parameters that they override
+    TreeSet<String> pointNames = new TreeSet<>();
+    for (String key : config.stringPropertyNames()) {
+      String value = config.getProperty(key).trim();
+      if (key.equals("outputDirectory") || key.equals("startFrom")) {
+        continue;
+      } else if (key.startsWith(POINT_PREFIX)) {
+        int nameEnd = key.indexOf('.', POINT_PREFIX.length());
+        if (nameEnd < 0) {
+          throw new IllegalArgumentException("Expected point.<name>.<parameter>, not " + key);
+        }
+        pointNames.add(checkName(key.substring(POINT_PREFIX.length(), nameEnd)));
+      } else if (!Parameters.NAMES.contains(key)) {
+        throw new IllegalArgumentException("Unknown parameter: " + key);
+      } else if (value.contains(",")) {
+        gridNames.add(key);
+        gridValues.add(value.split("\\s*,\\s*"));
+      } else {
+        base.setProperty(key, value);
+      }
+    }
+    // Sweep the grid in the order of Parameters.NAMES, so that point names do not depend on the
+    // order of the config file
+    List<String> orderedGridNames = new ArrayList<>();
+    List<String[]> orderedGridValues = new ArrayList<>();
+    for (String name : Parameters.NAMES) {
+      int gridIdx = gridNames.indexOf(name);
+      if (gridIdx >= 0) {
+        orderedGridNames.add(name);
+        orderedGridValues.add(gridValues.get(gridIdx));
+      }
+    }
+
+    points = new ArrayList<>();
+    if (pointNames.isEmpty()) {
+      addGridPoints("", base, orderedGridNames, orderedGridValues);
+    }
+    for (String pointName : pointNames) {
+      Properties pointProperties = new Properties();
+      pointProperties.putAll(base);
+      String prefix = POINT_PREFIX + pointName + ".";
+      for (String key : config.stringPropertyNames()) {
+        if (key.startsWith(prefix)) {
+          pointProperties.setProperty(key.substring(prefix.length()), config.getProperty(key).trim());
+        }
+      }
+      addGridPoints(pointName, pointProperties, orderedGridNames, orderedGridValues);
+    }
+  }
+
+  /**
+   * @param configPath path of the sweep's config file
+   */
+  static Sweep read(String configPath) throws IOException {
+    Properties config = new Properties();
+    try (InputStream in = new FileInputStream(configPath)) {
+      config.load(in);
+    }
+    return new Sweep(config);
+  }
+
+  /**
+   * @return the points of the sweep, in the order in which they are run
+   */
+  List<Point> getPoints() { return Collections.unmodifiableList(points); }
+
+  /**
+   * Adds a point for each combination of the grid's values, overriding the given properties.
+   *
+   * @param name name of the points (without the values of the grid)
+   */
+  private void addGridPoints(String name, Properties properties, List<String> gridNames, List<String[]> gridValues) {
+    if (gridNames.isEmpty()) {
+      String pointName = name.isEmpty() ? "default" : name;
+      for (Point point : points) {
+        if (point.name.equals(pointName)) {
+          throw new IllegalArgumentException("Sweep has two points named " + pointName);
+        }
+      }
+      points.add(new Point(pointName, new Parameters(properties), new File(outputDirectory, pointName)));
+      return;
+    }
+    String gridName = gridNames.get(0);
+    List<String> remainingNames = gridNames.subList(1, gridNames.size());
+    List<String[]> remainingValues = gridValues.subList(1, gridValues.size());
+    for (String value : gridValues.get(0)) {
+      Properties pointProperties = new Properties();
+      pointProperties.putAll(properties);
+      pointProperties.setProperty(gridName, value);
+      String pointName = (name.isEmpty() ? "" : name + "_") + gridName + checkName(value);
+      addGridPoints(pointName, pointProperties, remainingNames, remainingValues);
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if name would not be a portable file name
+   */
+  private static String checkName(String name) {
+    if (!name.matches("[A-Za-z0-9._+-]+")) {
+      throw new IllegalArgumentException("Point names (and swept values) may only contain letters, digits and ._+-, not " + name);
+    }
+    return name;
+  }
+
+  /**
+   * Runs the trials of every incomplete point, all on one TrialScheduler, and writes each point's
+   * summary as soon as its last trial finishes.
+   */
+  void run() throws IOException {
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+      throw new IOException("Could not create " + outputDirectory);
+    }
+
+    final Checkpoint start = (startFrom == null) ? null : Checkpoint.read(startFrom);
+    ArrayList<Callable<Void>> trials = new ArrayList<>();
+    long maxTrialBytes = 0L;
+    int numTrials = 0;
+    int numComplete = 0;
+    for (final Point point : points) {
+      if (point.isComplete()) {
+        System.out.println("Skipping complete point " + point.name + ".");
+        numComplete++;
+        continue;
+      }
+      if (!point.directory.isDirectory() && !point.directory.mkdirs()) {
+        throw new IOException("Could not create " + point.directory);
+      }
+      try (OutputStream out = new FileOutputStream(new File(point.directory, PARAMETERS_FILE))) {
+        point.params.toProperties().store(out, "Parameters of point " + point.name);
+      }
+      maxTrialBytes = Math.max(maxTrialBytes, Sim.estimateTrialBytes(point.params));
+
+      final int pointTrials = point.params.numTrials;
+      final String outputRoot = point.directory.getPath() + File.separator;
+      final TrialAggregator[] trialAggregates = new TrialAggregator[pointTrials]; // Merged in order of trial index
+      final AtomicInteger numUnfinished = new AtomicInteger(pointTrials);
+      for (int trialIdx = 0; trialIdx < pointTrials; trialIdx++) {
+        final int finalTrialIdx = trialIdx;
+        trials.add(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            System.out.println("Starting trial " + (finalTrialIdx + 1) + "/" + pointTrials + " of point " + point.name + ".");
+            TrialAggregator trialAggregate = new TrialAggregator();
+            Sim.runTrial(point.params, outputRoot, "Trial" + finalTrialIdx, new RandomStream(point.params.seed, finalTrialIdx),
+                start, trialAggregate);
+            trialAggregates[finalTrialIdx] = trialAggregate;
+            System.out.println("Finished trial " + (finalTrialIdx + 1) + "/" + pointTrials + " of point " + point.name + ".");
+            if (numUnfinished.decrementAndGet() == 0) { // All other trials of the point have finished
+              writeSummary(point, TrialAggregator.mergeAll(trialAggregates));
+              System.out.println("Finished point " + point.name + ".");
+              writeIndex();
+            }
+            return null;
+          }
+        });
+      }
+      numTrials += pointTrials;
+    }
+    writeIndex();
+    if (trials.isEmpty()) {
+      System.out.println("All " + points.size() + " points of the sweep are complete.");
+      return;
+    }
+
+    int numThreads = TrialScheduler.numThreadsFor(Sim.maxTrialThreads, trials.size(), maxTrialBytes, Sim.trialHeapFraction);
+    System.out.println("Running " + numTrials + " trials of " + (points.size() - numComplete) + " points ("
+        + numComplete + " already complete) on " + numThreads + " threads.");
+    new TrialScheduler(numThreads).runAll(trials);
+  }
+
+  /**
+   * Writes the average of the trials' results, with a 95% confidence interval (see
+   * TrialAggregator), to the point's summary file. The file is written under a temporary name and
+   * then renamed, so that it only exists once it is complete.
+   */
+  private static void writeSummary(Point point, TrialAggregator aggregate) throws IOException {
+    YIntervalSeries averaged = aggregate.toSeriesCollection(point.name).getSeries(0);
+    File summaryFile = point.getSummaryFile();
+    File temporaryFile = new File(point.directory, SUMMARY_FILE + ".tmp");
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(temporaryFile))) {
+      writer.write("t,density,density_lower_95,density_upper_95");
+      writer.newLine();
+      for (int item = 0; item < averaged.getItemCount(); item++) {
+        writer.write(averaged.getX(item) + "," + averaged.getYValue(item) + ","
+            + averaged.getYLowValue(item) + "," + averaged.getYHighValue(item));
+        writer.newLine();
+      }
+    }
+    Files.move(temporaryFile.toPath(), summaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * (Re)writes the index of all points, based on which of them have a summary file.
+   */
+  private synchronized void writeIndex() throws IOException {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(outputDirectory, INDEX_FILE)))) {
+      StringBuilder header = new StringBuilder("point,complete,final_density");
+      for (String name : Parameters.NAMES) {
+        header.append(',').append(name);
+      }
+      writer.write(header.toString());
+      writer.newLine();
+      for (Point point : points) {
+        boolean complete = point.isComplete();
+        StringBuilder row = new StringBuilder(point.name);
+        row.append(',').append(complete).append(',').append(complete ? readFinalDensity(point) : "");
+        Properties properties = point.params.toProperties();
+        for (String name : Parameters.NAMES) {
+          row.append(',').append(properties.getProperty(name));
+        }
+        writer.write(row.toString());
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * @return the average density of the point's network at the end of its trials (as of the last
+   *         sample in its summary file), or "" if it has no samples
+   */
+  private static String readFinalDensity(Point point) throws IOException {
+    String finalDensity = "";
+    try (BufferedReader reader = new BufferedReader(new FileReader(point.getSummaryFile()))) {
+      reader.readLine(); // Header
+      String line;
+      while ((line = reader.readLine()) != null) {
+        finalDensity = line.split(",")[1];
+      }
+    }
+    return finalDensity;
+  }
+
+}
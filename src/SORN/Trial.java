@@ -0,0 +1,293 @@
+package SORN;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * The state of a single simulated trial (the network, plus the recent firing patterns that drive
+ * its update rules), advanced one time step at a time by step(). What is recorded about the trial
+ * is up to the caller (see Sim.runTrial()).
+ */
+class Trial implements Closeable {
+
+  /**
+   * Exchanges the firing of the neurons of one shard of a trial for that of the other shards'
+   * neurons (see ShardWorker).
+   */
+  interface SpikeExchange {
+    /**
+     * Publishes firedNow[from], ..., firedNow[to - 1], the firing of this shard's neurons in time
+     * step t, and fills in the rest of firedNow with the firing of the other shards' neurons.
+     */
+    void exchange(int t, boolean[] firedNow, int from, int to) throws IOException;
+  }
+
+  private final int numNeurons;
+  private final int from; // Neurons from, ..., to - 1 are stepped by this trial (all, unless it is a shard)
+  private final int to;
+  private final SpikeExchange exchange; // Or null, unless the trial is a shard
+  private final boolean eventDrivenPropagation; // Only propagate input from neurons that fired
+  private final boolean useSpikeTraces; // Compute STDP from spike traces, rather than from history
+  private final Network network;
+  private final SpikeHistory history;
+  private final SpikeTrace spikeTrace;
+  private Stimulus stimulus; // External input to the first neurons, or null
+
+  // firedPrevious[i] (firedNow[i]) is true if and only if neuron i fired in the previous (current)
+  // time step; older firing patterns are only kept in history
+  private boolean[] firedPrevious;
+  private boolean[] firedNow;
+
+  // active[0], ..., active[numActive - 1] are the neurons that fired in the latest time step
+  private int[] active;
+  private int[] nextActive;
+  private int numActive;
+
+  // Neurons are split into chunks that are stepped in parallel, each with its own scratch space
+  private final ParallelStepper stepper;
+  private final double[][] projectionScratch;
+  private final int[][] structuralScratch;
+
+  private final StepMetrics metrics;
+
+  /**
+   * Sets up the trial at time 0, in which each neuron fires independently with probability 1/2.
+   *
+   * @param params parameters of the simulation, including the number of neurons
+   * @param random the trial's source of randomness
+   * @param storage storage of the network's weights (see WeightStorage)
+   * @param eventDrivenPropagation only propagate input from neurons that fired
+   * @param useSpikeTraces compute STDP from spike traces, rather than from the firing history
+   * @param truncateSpikeTraces only use the last params.memory steps of spike traces
+   * @param stepThreads number of threads that step the neurons
+   */
+  Trial(Parameters params, RandomStream random, WeightStorage storage, boolean eventDrivenPropagation,
+        boolean useSpikeTraces, boolean truncateSpikeTraces, int stepThreads) {
+    this(params, random, storage.newNetwork(params, random), 0, params.numNeurons, null, eventDrivenPropagation,
+        useSpikeTraces, truncateSpikeTraces, stepThreads);
+  }
+
+  /**
+   * Sets up one shard of a trial, which only steps neurons from, ..., to - 1 (and only stores their
+   * input weights, densely; see DenseNetwork), and learns the firing of the other neurons through
+   * exchange. Since every random number is determined by its coordinates (see RandomStream), and
+   * each neuron's update rules only depend on the firing patterns and its own state, shards evolve
+   * exactly like the corresponding neurons of the whole trial, with dense synapses.
+   *
+   * @param exchange exchange of spikes with the trial's other shards, which is called once per
+   *                 step(), after the neurons have fired
+   */
+  Trial(Parameters params, RandomStream random, int from, int to, SpikeExchange exchange, boolean eventDrivenPropagation,
+        boolean useSpikeTraces, boolean truncateSpikeTraces, int stepThreads) {
+    this(params, random, new DenseNetwork(params, random, from, to), from, to, exchange, eventDrivenPropagation,
+        useSpikeTraces, truncateSpikeTraces, stepThreads);
+  }
+
+  private Trial(Parameters params, RandomStream random, Network network, int from, int to, SpikeExchange exchange,
+                boolean eventDrivenPropagation, boolean useSpikeTraces, boolean truncateSpikeTraces, int stepThreads) {
+    numNeurons = params.numNeurons;
+    this.from = from;
+    this.to = to;
+    this.exchange = exchange;
+    this.eventDrivenPropagation = eventDrivenPropagation;
+    this.useSpikeTraces = useSpikeTraces;
+    this.network = network;
+    history = new SpikeHistory(numNeurons, params.memory + 1);
+    spikeTrace = new SpikeTrace(numNeurons, params.memory, params.decayRate, truncateSpikeTraces);
+    firedPrevious = new boolean[numNeurons];
+    firedNow = new boolean[numNeurons];
+
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      firedPrevious[neuronIdx] = firesInitially(random, neuronIdx);
+    }
+    history.push(firedPrevious);
+
+    active = new int[numNeurons];
+    numActive = history.spikingNeurons(0, active);
+    nextActive = new int[numNeurons];
+
+    stepper = new ParallelStepper(from, to, stepThreads);
+    projectionScratch = new double[stepper.getNumChunks()][numNeurons];
+    structuralScratch = new int[stepper.getNumChunks()][numNeurons];
+    metrics = new StepMetrics(numNeurons, stepper.getNumChunks());
+  }
+
+  /**
+   * @return the network, of which only the rows of neurons getFrom(), ..., getTo() - 1 are stored
+   *         if the trial is a shard
+   */
+  Network getNetwork() { return network; }
+
+  /**
+   * @return true if and only if neuron i fires in the first time step (as it does, independently,
+   *         with probability 1/2), which is the same in every shard of a trial
+   */
+  static boolean firesInitially(RandomStream random, int i) {
+    return random.uniform(i, 0, RandomStream.INITIAL_FIRING, 0) < 0.5;
+  }
+
+  int getFrom() { return from; }
+
+  int getTo() { return to; }
+
+  /**
+   * @return firing patterns of (at least) the last params.memory + 1 time steps
+   */
+  SpikeHistory getHistory() { return history; }
+
+  /**
+   * @return the latest time step
+   */
+  int getTime() { return history.getLatestTime(); }
+
+  /**
+   * @return number of neurons that fired in the latest time step
+   */
+  int getNumActive() { return numActive; }
+
+  /**
+   * @return timings and counters of the time steps so far; the caller may add those of the phases
+   *         it runs itself (e.g., StepMetrics.RECORDING)
+   */
+  StepMetrics getMetrics() { return metrics; }
+
+  boolean usesSpikeTraces() { return useSpikeTraces; }
+
+  /**
+   * Drives the first stimulus.getNumDriven() neurons with its input (see Stimulus), from the next
+   * step() on, or, if stimulus is null, stops driving them. The caller remains responsible for
+   * closing the stimulus.
+   */
+  void setStimulus(Stimulus stimulus) {
+    if (stimulus != null && stimulus.getNumDriven() > numNeurons) {
+      throw new IllegalArgumentException("Stimulus drives " + stimulus.getNumDriven() + " neurons, but the network has " + numNeurons);
+    }
+    this.stimulus = stimulus;
+    network.setStimulus(stimulus);
+  }
+
+  boolean truncatesSpikeTraces() { return spikeTrace.isTruncated(); }
+
+  /**
+   * Writes the trial's full state (the network, the spike history and the spike traces) to a
+   * checkpoint (see Checkpoint); the latest firing pattern is part of the history.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    network.saveState(out);
+    history.saveState(out);
+    spikeTrace.saveState(out);
+  }
+
+  /**
+   * Replaces the trial's state with that written by saveState(), so that the next step() continues
+   * from the checkpointed time step.
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    network.restoreState(in);
+    history.restoreState(in);
+    spikeTrace.restoreState(in);
+    int t = history.getLatestTime();
+    for (int neuronIdx = 0; neuronIdx < numNeurons; neuronIdx++) {
+      firedPrevious[neuronIdx] = history.fired(t, neuronIdx);
+    }
+    numActive = history.spikingNeurons(t, active);
+  }
+
+  /**
+   * Fires the neurons, based on the latest firing pattern, and then applies each update rule, based
+   * on the latest two firing patterns.
+   */
+  void step() {
+    final int now = history.getLatestTime() + 1;
+    final int[] finalActive = active;
+    final int finalNumActive = numActive;
+    final boolean[] finalFiredPrevious = firedPrevious;
+    final boolean[] finalFiredNow = firedNow;
+    long prepareStart = System.nanoTime();
+    if (stimulus != null) {
+      stimulus.advanceTo(now);
+    }
+    network.prepareFire();
+    metrics.addCallerNanos(StepMetrics.FIRE, System.nanoTime() - prepareStart);
+    stepper.run(new ParallelStepper.ChunkTask() {
+      @Override
+      public void run(int chunkIdx, int from, int to) {
+        long start = System.nanoTime();
+        // Fire neurons
+        if (eventDrivenPropagation) {
+          network.fire(finalActive, finalNumActive, finalFiredNow, now, from, to);
+        } else {
+          network.fire(finalFiredPrevious, finalFiredNow, now, from, to);
+        }
+        metrics.addNanos(chunkIdx, StepMetrics.FIRE, System.nanoTime() - start);
+      }
+    });
+
+    if (exchange != null) {
+      long exchangeStart = System.nanoTime();
+      try {
+        exchange.exchange(now, firedNow, from, to);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not exchange the spikes of time step " + now, e);
+      }
+      metrics.addCallerNanos(StepMetrics.EXCHANGE, System.nanoTime() - exchangeStart);
+    }
+
+    long historyStart = System.nanoTime();
+    history.push(firedNow);
+    final int[] finalNextActive = nextActive;
+    final int numNextActive = history.spikingNeurons(now, nextActive);
+    long traceStart = System.nanoTime();
+    metrics.addCallerNanos(StepMetrics.FIRE, traceStart - historyStart);
+    if (useSpikeTraces) {
+      spikeTrace.update(firedPrevious);
+      metrics.addCallerNanos(StepMetrics.STDP, System.nanoTime() - traceStart);
+    }
+
+    stepper.run(new ParallelStepper.ChunkTask() {
+      @Override
+      public void run(int chunkIdx, int from, int to) {
+        // Apply each update rule, based on current and previous firing patterns
+        long stdpStart = System.nanoTime();
+        if (useSpikeTraces) {
+          network.excitatorySTDP(spikeTrace.getTrace(), finalFiredNow, finalNextActive, numNextActive, from, to);
+        } else {
+          network.excitatorySTDP(history, now, from, to);
+        }
+        long normalizationStart = System.nanoTime();
+        int numProjections = network.synapticNormalization(projectionScratch[chunkIdx], from, to);
+        long intrinsicStart = System.nanoTime();
+        network.intrinsicPlasticity(finalFiredNow, from, to);
+        long structuralStart = System.nanoTime();
+        network.structuralPlasticity(now, structuralScratch[chunkIdx], from, to);
+        long end = System.nanoTime();
+        metrics.addNanos(chunkIdx, StepMetrics.STDP, normalizationStart - stdpStart);
+        metrics.addNanos(chunkIdx, StepMetrics.NORMALIZATION, intrinsicStart - normalizationStart);
+        metrics.addNanos(chunkIdx, StepMetrics.INTRINSIC_PLASTICITY, structuralStart - intrinsicStart);
+        metrics.addNanos(chunkIdx, StepMetrics.STRUCTURAL_PLASTICITY, end - structuralStart);
+        metrics.addProjections(chunkIdx, numProjections);
+      }
+    });
+    metrics.countStep(numNextActive);
+
+    int[] swap = active; // The current firing pattern becomes the previous one
+    active = nextActive;
+    nextActive = swap;
+    numActive = numNextActive;
+    boolean[] firedSwap = firedPrevious;
+    firedPrevious = firedNow;
+    firedNow = firedSwap;
+  }
+
+  /**
+   * Stops the threads that step the neurons, and releases the network's weights, if they are stored
+   * off the heap.
+   */
+  @Override
+  public void close() {
+    stepper.close();
+    network.close();
+  }
+
+}
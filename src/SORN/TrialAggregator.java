@@ -0,0 +1,162 @@
+package SORN;
+
+import org.jfree.data.xy.YIntervalSeries;
+import org.jfree.data.xy.YIntervalSeriesCollection;
+
+import java.util.Arrays;
+
+/**
+ * Running mean and variance, across trials, of a quantity sampled at the same times in each trial
+ * (e.g., the network's density at each NetworkStatistics sample). Trials add their samples as they
+ * run (by Welford's algorithm), so memory grows with the number of samples per trial, but not with
+ * the number of trials.
+ *
+ * Every method is thread-safe, but, to avoid contention, each trial should add its samples to its
+ * own aggregator, and the trials' aggregators should then be merged (by Chan et al.'s parallel
+ * algorithm). Merging is only associative and commutative up to round-off, so, for results that do
+ * not depend on which trials happened to finish first, they are merged in a fixed order (see
+ * mergeAll()).
+ */
+class TrialAggregator {
+
+  private static final double Z_SCORE_95 = 1.96; // # of standard deviations from mean for two-sided 95% normal CI
+
+  private int numSamples; // Number of sample indices with at least one value
+  private double[] times; // times[s] is the time step of sample s
+  private long[] counts; // counts[s] is the number of trials that have added sample s
+  private double[] means;
+  private double[] sumSquaredDeviations; // From the mean, over the counts[s] values of sample s
+
+  TrialAggregator() {
+    times = new double[16];
+    counts = new long[16];
+    means = new double[16];
+    sumSquaredDeviations = new double[16];
+  }
+
+  /**
+   * Adds one trial's value of sample s.
+   *
+   * @param time time step of sample s, which must be the same in every trial
+   * @throws IllegalArgumentException if sample s was taken at a different time in another trial
+   */
+  synchronized void add(int s, double time, double value) {
+    ensureCapacity(s + 1);
+    checkTime(s, time);
+    counts[s]++;
+    double delta = value - means[s];
+    means[s] += delta / counts[s];
+    sumSquaredDeviations[s] += delta * (value - means[s]);
+  }
+
+  /**
+   * Merges the values of other (which is unchanged) into this aggregator.
+   *
+   * @throws IllegalArgumentException if a sample was taken at different times in the two
+   */
+  void merge(TrialAggregator other) {
+    // Copies other's state first, so that this never holds both locks
+    int otherNumSamples;
+    double[] otherTimes;
+    long[] otherCounts;
+    double[] otherMeans;
+    double[] otherSumSquaredDeviations;
+    synchronized (other) {
+      otherNumSamples = other.numSamples;
+      otherTimes = Arrays.copyOf(other.times, otherNumSamples);
+      otherCounts = Arrays.copyOf(other.counts, otherNumSamples);
+      otherMeans = Arrays.copyOf(other.means, otherNumSamples);
+      otherSumSquaredDeviations = Arrays.copyOf(other.sumSquaredDeviations, otherNumSamples);
+    }
+    synchronized (this) {
+      ensureCapacity(otherNumSamples);
+      for (int s = 0; s < otherNumSamples; s++) {
+        if (otherCounts[s] == 0) { continue; }
+        checkTime(s, otherTimes[s]);
+        long count = counts[s] + otherCounts[s];
+        double delta = otherMeans[s] - means[s];
+        means[s] += delta * otherCounts[s] / count;
+        sumSquaredDeviations[s] += otherSumSquaredDeviations[s] + delta * delta * counts[s] * otherCounts[s] / count;
+        counts[s] = count;
+      }
+    }
+  }
+
+  /**
+   * @return a new aggregator into which each of aggregators has been merged, in order (e.g., of
+   *         trial index, so that the result is the same whichever trials finish first)
+   */
+  static TrialAggregator mergeAll(TrialAggregator[] aggregators) {
+    TrialAggregator merged = new TrialAggregator();
+    for (TrialAggregator aggregator : aggregators) {
+      merged.merge(aggregator);
+    }
+    return merged;
+  }
+
+  synchronized int getNumSamples() { return numSamples; }
+
+  synchronized double getTime(int s) { return times[s]; }
+
+  /**
+   * @return number of trials that have added sample s
+   */
+  synchronized long getCount(int s) { return counts[s]; }
+
+  synchronized double getMean(int s) { return means[s]; }
+
+  /**
+   * @return (unbiased) sample standard deviation of sample s across trials, or 0.0 if fewer than
+   *         two trials have added it
+   */
+  synchronized double getStandardDeviation(int s) {
+    return (counts[s] < 2) ? 0.0 : Math.sqrt(sumSquaredDeviations[s] / (counts[s] - 1));
+  }
+
+  /**
+   * @return radius of the two-sided 95% normal confidence interval of the mean of sample s, i.e.,
+   *         1.96 standard errors
+   */
+  synchronized double getCIRadius(int s) {
+    return (counts[s] < 2) ? 0.0 : Z_SCORE_95 * getStandardDeviation(s) / Math.sqrt(counts[s]);
+  }
+
+  /**
+   * @return the mean of each sample, with its 95% confidence interval, as a single series (for
+   *         Plotter.plotMultiple())
+   */
+  synchronized YIntervalSeriesCollection toSeriesCollection(String label) {
+    YIntervalSeries averagedSeries = new YIntervalSeries(label);
+    for (int s = 0; s < numSamples; s++) {
+      if (counts[s] == 0) { continue; }
+      double CIRadius = getCIRadius(s);
+      averagedSeries.add(times[s],
+          means[s],
+          means[s] - CIRadius,  // lower 95% confidence bound
+          means[s] + CIRadius); // upper 95% confidence bound
+    }
+    YIntervalSeriesCollection averagedSeriesAsCollection = new YIntervalSeriesCollection();
+    averagedSeriesAsCollection.addSeries(averagedSeries);
+    return averagedSeriesAsCollection;
+  }
+
+  private void checkTime(int s, double time) {
+    if (counts[s] == 0) {
+      times[s] = time;
+    } else if (times[s] != time) {
+      throw new IllegalArgumentException("Sample " + s + " was taken at time " + times[s] + ", not " + time);
+    }
+  }
+
+  private void ensureCapacity(int minNumSamples) {
+    if (minNumSamples > times.length) {
+      int capacity = Math.max(minNumSamples, 2 * times.length);
+      times = Arrays.copyOf(times, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      means = Arrays.copyOf(means, capacity);
+      sumSquaredDeviations = Arrays.copyOf(sumSquaredDeviations, capacity);
+    }
+    numSamples = Math.max(numSamples, minNumSamples);
+  }
+
+}
@@ -0,0 +1,51 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Converts a file written by TrialFileWriter into a .mat file in the format of Sim's MATLAB output
+ * (with variables fired, numNeurons, duration and, if the file contains weight frames, weights,
+ * weights_dims and weights_times, and, if the trial was forked from a checkpoint, firstStep), for
+ * analysis with analysis.m.
+ *
+ * Usage: java SORN.TrialFileConverter input.trial output.mat
+ */
+public class TrialFileConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: java SORN.TrialFileConverter input.trial output.mat");
+      System.exit(1);
+    }
+    convert(args[0], args[1]);
+  }
+
+  static void convert(String trialFilePath, String MATFilePath) throws IOException {
+    try (TrialFileReader reader = new TrialFileReader(trialFilePath)) {
+      int numNeurons = reader.getNumNeurons();
+      int firstStep = reader.getFirstStep();
+      int duration = firstStep + reader.getNumSteps();
+
+      SpikeRaster raster = new SpikeRaster(numNeurons, duration - firstStep);
+      long[] pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+      for (int t = firstStep; t < duration; t++) {
+        reader.readSpikes(t, pattern, 0);
+        raster.record(pattern, 0);
+      }
+
+      MatPlotter matPlotter = new MatPlotter();
+      if (reader.getNumFrames() > 0) {
+        double[][] frames = new double[reader.getNumFrames()][reader.getFrameSize()];
+        for (int frame = 0; frame < frames.length; frame++) {
+          reader.readFrame(frame, frames[frame]);
+        }
+        matPlotter.addWeights(frames, numNeurons, reader.getFrameTimes());
+      }
+      if (firstStep > 0) {
+        matPlotter.addFirstStep(firstStep);
+      }
+      matPlotter.writeToMAT(MATFilePath, raster, numNeurons, duration);
+    }
+  }
+
+}
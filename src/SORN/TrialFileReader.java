@@ -0,0 +1,259 @@
+package SORN;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file written by TrialFileWriter. The index and the chunks are memory-mapped, so that any
+ * spike pattern or weight frame can be read without reading (or decompressing) the rest of the
+ * file; the most recently decompressed chunk of each type is cached, so reading frames or patterns
+ * in order decompresses each chunk once.
+ */
+class TrialFileReader implements Closeable {
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int numNeurons;
+  private final int frameSize; // Weights per frame
+  private final int numWords; // Longs per packed spike pattern
+  private final int recordEvery;
+  private final int firstStep; // Time step of the first spike pattern
+  private final Inflater inflater;
+  private byte[] compressed; // Compressed payload of the chunk being decompressed
+  private byte[] raw; // Decompressed payload of the chunk being decompressed
+
+  // Chunks of each type, in order of time; entry c of the offsets is the position of chunk c in the
+  // file, and entry c of the starts is the index of its first pattern (or frame)
+  private final long[] spikeChunkOffsets;
+  private final int[] spikeChunkStarts; // With a final entry equal to the number of patterns
+  private final long[] weightChunkOffsets;
+  private final int[] weightChunkStarts; // With a final entry equal to the number of frames
+  private final int[] frameTimes;
+
+  private int cachedSpikeChunk = -1;
+  private long[] cachedSpikes = new long[0]; // Patterns of cachedSpikeChunk
+  private int cachedWeightChunk = -1;
+  private long[] cachedWeights = new long[0]; // Bits of the (decoded) frames of cachedWeightChunk
+
+  /**
+   * @param filepath file written by TrialFileWriter
+   */
+  TrialFileReader(String filepath) throws IOException {
+    file = new RandomAccessFile(filepath, "r");
+    channel = file.getChannel();
+    try {
+      long length = channel.size();
+      if (length < TrialFileWriter.HEADER_BYTES + TrialFileWriter.FOOTER_BYTES) {
+        throw new IOException(filepath + " is too short to be a SORN trial file.");
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TrialFileWriter.HEADER_BYTES);
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, length - TrialFileWriter.FOOTER_BYTES, TrialFileWriter.FOOTER_BYTES);
+      if (header.getInt() != TrialFileWriter.MAGIC || footer.getInt(12) != TrialFileWriter.MAGIC) {
+        throw new IOException(filepath + " is not a (complete) SORN trial file.");
+      }
+      int version = header.getInt();
+      if (version != TrialFileWriter.VERSION) {
+        throw new IOException("Unsupported SORN trial file version " + version + " in " + filepath);
+      }
+      numNeurons = header.getInt();
+      if ((long) numNeurons * numNeurons > Integer.MAX_VALUE - 8) {
+        throw new IOException(filepath + " has " + numNeurons + " neurons, too many for a weight frame to fit in an array");
+      }
+      frameSize = numNeurons * numNeurons;
+      recordEvery = header.getInt();
+      numWords = SpikeHistory.numWordsFor(numNeurons);
+      long indexOffset = footer.getLong();
+      int numChunks = footer.getInt();
+
+      MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) numChunks * TrialFileWriter.INDEX_ENTRY_BYTES);
+      long[] spikeOffsets = new long[numChunks];
+      int[] spikeStarts = new int[numChunks + 1];
+      long[] weightOffsets = new long[numChunks];
+      int[] weightStarts = new int[numChunks + 1];
+      int numSpikeChunks = 0;
+      int numWeightChunks = 0;
+      int firstSpikeTime = 0;
+      for (int chunkIdx = 0; chunkIdx < numChunks; chunkIdx++) {
+        int type = index.getInt();
+        int firstTime = index.getInt(); // Also in the chunk itself
+        int count = index.getInt();
+        long offset = index.getLong();
+        if (type == TrialFileWriter.SPIKES_CHUNK) {
+          if (numSpikeChunks == 0) { firstSpikeTime = firstTime; }
+          spikeOffsets[numSpikeChunks] = offset;
+          spikeStarts[numSpikeChunks + 1] = spikeStarts[numSpikeChunks] + count;
+          numSpikeChunks++;
+        } else {
+          weightOffsets[numWeightChunks] = offset;
+          weightStarts[numWeightChunks + 1] = weightStarts[numWeightChunks] + count;
+          numWeightChunks++;
+        }
+      }
+      firstStep = firstSpikeTime;
+      spikeChunkOffsets = Arrays.copyOf(spikeOffsets, numSpikeChunks);
+      spikeChunkStarts = Arrays.copyOf(spikeStarts, numSpikeChunks + 1);
+      weightChunkOffsets = Arrays.copyOf(weightOffsets, numWeightChunks);
+      weightChunkStarts = Arrays.copyOf(weightStarts, numWeightChunks + 1);
+
+      // The times of the frames are stored (uncompressed) after the header of each weight chunk
+      frameTimes = new int[weightChunkStarts[numWeightChunks]];
+      for (int chunkIdx = 0; chunkIdx < numWeightChunks; chunkIdx++) {
+        int count = weightChunkStarts[chunkIdx + 1] - weightChunkStarts[chunkIdx];
+        ByteBuffer times = channel.map(FileChannel.MapMode.READ_ONLY, weightChunkOffsets[chunkIdx] + TrialFileWriter.CHUNK_HEADER_BYTES, 4L * count);
+        times.asIntBuffer().get(frameTimes, weightChunkStarts[chunkIdx], count);
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+    inflater = new Inflater();
+    compressed = new byte[0];
+    raw = new byte[0];
+  }
+
+  int getNumNeurons() { return numNeurons; }
+
+  /**
+   * @return number of weights in each frame (the square of getNumNeurons())
+   */
+  int getFrameSize() { return frameSize; }
+
+  int getRecordEvery() { return recordEvery; }
+
+  /**
+   * @return time step of the first spike pattern in the file (0, unless the trial was forked from
+   *         a checkpoint)
+   */
+  int getFirstStep() { return firstStep; }
+
+  /**
+   * @return number of spike patterns (i.e., time steps) in the file
+   */
+  int getNumSteps() { return spikeChunkStarts[spikeChunkStarts.length - 1]; }
+
+  /**
+   * @return number of weight frames in the file
+   */
+  int getNumFrames() { return frameTimes.length; }
+
+  /**
+   * @return time steps at which the weight frames were recorded
+   */
+  int[] getFrameTimes() { return frameTimes.clone(); }
+
+  /**
+   * Copies the packed spike pattern (as in SpikeHistory) of time t to destination[offset], ...,
+   * destination[offset + SpikeHistory.numWordsFor(getNumNeurons()) - 1].
+   *
+   * @param t time step, from getFirstStep() to getFirstStep() + getNumSteps() - 1
+   */
+  void readSpikes(int t, long[] destination, int offset) throws IOException {
+    int s = t - firstStep; // Index of the pattern
+    if (s < 0 || s >= getNumSteps()) {
+      throw new IndexOutOfBoundsException("No spike pattern for time step " + t);
+    }
+    int chunkIdx = findChunk(spikeChunkStarts, s);
+    if (chunkIdx != cachedSpikeChunk) {
+      cachedSpikes = readChunk(spikeChunkOffsets[chunkIdx], TrialFileWriter.SPIKES_CHUNK, cachedSpikes);
+      cachedSpikeChunk = chunkIdx;
+    }
+    System.arraycopy(cachedSpikes, (s - spikeChunkStarts[chunkIdx]) * numWords, destination, offset, numWords);
+  }
+
+  /**
+   * Copies the weight frame with index frame (recorded at time getFrameTimes()[frame]) into
+   * destination, in row-major order.
+   */
+  void readFrame(int frame, double[] destination) throws IOException {
+    if (frame < 0 || frame >= getNumFrames()) {
+      throw new IndexOutOfBoundsException("No weight frame " + frame);
+    }
+    int chunkIdx = findChunk(weightChunkStarts, frame);
+    if (chunkIdx != cachedWeightChunk) {
+      cachedWeights = readChunk(weightChunkOffsets[chunkIdx], TrialFileWriter.WEIGHTS_CHUNK, cachedWeights);
+      cachedWeightChunk = chunkIdx;
+      // Undoes the XOR with the previous frame, one frame at a time
+      int count = weightChunkStarts[chunkIdx + 1] - weightChunkStarts[chunkIdx];
+      for (int wordIdx = frameSize; wordIdx < count * frameSize; wordIdx++) {
+        cachedWeights[wordIdx] ^= cachedWeights[wordIdx - frameSize];
+      }
+    }
+    int frameStart = (frame - weightChunkStarts[chunkIdx]) * frameSize;
+    for (int k = 0; k < frameSize; k++) {
+      destination[k] = Double.longBitsToDouble(cachedWeights[frameStart + k]);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+
+  /**
+   * @param starts starts[c] is the index of the first item of chunk c
+   * @return index of the chunk containing item
+   */
+  private static int findChunk(int[] starts, int item) {
+    int chunkIdx = Arrays.binarySearch(starts, item);
+    if (chunkIdx < 0) {
+      return -chunkIdx - 2;
+    }
+    while (chunkIdx + 1 < starts.length && starts[chunkIdx + 1] == item) {
+      chunkIdx++; // Skips empty chunks
+    }
+    return chunkIdx;
+  }
+
+  /**
+   * Maps the chunk at the given offset and decompresses its payload.
+   *
+   * @param reuse array into which to decompress, if it is large enough
+   * @return the payload, as longs
+   */
+  private long[] readChunk(long offset, int expectedType, long[] reuse) throws IOException {
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, offset, TrialFileWriter.CHUNK_HEADER_BYTES);
+    int type = header.getInt();
+    header.getInt(); // First time step
+    int count = header.getInt();
+    int rawBytes = header.getInt();
+    int compressedBytes = header.getInt();
+    if (type != expectedType) {
+      throw new IOException("Corrupt SORN trial file: chunk at " + offset + " has type " + type);
+    }
+    long payloadOffset = offset + TrialFileWriter.CHUNK_HEADER_BYTES + ((type == TrialFileWriter.WEIGHTS_CHUNK) ? 4L * count : 0L);
+    if (compressed.length < compressedBytes) {
+      compressed = new byte[compressedBytes];
+    }
+    if (raw.length < rawBytes) {
+      raw = new byte[rawBytes];
+    }
+    channel.map(FileChannel.MapMode.READ_ONLY, payloadOffset, compressedBytes).get(compressed, 0, compressedBytes);
+    inflater.reset();
+    inflater.setInput(compressed, 0, compressedBytes);
+    try {
+      int inflatedBytes = 0;
+      while (inflatedBytes < rawBytes && !inflater.finished()) {
+        int numInflated = inflater.inflate(raw, inflatedBytes, rawBytes - inflatedBytes);
+        if (numInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) { break; }
+        inflatedBytes += numInflated;
+      }
+      if (inflatedBytes != rawBytes) {
+        throw new IOException("Corrupt SORN trial file: chunk at " + offset + " is truncated");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt SORN trial file: chunk at " + offset, e);
+    }
+    long[] payload = (reuse.length >= rawBytes / 8) ? reuse : new long[rawBytes / 8];
+    ByteBuffer.wrap(raw, 0, rawBytes).asLongBuffer().get(payload, 0, rawBytes / 8);
+    return payload;
+  }
+
+}
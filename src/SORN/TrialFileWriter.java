@@ -0,0 +1,364 @@
+package SORN;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the spike raster and weight snapshots of a trial to a single chunked, compressed file,
+ * while the trial runs, so that no output accumulates in memory. The file can be read (randomly)
+ * by TrialFileReader, and converted to a .mat file for analysis.m by TrialFileConverter.
+ *
+ * Spike patterns and weight frames are buffered into chunks, each of which is compressed (by
+ * Deflater) and written as soon as it is full. Within a chunk, each weight frame is stored as the
+ * bitwise XOR of its weights with those of the previous frame, so that weights that did not change
+ * become zeros, which compress very well; the first frame of each chunk is stored as is (XOR-ed
+ * with zero), so that chunks can be decoded independently.
+ *
+ * File layout (big-endian):
+ *   header: int magic, int version, int numNeurons, int recordEvery
+ *   chunks: int type, int firstTime, int count, int rawBytes, int compressedBytes,
+ *           int[count] times (weight chunks only), byte[compressedBytes] deflated payload, where the
+ *           payload consists of count packed spike patterns (SpikeHistory.numWordsFor(numNeurons)
+ *           longs each), or count XOR-ed weight frames (numNeurons^2 longs each, row-major)
+ *   index:  for each chunk, int type, int firstTime, int count, long offset (of the chunk)
+ *   footer: long offset (of the index), int numChunks, int magic
+ *
+ * The index and footer are written by close(); a file that was not closed (because the simulation
+ * crashed) can be reopened by resume(), which rebuilds the index of the chunks written up to a
+ * checkpoint, and appends to them.
+ */
+class TrialFileWriter implements WeightRecorder, SpikeRecorder {
+
+  static final int MAGIC = 0x534F5254; // "SORT"
+  static final int VERSION = 1;
+  static final int SPIKES_CHUNK = 0;
+  static final int WEIGHTS_CHUNK = 1;
+  static final int HEADER_BYTES = 4 * 4;
+  static final int CHUNK_HEADER_BYTES = 5 * 4;
+  static final int INDEX_ENTRY_BYTES = 3 * 4 + 8;
+  static final int FOOTER_BYTES = 8 + 2 * 4;
+
+  private final int numNeurons;
+  private final int numWords; // Longs per packed spike pattern
+  private final int recordEvery; // Record every recordEvery-th time step
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Deflater deflater;
+  private byte[] compressed; // Output of the deflater
+  private long position; // Position in the file of the next chunk
+  private int numChunks;
+  private final ByteArrayOutputStream indexBytes;
+  private final DataOutputStream index;
+
+  private final ByteBuffer spikeChunk; // Spike patterns waiting to be written
+  private int spikeChunkFirstTime;
+  private int numSpikeChunkRows;
+
+  private final ByteBuffer weightChunk; // Weight frames waiting to be written
+  private final int[] weightChunkTimes;
+  private int numWeightChunkFrames;
+  private final long[] previousFrame; // Bits of the previous frame of the current chunk (or zeros)
+  private final double[] row; // The row of weights being written
+
+  /**
+   * @param filepath file to (over)write
+   * @param numNeurons number of neurons in the network
+   * @param recordEvery record weights every recordEvery-th time step
+   * @param chunkBytes uncompressed size of each chunk; chunks always hold at least one weight frame
+   * @param firstTime time step of the first spike pattern (e.g., of a trial forked from a checkpoint)
+   */
+  TrialFileWriter(String filepath, int numNeurons, int recordEvery, int chunkBytes, int firstTime) throws IOException {
+    this(filepath, numNeurons, recordEvery, chunkBytes, firstTime, false);
+  }
+
+  /**
+   * @return number of weights in a frame of numNeurons neurons
+   * @throws IllegalArgumentException if that many weights do not fit in an array
+   */
+  static int frameSize(int numNeurons) {
+    long frameSize = (long) numNeurons * numNeurons;
+    if (frameSize > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many neurons for whole weight frames: " + numNeurons
+          + " (a frame has " + frameSize + " weights, more than fit in an array)");
+    }
+    return (int) frameSize;
+  }
+
+  /**
+   * @param resume if true, the chunks already in filepath up to time step firstTime - 1 are kept,
+   *               and appended to (see resume()), rather than overwritten
+   */
+  private TrialFileWriter(String filepath, int numNeurons, int recordEvery, int chunkBytes, int firstTime,
+                          boolean resume) throws IOException {
+    if (recordEvery < 1) {
+      throw new IllegalArgumentException("Recording cadence must be positive: " + recordEvery);
+    }
+    int frameSize = frameSize(numNeurons);
+    long frameBytes = 8L * frameSize;
+    if (frameBytes > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Too many neurons for whole weight frames: " + numNeurons
+          + " (a frame takes " + frameBytes + " bytes, more than fit in a chunk)");
+    }
+    this.numNeurons = numNeurons;
+    this.recordEvery = recordEvery;
+    spikeChunkFirstTime = firstTime;
+    numWords = SpikeHistory.numWordsFor(numNeurons);
+    int framesPerChunk = (int) Math.max(1, chunkBytes / frameBytes);
+    int rowsPerChunk = Math.max(1, chunkBytes / (8 * numWords));
+    spikeChunk = ByteBuffer.allocate(rowsPerChunk * 8 * numWords);
+    weightChunk = ByteBuffer.allocate((int) (framesPerChunk * frameBytes));
+    weightChunkTimes = new int[framesPerChunk];
+    previousFrame = new long[frameSize];
+    row = new double[numNeurons];
+    deflater = new Deflater(Deflater.BEST_SPEED);
+    compressed = new byte[1 << 16];
+    indexBytes = new ByteArrayOutputStream();
+    index = new DataOutputStream(indexBytes);
+
+    file = new RandomAccessFile(filepath, "rw");
+    channel = file.getChannel();
+    try {
+      if (resume) {
+        keepChunksUpTo(filepath, firstTime - 1);
+      } else {
+        file.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numNeurons).putInt(recordEvery);
+        header.flip();
+        writeFully(header);
+      }
+    } catch (IOException | RuntimeException e) {
+      deflater.end();
+      file.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reopens a file written by a trial that was interrupted after its checkpoint at time step
+   * checkpointTime (and whose chunks up to then were flushed before the checkpoint was taken): the
+   * chunks written after checkpointTime (and any partly written chunk, index or footer) are
+   * discarded, and the spike patterns and weight frames recorded from checkpointTime + 1 on are
+   * appended to the rest, so that the file ends up holding the same patterns and frames as if the
+   * trial had never been interrupted.
+   *
+   * @throws IOException if filepath is not a file of numNeurons neurons, recorded every recordEvery
+   *                     time steps, whose chunks end at checkpointTime
+   */
+  static TrialFileWriter resume(String filepath, int numNeurons, int recordEvery, int chunkBytes, int checkpointTime)
+      throws IOException {
+    return new TrialFileWriter(filepath, numNeurons, recordEvery, chunkBytes, checkpointTime + 1, true);
+  }
+
+  /**
+   * Checks the header of the file, rebuilds the index of its whole chunks that end at or before
+   * time step lastTime, and truncates it after them.
+   */
+  private void keepChunksUpTo(String filepath, int lastTime) throws IOException {
+    long length = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    if (!readFully(header, 0)) {
+      throw new IOException(filepath + " is too short to be a SORN trial file.");
+    }
+    if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != numNeurons
+        || header.getInt() != recordEvery) {
+      throw new IOException(filepath + " is not a SORN trial file of " + numNeurons + " neurons, recorded every "
+          + recordEvery + " time steps.");
+    }
+    long end = length; // The chunks end at the index, if the file was closed
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+    if (length >= HEADER_BYTES + FOOTER_BYTES && readFully(footer, length - FOOTER_BYTES)) {
+      long indexOffset = footer.getLong();
+      footer.getInt();
+      if (footer.getInt() == MAGIC && indexOffset >= HEADER_BYTES && indexOffset <= length - FOOTER_BYTES) {
+        end = indexOffset;
+      }
+    }
+
+    position = HEADER_BYTES;
+    int nextSpikeTime = -1; // Time step after the last kept spike pattern
+    ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+    while (position + CHUNK_HEADER_BYTES <= end) {
+      chunkHeader.clear();
+      readFully(chunkHeader, position);
+      int type = chunkHeader.getInt();
+      int firstTime = chunkHeader.getInt();
+      int count = chunkHeader.getInt();
+      chunkHeader.getInt(); // rawBytes
+      int compressedBytes = chunkHeader.getInt();
+      int numTimes = (type == WEIGHTS_CHUNK) ? count : 0;
+      long chunkEnd = position + CHUNK_HEADER_BYTES + 4L * numTimes + compressedBytes;
+      if ((type != SPIKES_CHUNK && type != WEIGHTS_CHUNK) || count < 1 || compressedBytes < 0 || chunkEnd > end) {
+        break; // A partly written chunk, or the start of a partly written index
+      }
+      int lastChunkTime = firstTime + count - 1;
+      if (type == WEIGHTS_CHUNK) {
+        ByteBuffer times = ByteBuffer.allocate(4 * count);
+        readFully(times, position + CHUNK_HEADER_BYTES);
+        lastChunkTime = times.getInt(4 * (count - 1));
+      }
+      if (firstTime > lastTime) {
+        break; // Chunks are written in order of their last time step
+      }
+      if (lastChunkTime > lastTime) {
+        throw new IOException(filepath + " has a chunk from time step " + firstTime + " to " + lastChunkTime
+            + ", which was not flushed at time step " + lastTime + ".");
+      }
+      if (type == SPIKES_CHUNK) {
+        if (nextSpikeTime >= 0 && firstTime != nextSpikeTime) {
+          throw new IOException(filepath + " is missing the spike patterns from time step " + nextSpikeTime + ".");
+        }
+        nextSpikeTime = firstTime + count;
+      }
+      index.writeInt(type);
+      index.writeInt(firstTime);
+      index.writeInt(count);
+      index.writeLong(position);
+      numChunks++;
+      position = chunkEnd;
+    }
+    if (nextSpikeTime != lastTime + 1) {
+      throw new IOException(filepath + " does not hold the spike patterns up to time step " + lastTime + ".");
+    }
+    file.setLength(position);
+  }
+
+  /**
+   * Reads buffer.remaining() bytes from the given position of the file into buffer, which is then
+   * flipped.
+   *
+   * @return true, unless the file ended first
+   */
+  private boolean readFully(ByteBuffer buffer, long from) throws IOException {
+    while (buffer.hasRemaining()) {
+      int numRead = channel.read(buffer, from);
+      if (numRead < 0) { return false; }
+      from += numRead;
+    }
+    buffer.flip();
+    return true;
+  }
+
+  @Override
+  public void recordSpikes(int t, long[] pattern) throws IOException {
+    if (t != spikeChunkFirstTime + numSpikeChunkRows) {
+      throw new IllegalStateException("Expected time step " + (spikeChunkFirstTime + numSpikeChunkRows) + ", not " + t);
+    }
+    for (int wordIdx = 0; wordIdx < numWords; wordIdx++) {
+      spikeChunk.putLong(pattern[wordIdx]);
+    }
+    numSpikeChunkRows++;
+    if (!spikeChunk.hasRemaining()) {
+      flushSpikes();
+    }
+  }
+
+  @Override
+  public boolean shouldRecord(int t) {
+    return t % recordEvery == 0;
+  }
+
+  @Override
+  public void record(int t, WeightMatrix weights) throws IOException {
+    for (int i = 0; i < numNeurons; i++) {
+      weights.copyRow(i, row, 0);
+      int rowStart = i * numNeurons;
+      for (int j = 0; j < numNeurons; j++) {
+        long bits = Double.doubleToRawLongBits(row[j]);
+        weightChunk.putLong(bits ^ previousFrame[rowStart + j]);
+        previousFrame[rowStart + j] = bits;
+      }
+    }
+    weightChunkTimes[numWeightChunkFrames] = t;
+    numWeightChunkFrames++;
+    if (!weightChunk.hasRemaining()) {
+      flushWeights();
+    }
+  }
+
+  /**
+   * Writes the buffered spike patterns and weight frames as (possibly partly full) chunks; the index
+   * is only written by close().
+   */
+  @Override
+  public void flush() throws IOException {
+    flushSpikes();
+    flushWeights();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+      index.flush();
+      ByteBuffer indexAndFooter = ByteBuffer.allocate(indexBytes.size() + FOOTER_BYTES);
+      indexAndFooter.put(indexBytes.toByteArray());
+      indexAndFooter.putLong(position).putInt(numChunks).putInt(MAGIC);
+      indexAndFooter.flip();
+      writeFully(indexAndFooter);
+    } finally {
+      deflater.end();
+      file.close();
+    }
+  }
+
+  private void flushSpikes() throws IOException {
+    if (numSpikeChunkRows == 0) { return; }
+    writeChunk(SPIKES_CHUNK, spikeChunkFirstTime, numSpikeChunkRows, null, spikeChunk);
+    spikeChunkFirstTime += numSpikeChunkRows;
+    numSpikeChunkRows = 0;
+  }
+
+  private void flushWeights() throws IOException {
+    if (numWeightChunkFrames == 0) { return; }
+    writeChunk(WEIGHTS_CHUNK, weightChunkTimes[0], numWeightChunkFrames, weightChunkTimes, weightChunk);
+    numWeightChunkFrames = 0;
+    Arrays.fill(previousFrame, 0L); // The next chunk starts with a whole frame
+  }
+
+  /**
+   * Compresses the contents of raw into a chunk at the end of the file, and clears raw.
+   */
+  private void writeChunk(int type, int firstTime, int count, int[] times, ByteBuffer raw) throws IOException {
+    int rawBytes = raw.position();
+    deflater.reset();
+    deflater.setInput(raw.array(), 0, rawBytes);
+    deflater.finish();
+    int compressedBytes = 0;
+    while (!deflater.finished()) {
+      if (compressedBytes == compressed.length) {
+        compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+      }
+      compressedBytes += deflater.deflate(compressed, compressedBytes, compressed.length - compressedBytes);
+    }
+    raw.clear();
+
+    int numTimes = (times == null) ? 0 : count;
+    ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES + 4 * numTimes);
+    header.putInt(type).putInt(firstTime).putInt(count).putInt(rawBytes).putInt(compressedBytes);
+    for (int timeIdx = 0; timeIdx < numTimes; timeIdx++) {
+      header.putInt(times[timeIdx]);
+    }
+    header.flip();
+    index.writeInt(type);
+    index.writeInt(firstTime);
+    index.writeInt(count);
+    index.writeLong(position);
+    numChunks++;
+    writeFully(header);
+    writeFully(ByteBuffer.wrap(compressed, 0, compressedBytes));
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+package SORN;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent trials concurrently on a bounded, work-stealing pool of threads (see
+ * Executors.newWorkStealingPool()), which is shared by all trials passed to runAll() (e.g., all
+ * points of a Sweep), so that threads that finish short trials take up the remaining ones. The
+ * number of threads is limited both by the number of available cores and by how many trials fit in
+ * the heap at once.
+ */
+class TrialScheduler {
+
+  private final int numThreads;
+
+  TrialScheduler(int numThreads) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+    }
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * @param maxThreads maximum number of threads to use (e.g., the number of available cores)
+   * @param numTrials number of trials to run
+   * @param bytesPerTrial (estimated) peak heap usage of a single trial
+   * @param heapFraction fraction of the maximum heap size that trials may use together
+   * @return largest number of threads, at most maxThreads and numTrials, whose trials fit in the
+   *         heap budget (but always at least 1)
+   */
+  static int numThreadsFor(int maxThreads, int numTrials, long bytesPerTrial, double heapFraction) {
+    long heapBudget = (long) (heapFraction * Runtime.getRuntime().maxMemory());
+    long trialsInBudget = heapBudget / Math.max(1L, bytesPerTrial);
+    return (int) Math.max(1L, Math.min(Math.min(maxThreads, numTrials), trialsInBudget));
+  }
+
+  int getNumThreads() { return numThreads; }
+
+  /**
+   * Runs all trials and waits for them to finish.
+   *
+   * @param trials trials to run
+   * @return results of the trials, in the same order as trials (regardless of the order in which
+   *         they finished)
+   * @throws IOException if any trial threw an IOException
+   */
+  <T> ArrayList<T> runAll(List<? extends Callable<T>> trials) throws IOException {
+    ExecutorService executor = Executors.newWorkStealingPool(numThreads);
+    try {
+      ArrayList<Future<T>> futures = new ArrayList<>();
+      for (Callable<T> trial : trials) {
+        futures.add(executor.submit(trial));
+      }
+      ArrayList<T> results = new ArrayList<>();
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for trials to finish.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) { throw (IOException) cause; }
+      if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+      if (cause instanceof Error) { throw (Error) cause; }
+      throw new IllegalStateException("Trial failed.", cause);
+    } finally {
+      executor.shutdownNow(); // Cancels the remaining trials if any trial failed
+    }
+  }
+
+}
@@ -1,8 +1,6 @@
 package SORN;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 
 /**
  * This class contains some basic mathematical utility functions used elsewhere.
@@ -17,11 +15,7 @@ class Util {
    * @return sum of numbers in array
    */
   private static double sum(double[] list) {
-    double sum = 0.0;
-    for (double weight : list) {
-      sum += weight;
-    }
-    return sum;
+    return Kernels.SELECTED.sum(list, 0, list.length);
   }
 
   /**
@@ -108,6 +102,40 @@ class Util {
     return ((double) numTrue) / array.length;
   }
 
+  /**
+   * Derives a seed for an independent random stream (e.g., of a single trial or neuron) from a
+   * parent seed, by applying the SplitMix64 finalizer. Distinct streams of the same parent get
+   * well-separated seeds, even for consecutive stream indices.
+   *
+   * @param seed parent seed
+   * @param stream index of the derived stream
+   * @return seed of the derived stream
+   */
+  static long deriveSeed(long seed, long stream) {
+    long z = seed + (stream + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Writes the indices of the true elements of array, in increasing order, to the front of indices.
+   *
+   * @param array array to search
+   * @param indices array of length at least array.length, to which the indices are written
+   * @return number of true elements in array
+   */
+  static int indicesOfTrue(boolean[] array, int[] indices) {
+    int numTrue = 0;
+    for (int i = 0; i < array.length; i++) {
+      if (array[i]) {
+        indices[numTrue] = i;
+        numTrue++;
+      }
+    }
+    return numTrue;
+  }
+
   /**
    * Linearly normalize the input array onto the L1 ball of radius targetL1Norm >= 0.0
    */
@@ -120,38 +148,113 @@ class Util {
   }
 
   /**
-   * (Nonlinearly) projects the input weight vector onto the L1 ball of radius TARGET_L1_NORM,
+   * (Nonlinearly) projects the input weight vector onto the L1 ball of radius targetL1Norm,
    * via soft-thresholding. This is a Java adaptation of John Duchi's Matlab code
    * (see http://stanford.edu/~jduchi/projects/DuchiShSiCh08.html).
    *
    * THIS IMPLEMENTATION ASSUMES THE INPUT ARRAY CONTAINS ONLY NON-NEGATIVE ELEMENTS!
    */
   static void projectWeightsInL1(double[] array, double targetL1Norm) {
+    projectWeightsInL1(array, targetL1Norm, new double[array.length]);
+  }
+
+  /**
+   * (Nonlinearly) projects the input weight vector onto the L1 ball of radius targetL1Norm, via
+   * soft-thresholding. Rather than sorting, the soft threshold is found by the randomized pivoting
+   * algorithm in Figure 2 of Duchi et al. (2008), which takes expected linear time. Only the
+   * positive elements are copied into (and partitioned within) scratch, so that this allocates
+   * nothing.
+   *
+   * THIS IMPLEMENTATION ASSUMES THE INPUT ARRAY CONTAINS ONLY NON-NEGATIVE ELEMENTS!
+   *
+   * @param array weight vector to project (in place)
+   * @param targetL1Norm radius of L1 ball
+   * @param scratch working space, of length at least array.length
+   * @return L1 norm of array after projection
+   */
+  static double projectWeightsInL1(double[] array, double targetL1Norm, double[] scratch) {
+    return projectWeightsInL1(array, 0, array.length, targetL1Norm, scratch);
+  }
+
+  /**
+   * Projects array[offset], ..., array[offset + length - 1] (e.g., one row of a row-major matrix)
+   * onto the L1 ball of radius targetL1Norm; see projectWeightsInL1(double[], double, double[]).
+   *
+   * @param scratch working space, of length at least length
+   * @return L1 norm of the projected elements
+   */
+  static double projectWeightsInL1(double[] array, int offset, int length, double targetL1Norm, double[] scratch) {
     if (targetL1Norm < 0.0) {
       throw new IllegalArgumentException("Radius of L1 ball is negative: " + targetL1Norm);
     }
-    if (sum(array) <= targetL1Norm) { return; } // L1 constraint already satisfied
-
-    // Make a (descending) sorted copy of the input array
-    ArrayList<Double> copy = new ArrayList<>();
-    for (double x : array) { copy.add(x); }
-    Collections.sort(copy);
-    Collections.reverse(copy);
-
-    // Find the number of components that will be non-zero (i.e., the 'sparsity') after projection
-    int rho = 0; // sparsity after projection
-    double cumSum = 0.0;
-    while (copy.get(rho) > (cumSum + copy.get(rho) - targetL1Norm) / (rho + 1)) {
-      // Note that this loop always enters at least once
-      cumSum += copy.get(rho);
-      rho++;
-      if (rho >= array.length) break;
+
+    // Zero elements remain zero, so only the positive elements need to be considered
+    int numPositive = 0;
+    double sum = 0.0;
+    for (int j = offset; j < offset + length; j++) {
+      double x = array[j];
+      if (x > 0.0) {
+        scratch[numPositive] = x;
+        numPositive++;
+        sum += x;
+      }
     }
+    if (sum <= targetL1Norm) { return sum; } // L1 constraint already satisfied
 
-    double theta = Math.max(0.0, (cumSum - targetL1Norm) / rho); // Soft threshold cut-off
-    for (int i = 0; i < array.length; i++) {
-      array[i] = Math.max(0.0, array[i] - theta);
+    // Find the elements that will be non-zero (i.e., the 'support') after projection. Elements in
+    // scratch[0, lo) are known to be in the support, and those in scratch[hi, numPositive) are
+    // known not to be; each iteration partitions scratch[lo, hi) around a pseudo-random pivot.
+    int lo = 0;
+    int hi = numPositive;
+    double supportSum = 0.0;
+    int supportSize = 0;
+    long pivotState = 0x9E3779B97F4A7C15L; // xorshift state; fixed so that results are reproducible
+    while (lo < hi) {
+      pivotState ^= pivotState << 13;
+      pivotState ^= pivotState >>> 7;
+      pivotState ^= pivotState << 17;
+      double pivot = scratch[lo + (int) ((pivotState >>> 1) % (hi - lo))];
+
+      // Three-way partition into scratch[lo, greater) > pivot, scratch[greater, less) == pivot,
+      // and scratch[less, hi) < pivot
+      int greater = lo;
+      int less = hi;
+      double sumAtLeastPivot = 0.0;
+      int i = lo;
+      while (i < less) {
+        double x = scratch[i];
+        if (x > pivot) {
+          scratch[i] = scratch[greater];
+          scratch[greater] = x;
+          greater++;
+          i++;
+          sumAtLeastPivot += x;
+        } else if (x < pivot) {
+          less--;
+          scratch[i] = scratch[less];
+          scratch[less] = x;
+        } else {
+          i++;
+          sumAtLeastPivot += x;
+        }
+      }
+
+      double candidateSum = supportSum + sumAtLeastPivot;
+      int candidateSize = supportSize + (less - lo);
+      if (candidateSum - candidateSize * pivot < targetL1Norm) {
+        // The pivot, and hence every element at least as large as it, is in the support
+        supportSum = candidateSum;
+        supportSize = candidateSize;
+        lo = less;
+      } else {
+        // The pivot is not in the support, so only larger elements might be
+        hi = greater;
+      }
     }
+
+    // Soft threshold cut-off (infinite if targetL1Norm == 0.0, in which case the support is empty)
+    double theta = (supportSize == 0) ? Double.POSITIVE_INFINITY : Math.max(0.0, (supportSum - targetL1Norm) / supportSize);
+    return Kernels.SELECTED.softThreshold(array, offset, length, theta);
   }
 
 }
@@ -0,0 +1,26 @@
+package SORN;
+
+/**
+ * Read access to the (row-major) weight matrix of a network, either of a live Network, or of a
+ * snapshot of one that is waiting to be recorded.
+ */
+interface WeightMatrix {
+
+  int getNumNeurons();
+
+  /**
+   * Copies the input weights of neuron i to destination[offset], ..., destination[offset + getNumNeurons() - 1].
+   */
+  void copyRow(int i, double[] destination, int offset);
+
+  /**
+   * Copies the non-zero input weights of neuron i, in increasing order of presynaptic neuron, so
+   * that weights[offset + k] is the weight of the input from neuron indices[offset + k].
+   *
+   * @param indices array with room for (at least) getNumNeurons() entries after offset
+   * @param weights array with room for (at least) getNumNeurons() entries after offset
+   * @return number of non-zero input weights copied
+   */
+  int copyInputs(int i, int[] indices, double[] weights, int offset);
+
+}
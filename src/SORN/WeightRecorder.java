@@ -0,0 +1,37 @@
+package SORN;
+
+import java.io.IOException;
+
+/**
+ * Receives snapshots of the network's weights from the simulation loop. Implementations decide
+ * where the snapshots go (memory, disk, ...); the simulation only pushes frames into them.
+ */
+interface WeightRecorder {
+
+  /**
+   * @param t time step of a candidate snapshot
+   * @return true if and only if the weights at time t should be passed to record()
+   */
+  boolean shouldRecord(int t);
+
+  /**
+   * Records a copy of the current weights of the network. The recorder must not keep references
+   * to the weights, since they keep changing after this call returns.
+   *
+   * @param t time step of the snapshot
+   * @param weights weights to record (e.g., a Network)
+   */
+  void record(int t, WeightMatrix weights) throws IOException;
+
+  /**
+   * Writes the snapshots recorded so far to the recorder's file (if it has one), so that they
+   * survive a crash of the simulation (e.g., before a trial is checkpointed; see Sim.runTrial()).
+   */
+  void flush() throws IOException;
+
+  /**
+   * Flushes any buffered snapshots and releases resources held by the recorder.
+   */
+  void close() throws IOException;
+
+}
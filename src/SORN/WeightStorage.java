@@ -0,0 +1,80 @@
+package SORN;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * How the weights of a trial's Network are stored: densely, in a double[] on the heap (see
+ * DenseNetwork), sparsely, on the heap (see SparseNetwork), or densely, off the heap (see
+ * OffHeapNetwork), in double or single precision, and in direct memory or in a memory-mapped file.
+ */
+final class WeightStorage {
+
+  static final WeightStorage DENSE = new WeightStorage(false, false, false, null);
+  static final WeightStorage SPARSE = new WeightStorage(true, false, false, null);
+
+  private final boolean sparse;
+  private final boolean offHeap;
+  private final boolean floatPrecision;
+  private final String mappedFilePath; // Or null
+
+  private WeightStorage(boolean sparse, boolean offHeap, boolean floatPrecision, String mappedFilePath) {
+    this.sparse = sparse;
+    this.offHeap = offHeap;
+    this.floatPrecision = floatPrecision;
+    this.mappedFilePath = mappedFilePath;
+  }
+
+  /**
+   * @param floatPrecision store the weights in single precision, rather than double precision
+   * @param mappedFilePath file (which is overwritten, and deleted once the trial is closed) to
+   *                       which to map the weights, or null to store them in direct memory
+   */
+  static WeightStorage offHeap(boolean floatPrecision, String mappedFilePath) {
+    return new WeightStorage(false, true, floatPrecision, mappedFilePath);
+  }
+
+  /**
+   * @param name "dense", "sparse", "offheap" or "offheap-float" (the latter two in direct memory)
+   */
+  static WeightStorage named(String name) {
+    if (name.equals("dense")) { return DENSE; }
+    if (name.equals("sparse")) { return SPARSE; }
+    if (name.equals("offheap")) { return offHeap(false, null); }
+    if (name.equals("offheap-float")) { return offHeap(true, null); }
+    throw new IllegalArgumentException("Synapses must be dense, sparse, offheap or offheap-float, not " + name);
+  }
+
+  boolean isSparse() { return sparse; }
+
+  boolean isOffHeap() { return offHeap; }
+
+  boolean isFloatPrecision() { return floatPrecision; }
+
+  /**
+   * @return a new network of this storage, with its initial state drawn from random
+   * @throws UncheckedIOException if a mapped file cannot be created
+   */
+  Network newNetwork(Parameters params, RandomStream random) {
+    if (sparse) {
+      return new SparseNetwork(params, random);
+    }
+    if (!offHeap) {
+      return new DenseNetwork(params, random);
+    }
+    try {
+      return new OffHeapNetwork(params, random, floatPrecision, (mappedFilePath == null) ? null : new File(mappedFilePath));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not map weights to " + mappedFilePath, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    if (sparse) { return "sparse"; }
+    if (!offHeap) { return "dense"; }
+    return "off-heap " + (floatPrecision ? "float" : "double") + (mappedFilePath == null ? "" : " (mapped to " + mappedFilePath + ")");
+  }
+
+}
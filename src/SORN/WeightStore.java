@@ -0,0 +1,224 @@
+package SORN;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A matrix of weights stored outside of the Java heap, in direct ByteBuffers or in memory-mapped
+ * regions of a file, in double or single precision. Weights stored off the heap are not traced or
+ * copied by the garbage collector, so they neither count against the heap nor lengthen its pauses,
+ * and, when mapped, they may even exceed physical memory.
+ *
+ * A ByteBuffer holds at most 2GB, so the rows are split into segments of up to SEGMENT_BYTES each;
+ * each row lies within a single segment. The segments are little-endian, like checkpoints, so that
+ * they can be copied to and from checkpoints (or shared, read-only, with other threads; see
+ * getSegment()) without conversion.
+ *
+ * Direct buffers are limited by -XX:MaxDirectMemorySize (by default, the maximum heap size), so
+ * larger stores should be mapped. The memory of each store is released by close() where the JVM
+ * allows it (Java 9 or later), and otherwise when its buffers are garbage collected.
+ */
+final class WeightStore implements Closeable {
+
+  static final int SEGMENT_BYTES = 1 << 30; // Maximum size of each segment
+
+  private final int numRows;
+  private final int rowLength;
+  private final boolean floatPrecision;
+  private final int elementBytes;
+  private final int rowsPerSegment;
+  private final ByteBuffer[] segments;
+  private final File file; // File to which the segments are mapped, or null
+
+  /**
+   * Allocates a store of zeros.
+   *
+   * @param floatPrecision store the weights in single precision, rather than double precision
+   * @param file file (which is overwritten, and deleted by close()) to which to map the store, or
+   *             null to allocate it in direct memory
+   */
+  WeightStore(int numRows, int rowLength, boolean floatPrecision, File file) throws IOException {
+    this.numRows = numRows;
+    this.rowLength = rowLength;
+    this.floatPrecision = floatPrecision;
+    this.file = file;
+    elementBytes = floatPrecision ? 4 : 8;
+    long rowBytes = (long) rowLength * elementBytes;
+    if (rowBytes > SEGMENT_BYTES) {
+      throw new IllegalArgumentException("Rows of " + rowLength + " weights are too long to store");
+    }
+    rowsPerSegment = (int) Math.max(1, SEGMENT_BYTES / Math.max(1, rowBytes));
+    segments = new ByteBuffer[(numRows + rowsPerSegment - 1) / rowsPerSegment];
+    if (file == null) {
+      for (int segmentIdx = 0; segmentIdx < segments.length; segmentIdx++) {
+        segments[segmentIdx] = ByteBuffer.allocateDirect((int) (getSegmentRows(segmentIdx) * rowBytes));
+        segments[segmentIdx].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    } else {
+      // The mappings remain valid after the file is closed
+      try (RandomAccessFile mappedFile = new RandomAccessFile(file, "rw")) {
+        mappedFile.setLength(0);
+        mappedFile.setLength(numRows * rowBytes);
+        FileChannel channel = mappedFile.getChannel();
+        for (int segmentIdx = 0; segmentIdx < segments.length; segmentIdx++) {
+          segments[segmentIdx] = channel.map(FileChannel.MapMode.READ_WRITE, segmentIdx * rowsPerSegment * rowBytes,
+              getSegmentRows(segmentIdx) * rowBytes);
+          segments[segmentIdx].order(ByteOrder.LITTLE_ENDIAN);
+        }
+      }
+    }
+  }
+
+  boolean isFloatPrecision() { return floatPrecision; }
+
+  /**
+   * @return number of bytes in which the weights are stored
+   */
+  long getBytes() { return (long) numRows * rowLength * elementBytes; }
+
+  int getNumSegments() { return segments.length; }
+
+  int getRowsPerSegment() { return rowsPerSegment; }
+
+  /**
+   * @return a read-only view of segment segmentIdx (rows segmentIdx * getRowsPerSegment() onwards,
+   *         each of rowLength little-endian doubles or floats), which reflects later changes
+   */
+  ByteBuffer getSegment(int segmentIdx) {
+    return segments[segmentIdx].asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * @return the segment that holds row i (to be passed to get() and set())
+   */
+  ByteBuffer segmentOf(int i) { return segments[i / rowsPerSegment]; }
+
+  /**
+   * @return position, in segmentOf(i), of the first weight of row i
+   */
+  int rowStartOf(int i) { return (i % rowsPerSegment) * rowLength * elementBytes; }
+
+  /**
+   * @param segment segmentOf(i), for some row i
+   * @param rowStart rowStartOf(i)
+   * @return weight j of row i
+   */
+  double get(ByteBuffer segment, int rowStart, int j) {
+    return floatPrecision ? segment.getFloat(rowStart + 4 * j) : segment.getDouble(rowStart + 8 * j);
+  }
+
+  /**
+   * Sets weight j of row i (rounding it to single precision, if the store is), where segment is
+   * segmentOf(i) and rowStart is rowStartOf(i).
+   *
+   * @return the weight as stored
+   */
+  double set(ByteBuffer segment, int rowStart, int j, double weight) {
+    if (floatPrecision) {
+      float stored = (float) weight;
+      segment.putFloat(rowStart + 4 * j, stored);
+      return stored;
+    }
+    segment.putDouble(rowStart + 8 * j, weight);
+    return weight;
+  }
+
+  /**
+   * Copies row i to destination[offset], ..., destination[offset + rowLength - 1].
+   */
+  void readRow(int i, double[] destination, int offset) {
+    ByteBuffer segment = segmentOf(i);
+    int rowStart = rowStartOf(i);
+    if (floatPrecision) {
+      for (int j = 0; j < rowLength; j++) {
+        destination[offset + j] = segment.getFloat(rowStart + 4 * j);
+      }
+    } else { // A bulk copy
+      ByteBuffer row = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      row.position(rowStart);
+      row.asDoubleBuffer().get(destination, offset, rowLength);
+    }
+  }
+
+  /**
+   * Overwrites row i with source[offset], ..., source[offset + rowLength - 1], each of which is
+   * rounded (in place) to single precision, if the store is, so that source matches the row.
+   */
+  void writeRow(int i, double[] source, int offset) {
+    ByteBuffer segment = segmentOf(i);
+    int rowStart = rowStartOf(i);
+    if (floatPrecision) {
+      for (int j = 0; j < rowLength; j++) {
+        float stored = (float) source[offset + j];
+        segment.putFloat(rowStart + 4 * j, stored);
+        source[offset + j] = stored;
+      }
+    } else { // A bulk copy
+      ByteBuffer row = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      row.position(rowStart);
+      row.asDoubleBuffer().put(source, offset, rowLength);
+    }
+  }
+
+  /**
+   * Writes the weights to a checkpoint (in the store's precision), directly from the segments.
+   */
+  void saveState(Checkpoint.Writer out) throws IOException {
+    for (int segmentIdx = 0; segmentIdx < segments.length; segmentIdx++) {
+      out.putBuffer(getSegment(segmentIdx));
+    }
+  }
+
+  /**
+   * Replaces the weights with those written by saveState() (by a store of the same shape and
+   * precision), directly into the segments.
+   */
+  void restoreState(Checkpoint.Reader in) throws IOException {
+    for (ByteBuffer segment : segments) {
+      in.getBuffer(segment.duplicate());
+    }
+  }
+
+  /**
+   * Releases the store's memory (if the JVM allows it) and deletes its file (if any); the store
+   * must not be used afterwards.
+   */
+  @Override
+  public void close() {
+    for (int segmentIdx = 0; segmentIdx < segments.length; segmentIdx++) {
+      if (segments[segmentIdx] != null) {
+        free(segments[segmentIdx]);
+        segments[segmentIdx] = null;
+      }
+    }
+    if (file != null && !file.delete()) {
+      file.deleteOnExit(); // E.g., on Windows, while the mappings remain
+    }
+  }
+
+  private long getSegmentRows(int segmentIdx) {
+    return Math.min(rowsPerSegment, numRows - (long) segmentIdx * rowsPerSegment);
+  }
+
+  /**
+   * Unmaps (or frees) a direct buffer through sun.misc.Unsafe.invokeCleaner(), which exists from
+   * Java 9 on; otherwise, the buffer is released when it is garbage collected.
+   */
+  static void free(ByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+      unsafeField.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafeField.get(null), buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Left to the garbage collector
+    }
+  }
+
+}
@@ -0,0 +1,177 @@
+package SORN;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trips of trials (and their statistics and recorded output) through Checkpoint: a trial
+ * resumed from a checkpoint must continue bit for bit as the original did.
+ */
+public class CheckpointTest {
+
+  private static final long SEED = 7;
+  private static final int NUM_NEURONS = 100;
+  private static final int CHECKPOINT_TIME = 50;
+  private static final int END_TIME = 120;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * The statistics, .mat output and convergence detector of a trial, recorded as by Sim.
+   */
+  private static final class Output {
+    final NetworkStatistics statistics;
+    final InMemoryWeightRecorder weights;
+    final MATFileRecorder recorder;
+    final ConvergenceDetector convergence;
+    private final long[] pattern = new long[SpikeHistory.numWordsFor(NUM_NEURONS)];
+
+    Output(int firstStep, RandomStream random, File matFile) {
+      statistics = new NetworkStatistics(NUM_NEURONS, 10, 4, 0, random);
+      weights = new InMemoryWeightRecorder(NUM_NEURONS, 20);
+      recorder = new MATFileRecorder(matFile.getPath(), NUM_NEURONS, firstStep, END_TIME + 1, weights);
+      convergence = new ConvergenceDetector(params(), 15, 100, 16, 0.01, 0.05, 0.1, 0.05);
+    }
+
+    void record(Trial trial) {
+      int t = trial.getTime();
+      trial.getHistory().copyPattern(t, pattern, 0);
+      recorder.recordSpikes(t, pattern);
+      if (weights.shouldRecord(t)) {
+        weights.record(t, trial.getNetwork());
+      }
+      statistics.countSpikes(trial.getHistory().countSpikes(t));
+      if (statistics.shouldSample(t)) {
+        statistics.sample(t, trial.getNetwork());
+      }
+      if (t == 0) {
+        convergence.check(t, trial.getNetwork(), trial.getNetwork().getNumSynapses());
+        return;
+      }
+      convergence.countSpikes(trial.getHistory().countSpikes(t));
+      if (convergence.shouldCheck(t)) {
+        convergence.check(t, trial.getNetwork(), trial.getNetwork().getNumSynapses());
+      }
+    }
+  }
+
+  private static Parameters params() {
+    return new Parameters().with("numNeurons", NUM_NEURONS);
+  }
+
+  /**
+   * Runs a trial to END_TIME, checkpointing it at CHECKPOINT_TIME (in the middle of a convergence
+   * window), resumes another from that checkpoint, and checks that the checkpoints of both at
+   * END_TIME are identical.
+   */
+  private void checkResume(WeightStorage storage, boolean eventDrivenPropagation, boolean useSpikeTraces)
+      throws IOException {
+    Parameters params = params();
+    String checkpointPath = new File(folder.getRoot(), "trial.checkpoint").getPath();
+    File originalEnd = new File(folder.getRoot(), "original.checkpoint");
+    File resumedEnd = new File(folder.getRoot(), "resumed.checkpoint");
+
+    RandomStream random = new RandomStream(SEED, 3);
+    Output output = new Output(0, random, folder.newFile());
+    Trial trial = new Trial(params, random, storage, eventDrivenPropagation, useSpikeTraces, true, 1);
+    try {
+      output.record(trial);
+      while (trial.getTime() < END_TIME) {
+        trial.step();
+        output.record(trial);
+        if (trial.getTime() == CHECKPOINT_TIME) {
+          Checkpoint.write(checkpointPath, params, trial, output.statistics, output.recorder, output.convergence,
+              false);
+        }
+      }
+      Checkpoint.write(originalEnd.getPath(), params, trial, output.statistics, output.recorder,
+          output.convergence, false);
+    } finally {
+      trial.close();
+    }
+
+    Checkpoint checkpoint = Checkpoint.read(checkpointPath);
+    assertEquals(CHECKPOINT_TIME, checkpoint.getTime());
+    assertEquals(random.getKey(), checkpoint.getRandom().getKey());
+    Output resumedOutput = new Output(CHECKPOINT_TIME, checkpoint.getRandom(), folder.newFile());
+    Trial resumed = checkpoint.restore(params, checkpoint.getRandom(), storage, eventDrivenPropagation, 1,
+        resumedOutput.statistics, resumedOutput.recorder, resumedOutput.convergence);
+    try {
+      assertEquals(CHECKPOINT_TIME, resumed.getTime());
+      while (resumed.getTime() < END_TIME) {
+        resumed.step();
+        resumedOutput.record(resumed);
+      }
+      Checkpoint.write(resumedEnd.getPath(), params, resumed, resumedOutput.statistics, resumedOutput.recorder,
+          resumedOutput.convergence, false);
+    } finally {
+      resumed.close();
+    }
+
+    assertArrayEquals(Files.readAllBytes(originalEnd.toPath()), Files.readAllBytes(resumedEnd.toPath()));
+  }
+
+  @Test
+  public void resumesDenseTrialsBitForBit() throws IOException {
+    checkResume(WeightStorage.DENSE, true, true);
+  }
+
+  @Test
+  public void resumesDenseTrialsWithoutSpikeTracesBitForBit() throws IOException {
+    checkResume(WeightStorage.DENSE, false, false);
+  }
+
+  @Test
+  public void resumesSparseTrialsBitForBit() throws IOException {
+    checkResume(WeightStorage.SPARSE, true, true);
+  }
+
+  /**
+   * A trial forked from a checkpoint with recorded output and a convergence detector skips them,
+   * but restores the statistics that follow them.
+   */
+  @Test
+  public void forksSkipRecordedOutput() throws IOException {
+    Parameters params = params();
+    String checkpointPath = new File(folder.getRoot(), "trial.checkpoint").getPath();
+    RandomStream random = new RandomStream(SEED, 0);
+    Output output = new Output(0, random, folder.newFile());
+    Trial trial = new Trial(params, random, WeightStorage.DENSE, true, true, true, 1);
+    try {
+      output.record(trial);
+      while (trial.getTime() < CHECKPOINT_TIME) {
+        trial.step();
+        output.record(trial);
+      }
+      Checkpoint.write(checkpointPath, params, trial, output.statistics, output.recorder, output.convergence,
+          false);
+    } finally {
+      trial.close();
+    }
+
+    Checkpoint checkpoint = Checkpoint.read(checkpointPath);
+    RandomStream forkRandom = new RandomStream(SEED, 1);
+    NetworkStatistics statistics = new NetworkStatistics(NUM_NEURONS, 10, 4, 0, forkRandom);
+    Trial fork = checkpoint.restore(params, forkRandom, WeightStorage.DENSE, true, 1, statistics, null, null);
+    try {
+      assertEquals(CHECKPOINT_TIME, fork.getTime());
+      assertEquals(output.statistics.getNumSamples(), statistics.getNumSamples());
+      for (int sample = 0; sample < statistics.getNumSamples(); sample++) {
+        assertEquals(output.statistics.getTime(sample), statistics.getTime(sample));
+        assertEquals(output.statistics.getDensity(sample), statistics.getDensity(sample), 0.0);
+      }
+    } finally {
+      fork.close();
+    }
+  }
+
+}
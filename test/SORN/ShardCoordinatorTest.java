@@ -0,0 +1,122 @@
+package SORN;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs sharded trials in local worker processes, and checks that their firing patterns and .stats
+ * files are identical to those of the same trial in a single process.
+ */
+public class ShardCoordinatorTest {
+
+  private static final int NUM_NEURONS = 200; // 4 words of firing pattern, so up to 4 shards
+  private static final int DURATION = 200;
+  private static final int STATISTICS_EVERY = 10;
+  private static final int TRIAL_IDX = 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Parameters params() {
+    return new Parameters().with("numNeurons", NUM_NEURONS).with("duration", DURATION);
+  }
+
+  /**
+   * Runs the trial in a single process, with dense synapses, writes its statistics to statsFile,
+   * and adds its firing patterns to patterns.
+   */
+  private static void runSingleProcess(boolean eventDrivenPropagation, boolean useSpikeTraces, File statsFile,
+                                       List<long[]> patterns) throws IOException {
+    Parameters params = params();
+    RandomStream random = new RandomStream(params.seed, TRIAL_IDX);
+    NetworkStatistics statistics = new NetworkStatistics(NUM_NEURONS, STATISTICS_EVERY, 3, 4, random);
+    Trial trial = new Trial(params, random, WeightStorage.DENSE, eventDrivenPropagation, useSpikeTraces, true, 1);
+    try {
+      for (int t = 0; t < DURATION; t++) {
+        if (t > 0) { trial.step(); }
+        long[] pattern = new long[SpikeHistory.numWordsFor(NUM_NEURONS)];
+        trial.getHistory().copyPattern(t, pattern, 0);
+        patterns.add(pattern);
+        statistics.countSpikes(trial.getHistory().countSpikes(t));
+        if (statistics.shouldSample(t)) {
+          statistics.sample(t, trial.getNetwork());
+        }
+      }
+    } finally {
+      trial.close();
+    }
+    statistics.writeCSV(statsFile.getPath());
+  }
+
+  private void checkShards(int numShards, boolean eventDrivenPropagation, boolean useSpikeTraces) throws IOException {
+    File expectedStats = folder.newFile();
+    List<long[]> expectedPatterns = new ArrayList<>();
+    runSingleProcess(eventDrivenPropagation, useSpikeTraces, expectedStats, expectedPatterns);
+
+    File shardedStats = folder.newFile();
+    final List<long[]> shardedPatterns = new ArrayList<>();
+    Parameters params = params();
+    ShardCoordinator coordinator = new ShardCoordinator();
+    try {
+      coordinator.launchWorkers(numShards, Collections.singletonList("-Xmx256m"));
+      coordinator.runTrial(params, new RandomStream(params.seed, TRIAL_IDX), numShards, eventDrivenPropagation,
+          useSpikeTraces, true, 1, STATISTICS_EVERY, shardedStats.getPath(), new SpikeRecorder() {
+            @Override
+            public void recordSpikes(int t, long[] pattern) {
+              assertEquals(shardedPatterns.size(), t);
+              shardedPatterns.add(pattern.clone());
+            }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() { }
+          });
+    } finally {
+      coordinator.close();
+    }
+
+    assertEquals(DURATION, shardedPatterns.size());
+    for (int t = 0; t < DURATION; t++) {
+      assertArrayEquals("pattern " + t, expectedPatterns.get(t), shardedPatterns.get(t));
+    }
+    // The coordinator only writes the firing rate and density, which are the first columns of the
+    // single process's .stats file
+    List<String> expected = Files.readAllLines(expectedStats.toPath(), StandardCharsets.UTF_8);
+    List<String> sharded = Files.readAllLines(shardedStats.toPath(), StandardCharsets.UTF_8);
+    assertEquals(expected.size(), sharded.size());
+    assertEquals(DURATION / STATISTICS_EVERY + 1, sharded.size());
+    for (int line = 1; line < expected.size(); line++) {
+      String[] expectedColumns = expected.get(line).split(",");
+      String[] shardedColumns = sharded.get(line).split(",");
+      assertEquals(3, shardedColumns.length);
+      for (int column = 0; column < 3; column++) {
+        assertEquals("line " + line, expectedColumns[column], shardedColumns[column]);
+      }
+    }
+  }
+
+  @Test
+  public void twoShardsMatchASingleProcess() throws IOException {
+    checkShards(2, true, true);
+  }
+
+  @Test
+  public void threeShardsMatchASingleProcess() throws IOException {
+    checkShards(3, false, false);
+  }
+
+}
@@ -0,0 +1,64 @@
+package SORN;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs trials with sparse and dense synapses from the same RandomStream, and checks that they
+ * evolve identically: the storage of the weights must not change the dynamics.
+ */
+public class SparseNetworkTest {
+
+  private static final int NUM_NEURONS = 150;
+  private static final int DURATION = 200;
+
+  private static void checkSameAsDense(boolean eventDrivenPropagation, boolean useSpikeTraces,
+                                       boolean truncateSpikeTraces) {
+    Parameters params = new Parameters().with("numNeurons", NUM_NEURONS);
+    Trial dense = new Trial(params, new RandomStream(params.seed, 2), WeightStorage.DENSE, eventDrivenPropagation,
+        useSpikeTraces, truncateSpikeTraces, 1);
+    Trial sparse = new Trial(params, new RandomStream(params.seed, 2), WeightStorage.SPARSE, eventDrivenPropagation,
+        useSpikeTraces, truncateSpikeTraces, 1);
+    try {
+      long[] densePattern = new long[SpikeHistory.numWordsFor(NUM_NEURONS)];
+      long[] sparsePattern = new long[densePattern.length];
+      double[] denseWeights = new double[NUM_NEURONS * NUM_NEURONS];
+      double[] sparseWeights = new double[NUM_NEURONS * NUM_NEURONS];
+      for (int t = 0; t < DURATION; t++) {
+        if (t > 0) {
+          dense.step();
+          sparse.step();
+        }
+        dense.getHistory().copyPattern(t, densePattern, 0);
+        sparse.getHistory().copyPattern(t, sparsePattern, 0);
+        assertArrayEquals("pattern " + t, densePattern, sparsePattern);
+        dense.getNetwork().copyWeights(denseWeights);
+        sparse.getNetwork().copyWeights(sparseWeights);
+        assertArrayEquals("weights " + t, denseWeights, sparseWeights, 0.0);
+        assertArrayEquals("L1 norms " + t, dense.getNetwork().l1Norms, sparse.getNetwork().l1Norms, 0.0);
+        assertEquals("synapses " + t, dense.getNetwork().getNumSynapses(), sparse.getNetwork().getNumSynapses());
+      }
+    } finally {
+      dense.close();
+      sparse.close();
+    }
+  }
+
+  @Test
+  public void evolvesAsDenseWithTruncatedSpikeTraces() {
+    checkSameAsDense(true, true, true);
+  }
+
+  @Test
+  public void evolvesAsDenseWithUntruncatedSpikeTraces() {
+    checkSameAsDense(false, true, false);
+  }
+
+  @Test
+  public void evolvesAsDenseWithSpikeHistory() {
+    checkSameAsDense(true, false, false);
+  }
+
+}
@@ -0,0 +1,235 @@
+package SORN;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trips of spikes and weights through TrialFileWriter and TrialFileReader, including files
+ * that are resumed from a checkpoint.
+ */
+public class TrialFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * A row-major weight matrix, for recording.
+   */
+  static WeightMatrix matrixOf(final int numNeurons, final double[] weights) {
+    return new WeightMatrix() {
+      @Override
+      public int getNumNeurons() { return numNeurons; }
+
+      @Override
+      public void copyRow(int i, double[] destination, int offset) {
+        System.arraycopy(weights, i * numNeurons, destination, offset, numNeurons);
+      }
+
+      @Override
+      public int copyInputs(int i, int[] indices, double[] inputWeights, int offset) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Writes numSteps random patterns (from time firstTime on) and, every recordEvery steps, a frame
+   * in which only a few weights change, and checks that the reader returns all of them.
+   */
+  private void checkRoundTrip(int numNeurons, int numSteps, int recordEvery, int chunkBytes, int firstTime)
+      throws IOException {
+    File file = folder.newFile();
+    Random random = new Random(numNeurons * 31 + chunkBytes);
+    int numWords = SpikeHistory.numWordsFor(numNeurons);
+    long[][] patterns = new long[numSteps][numWords];
+    int numFrames = 0;
+    for (int t = firstTime; t < firstTime + numSteps; t++) {
+      if (t % recordEvery == 0) { numFrames++; }
+    }
+    double[][] frames = new double[numFrames][];
+    int[] frameTimes = new int[numFrames];
+
+    double[] weights = new double[numNeurons * numNeurons];
+    for (int k = 0; k < weights.length; k++) {
+      weights[k] = (random.nextInt(4) == 0) ? random.nextDouble() : 0.0;
+    }
+    TrialFileWriter writer = new TrialFileWriter(file.getPath(), numNeurons, recordEvery, chunkBytes, firstTime);
+    int frame = 0;
+    for (int s = 0; s < numSteps; s++) {
+      int t = firstTime + s;
+      for (int i = 0; i < numNeurons; i++) {
+        if (random.nextInt(10) == 0) { patterns[s][i >> 6] |= 1L << (i & 63); }
+      }
+      writer.recordSpikes(t, patterns[s]);
+      for (int change = 0; change < 3; change++) { // Most weights repeat, so frames are mostly zero deltas
+        weights[random.nextInt(weights.length)] = random.nextDouble();
+      }
+      if (writer.shouldRecord(t)) {
+        writer.record(t, matrixOf(numNeurons, weights));
+        frames[frame] = weights.clone();
+        frameTimes[frame] = t;
+        frame++;
+      }
+    }
+    writer.close();
+
+    TrialFileReader reader = new TrialFileReader(file.getPath());
+    try {
+      assertEquals(numNeurons, reader.getNumNeurons());
+      assertEquals(recordEvery, reader.getRecordEvery());
+      assertEquals(firstTime, reader.getFirstStep());
+      assertEquals(numSteps, reader.getNumSteps());
+      long[] pattern = new long[numWords];
+      for (int s = numSteps - 1; s >= 0; s--) { // Out of order, so that chunks are revisited
+        reader.readSpikes(firstTime + s, pattern, 0);
+        assertArrayEquals("pattern " + s, patterns[s], pattern);
+      }
+      assertArrayEquals(frameTimes, reader.getFrameTimes());
+      double[] read = new double[numNeurons * numNeurons];
+      for (int f = 0; f < numFrames; f++) {
+        reader.readFrame(f, read);
+        assertArrayEquals("frame " + f, frames[f], read, 0.0);
+      }
+      reader.readFrame(0, read); // Back to the first chunk
+      assertArrayEquals(frames[0], read, 0.0);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return a random firing pattern of time t, which is the same in every call
+   */
+  private static long[] patternAt(int t, int numNeurons) {
+    Random random = new Random(2 * t);
+    long[] pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+    for (int i = 0; i < numNeurons; i++) {
+      if (random.nextInt(10) == 0) { pattern[i >> 6] |= 1L << (i & 63); }
+    }
+    return pattern;
+  }
+
+  /**
+   * @return random weights of time t, which are the same in every call
+   */
+  private static double[] weightsAt(int t, int numNeurons) {
+    Random random = new Random(2 * t + 1);
+    double[] weights = new double[numNeurons * numNeurons];
+    for (int k = 0; k < weights.length; k++) {
+      weights[k] = (random.nextInt(4) == 0) ? random.nextDouble() : 0.0;
+    }
+    return weights;
+  }
+
+  /**
+   * Records the patterns (and frames) of time steps firstTime to lastTime, as the simulation would.
+   */
+  private static void recordSteps(TrialFileWriter writer, int numNeurons, int firstTime, int lastTime) throws IOException {
+    for (int t = firstTime; t <= lastTime; t++) {
+      writer.recordSpikes(t, patternAt(t, numNeurons));
+      if (writer.shouldRecord(t)) {
+        writer.record(t, matrixOf(numNeurons, weightsAt(t, numNeurons)));
+      }
+    }
+  }
+
+  /**
+   * Writes a file that is flushed at time step checkpointTime, and then interrupted (either by a
+   * crash, after which the file has no index and ends in a partly written chunk, or by an exception,
+   * after which it was closed) some time steps later, resumes it from checkpointTime on, and checks
+   * that the reader returns the same patterns and frames as for a file that was never interrupted.
+   */
+  @Test
+  public void resumesFromAFlushedTimeStep() throws IOException {
+    int numNeurons = 20;
+    int recordEvery = 3;
+    int chunkBytes = 2 * 8 * 20 * 20 + 5;
+    int checkpointTime = 40;
+    int duration = 80;
+    File crashed = folder.newFile();
+    File closed = folder.newFile();
+    TrialFileWriter writer = new TrialFileWriter(closed.getPath(), numNeurons, recordEvery, chunkBytes, 0);
+    recordSteps(writer, numNeurons, 0, checkpointTime);
+    writer.flush();
+    recordSteps(writer, numNeurons, checkpointTime + 1, 57);
+    writer.flush();
+    Files.copy(closed.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    writer.close();
+    RandomAccessFile crashedFile = new RandomAccessFile(crashed, "rw");
+    try {
+      crashedFile.setLength(crashedFile.length() - 7);
+    } finally {
+      crashedFile.close();
+    }
+
+    for (File file : new File[] { crashed, closed }) {
+      writer = TrialFileWriter.resume(file.getPath(), numNeurons, recordEvery, chunkBytes, checkpointTime);
+      recordSteps(writer, numNeurons, checkpointTime + 1, duration - 1);
+      writer.close();
+
+      TrialFileReader reader = new TrialFileReader(file.getPath());
+      try {
+        assertEquals(0, reader.getFirstStep());
+        assertEquals(duration, reader.getNumSteps());
+        long[] pattern = new long[SpikeHistory.numWordsFor(numNeurons)];
+        for (int t = 0; t < duration; t++) {
+          reader.readSpikes(t, pattern, 0);
+          assertArrayEquals("pattern " + t, patternAt(t, numNeurons), pattern);
+        }
+        int[] frameTimes = reader.getFrameTimes();
+        assertEquals((duration + recordEvery - 1) / recordEvery, frameTimes.length);
+        double[] frame = new double[numNeurons * numNeurons];
+        for (int f = 0; f < frameTimes.length; f++) {
+          assertEquals(f * recordEvery, frameTimes[f]);
+          reader.readFrame(f, frame);
+          assertArrayEquals("frame " + f, weightsAt(frameTimes[f], numNeurons), frame, 0.0);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void refusesToResumeFromAnUnflushedTimeStep() throws IOException {
+    File file = folder.newFile();
+    TrialFileWriter writer = new TrialFileWriter(file.getPath(), 20, 3, 1 << 20, 0);
+    recordSteps(writer, 20, 0, 50);
+    writer.close(); // A single chunk of each kind, from time step 0 to 50
+    TrialFileWriter.resume(file.getPath(), 20, 3, 1 << 20, 40).close();
+  }
+
+  @Test
+  public void roundTripsInASingleChunk() throws IOException {
+    checkRoundTrip(10, 50, 1, 1 << 20, 0);
+  }
+
+  @Test
+  public void roundTripsAcrossChunkBoundaries() throws IOException {
+    // 3 frames of 20 * 20 weights, or 1200 patterns, per chunk, neither of which divides the number
+    // of frames (52) or steps (2560)
+    checkRoundTrip(20, 2560, 50, 3 * 8 * 20 * 20 + 7, 0);
+  }
+
+  @Test
+  public void roundTripsPatternsWiderThanOneWord() throws IOException {
+    checkRoundTrip(130, 40, 2, 2 * 8 * 130 * 130, 0);
+  }
+
+  @Test
+  public void roundTripsFromALaterFirstTime() throws IOException {
+    checkRoundTrip(20, 37, 3, 8 * 20 * 20, 5);
+  }
+
+}
@@ -0,0 +1,124 @@
+package SORN;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the linear-time L1 projection against the sort-based projection it replaced.
+ */
+public class UtilTest {
+
+  private static final double TOLERANCE = 1e-12;
+
+  /**
+   * The original projection (by sorting), as a reference.
+   */
+  private static void sortedProjection(double[] array, double targetL1Norm) {
+    double total = 0.0;
+    for (double x : array) { total += x; }
+    if (total <= targetL1Norm) { return; }
+    ArrayList<Double> copy = new ArrayList<>();
+    for (double x : array) { copy.add(x); }
+    Collections.sort(copy);
+    Collections.reverse(copy);
+    int rho = 0;
+    double cumSum = 0.0;
+    while (copy.get(rho) > (cumSum + copy.get(rho) - targetL1Norm) / (rho + 1)) {
+      cumSum += copy.get(rho);
+      rho++;
+      if (rho >= array.length) break;
+    }
+    double theta = Math.max(0.0, (cumSum - targetL1Norm) / rho);
+    for (int i = 0; i < array.length; i++) {
+      array[i] = Math.max(0.0, array[i] - theta);
+    }
+  }
+
+  private static void assertMatchesSortedProjection(double[] array, double targetL1Norm) {
+    double[] expected = array.clone();
+    sortedProjection(expected, targetL1Norm);
+    double[] actual = array.clone();
+    double norm = Util.projectWeightsInL1(actual, targetL1Norm, new double[array.length]);
+    assertArrayEquals(expected, actual, TOLERANCE);
+    double expectedNorm = 0.0;
+    for (double x : expected) { expectedNorm += x; }
+    assertEquals(expectedNorm, norm, TOLERANCE);
+  }
+
+  @Test
+  public void matchesSortedProjectionOnRandomRows() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 1000; trial++) {
+      double[] row = new double[1 + random.nextInt(300)];
+      for (int j = 0; j < row.length; j++) {
+        row[j] = (random.nextDouble() < 0.7) ? 0.0 : random.nextDouble();
+      }
+      assertMatchesSortedProjection(row, 0.05 + random.nextDouble());
+    }
+  }
+
+  @Test
+  public void matchesSortedProjectionWithTies() {
+    double[] allEqual = new double[64];
+    Arrays.fill(allEqual, 0.25);
+    assertMatchesSortedProjection(allEqual, 1.0);
+
+    Random random = new Random(2);
+    double[] levels = { 0.1, 0.2, 0.5 };
+    for (int trial = 0; trial < 200; trial++) {
+      double[] row = new double[50];
+      for (int j = 0; j < row.length; j++) {
+        row[j] = (random.nextInt(4) == 0) ? 0.0 : levels[random.nextInt(levels.length)];
+      }
+      assertMatchesSortedProjection(row, 0.05 * (1 + random.nextInt(40)));
+    }
+  }
+
+  @Test
+  public void leavesZeroAndFeasibleRowsUnchanged() {
+    double[] zeros = new double[100];
+    assertEquals(0.0, Util.projectWeightsInL1(zeros, 0.05, new double[100]), 0.0);
+    assertArrayEquals(new double[100], zeros, 0.0);
+
+    double[] feasible = { 0.0, 0.01, 0.02, 0.0 };
+    double[] projected = feasible.clone();
+    assertEquals(0.03, Util.projectWeightsInL1(projected, 0.05, new double[4]), TOLERANCE);
+    assertArrayEquals(feasible, projected, 0.0);
+  }
+
+  @Test
+  public void projectsToZeroForZeroRadius() {
+    double[] row = { 0.3, 0.0, 0.7 };
+    assertEquals(0.0, Util.projectWeightsInL1(row, 0.0, new double[3]), 0.0);
+    assertArrayEquals(new double[3], row, 0.0);
+  }
+
+  @Test
+  public void projectsOnlyTheGivenRowOfAMatrix() {
+    Random random = new Random(3);
+    int numNeurons = 40;
+    double[] matrix = new double[3 * numNeurons];
+    for (int j = 0; j < matrix.length; j++) { matrix[j] = random.nextDouble(); }
+    double[] expected = Arrays.copyOfRange(matrix, numNeurons, 2 * numNeurons);
+    sortedProjection(expected, 0.5);
+    double[] before = matrix.clone();
+    Util.projectWeightsInL1(matrix, numNeurons, numNeurons, 0.5, new double[numNeurons]);
+    assertArrayEquals(expected, Arrays.copyOfRange(matrix, numNeurons, 2 * numNeurons), TOLERANCE);
+    assertArrayEquals(Arrays.copyOfRange(before, 0, numNeurons), Arrays.copyOfRange(matrix, 0, numNeurons), 0.0);
+    assertArrayEquals(Arrays.copyOfRange(before, 2 * numNeurons, 3 * numNeurons),
+        Arrays.copyOfRange(matrix, 2 * numNeurons, 3 * numNeurons), 0.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNegativeRadius() {
+    Util.projectWeightsInL1(new double[] { 1.0 }, -1.0, new double[1]);
+  }
+
+}